@@ -0,0 +1,43 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the {@link Backoff} delay doubles with each attempt, stays within its jitter and stops growing at
+ * its maximum.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class BackoffTest {
+
+	@Test
+	void doublesWithEachAttempt() {
+		for (int attempt = 1; attempt <= 6; attempt++) {
+			long full = Backoff.BASE_MS << (attempt - 1);
+			for (int i = 0; i < 100; i++) {
+				assertBetween(full / 2, full, Backoff.delay(attempt));
+			}
+		}
+	}
+
+	@Test
+	void stopsAtTheMaximum() {
+		for (int attempt : new int[] { 7, 20, 64, Integer.MAX_VALUE }) {
+			assertBetween(Backoff.MAX_MS / 2, Backoff.MAX_MS, Backoff.delay(attempt));
+		}
+	}
+
+	@Test
+	void treatsAnAttemptBelowOneAsTheFirst() {
+		assertBetween(Backoff.BASE_MS / 2, Backoff.BASE_MS, Backoff.delay(0));
+	}
+
+	private static void assertBetween(long low, long high, long delay) {
+		assertTrue(delay >= low && delay <= high, delay + " is not between " + low + " and " + high);
+	}
+
+}
@@ -0,0 +1,115 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the {@link FrameDecoder} finds the same frames however the bytes are split between reads.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class FrameDecoderTest {
+
+	private static final String PASTED = pasted();
+
+	@Test
+	void decodesFramesInOneRead() throws IOException {
+		List<Frame> frames = decode(stream(), stream().length);
+
+		assertBodies(frames);
+	}
+
+	@Test
+	void decodesFramesSplitIntoSingleBytes() throws IOException {
+		List<Frame> frames = decode(stream(), 1);
+
+		assertBodies(frames);
+	}
+
+	@Test
+	void decodesFramesSplitAcrossTheLengthPrefix() throws IOException {
+		for (int size = 2; size < 12; size++) {								// Splits the handshake, length and content at every offset
+			assertBodies(decode(stream(), size));
+		}
+	}
+
+	@Test
+	void waitsForTheRestOfAFrame() throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] bytes = stream();
+
+		assertNull(decoder.next(ByteBuffer.wrap(bytes, 0, Frame.HELLO.length + 6)));
+	}
+
+	@Test
+	void refusesAnotherHandshake() {
+		byte[] bytes = stream();
+		bytes[1] = 'X';
+
+		assertThrows(IOException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(bytes)));
+	}
+
+	@Test
+	void refusesALengthOutOfRange() {
+		ByteBuffer buffer = ByteBuffer.allocate(Frame.HELLO.length + 4).put(Frame.HELLO).putInt(Frame.MAX_LENGTH + 1);
+		buffer.flip();
+
+		assertThrows(IOException.class, () -> new FrameDecoder().next(buffer));
+	}
+
+	// Feeds the bytes to one decoder in reads of the size, as a channel would, and keeps every frame found
+	private static List<Frame> decode(byte[] bytes, int size) throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		List<Frame> frames = new ArrayList<>();
+		for (int start = 0; start < bytes.length; start += size) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, start, Math.min(size, bytes.length - start));
+			Frame frame;
+			while ((frame = decoder.next(buffer)) != null) {
+				frames.add(frame);
+			}
+		}
+		return frames;
+	}
+
+	// The handshake followed by three frames, one of them deflated
+	private static byte[] stream() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(Frame.HELLO, 0, Frame.HELLO.length);
+		write(out, new Frame(Opcode.JOIN, "ann", "").encode());
+		write(out, new Frame(Opcode.CHAT, "", "hello").withSequence(1).encode());
+		write(out, new Frame(Opcode.CHAT, "", PASTED).encodeDeflated());
+		return out.toByteArray();
+	}
+
+	private static String pasted() {
+		StringBuilder pasted = new StringBuilder();
+		while (pasted.length() < 2048) {
+			pasted.append("line ").append(pasted.length()).append('\n');
+		}
+		return pasted.toString();
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void assertBodies(List<Frame> frames) {
+		assertEquals(3, frames.size());
+		assertEquals("ann", frames.get(0).getTarget());
+		assertEquals("hello", frames.get(1).getBody());
+		assertEquals(1, frames.get(1).getSequence());
+		assertEquals(PASTED, frames.get(2).getBody());
+	}
+
+}
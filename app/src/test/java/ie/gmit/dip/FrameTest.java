@@ -0,0 +1,169 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that frames decode to what was encoded, with and without deflate, and that a frame claiming to
+ * inflate past {@link Frame#MAX_LENGTH} or to a length other than the one sent is refused.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class FrameTest {
+
+	@Test
+	void decodesWhatWasEncoded() throws IOException {
+		Frame frame = new Frame(Opcode.DM, "séamus", "café at 5? ☕");
+
+		Frame decoded = Frame.decode(content(frame.encode()));
+
+		assertEquals(Opcode.DM, decoded.getOpcode());
+		assertEquals("séamus", decoded.getTarget());
+		assertEquals("café at 5? ☕", decoded.getBody());
+		assertFalse(decoded.hasSequence());
+		assertEquals(0, decoded.getSequence());
+	}
+
+	@Test
+	void keepsTheSequenceAndFlags() throws IOException {
+		Frame frame = new Frame(Opcode.JOIN, "ann", "").withSequence(1L << 40).acceptingDeflate();
+
+		Frame decoded = Frame.decode(content(frame.encode()));
+
+		assertTrue(decoded.hasSequence());
+		assertTrue(decoded.acceptsDeflate());
+		assertEquals(1L << 40, decoded.getSequence());
+	}
+
+	@Test
+	void readsFramesFromAStream() throws IOException {
+		byte[] first = new Frame(Opcode.CHAT, "", "one").encode();
+		byte[] second = new Frame(Opcode.CHAT, "", "two").withSequence(2).encode();
+		byte[] both = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(both));
+
+		assertEquals("one", Frame.read(in).getBody());
+		assertEquals(2, Frame.read(in).getSequence());
+	}
+
+	@Test
+	void refusesALengthOutOfRange() {
+		byte[] tooLong = ByteBuffer.allocate(4).putInt(Frame.MAX_LENGTH + 1).array();
+
+		assertThrows(IOException.class, () -> Frame.read(new DataInputStream(new ByteArrayInputStream(tooLong))));
+		assertThrows(IOException.class, () -> Frame.checkLength(4));
+	}
+
+	@Test
+	void refusesAnUnknownVersion() {
+		byte[] content = content(new Frame(Opcode.CHAT, "", "hi").encode());
+		content[0] = Frame.VERSION + 1;
+
+		assertThrows(IOException.class, () -> Frame.decode(content));
+	}
+
+	@Test
+	void refusesATruncatedFrame() {
+		byte[] content = content(new Frame(Opcode.CHAT, "ann", "hi").encode());
+
+		assertThrows(IOException.class, () -> Frame.decode(Arrays.copyOf(content, 5)));
+	}
+
+	@Test
+	void decodesADeflatedFrame() throws IOException {
+		Frame frame = new Frame(Opcode.CHAT, "ann", longBody(16 * 1024)).withSequence(7);
+
+		byte[] deflated = frame.encodeDeflated();
+		Frame decoded = Frame.decode(content(deflated));
+
+		assertTrue(deflated.length < frame.encode().length / 4);
+		assertEquals(Opcode.CHAT, decoded.getOpcode());
+		assertEquals(7, decoded.getSequence());
+		assertEquals("ann", decoded.getTarget());
+		assertEquals(frame.getBody(), decoded.getBody());
+		assertEquals(0, decoded.getFlags() & Frame.FLAG_DEFLATE);
+	}
+
+	@Test
+	void sendsAShortFramePlain() {
+		Frame frame = new Frame(Opcode.CHAT, "ann", "hi");
+
+		assertArrayEquals(frame.encode(), frame.encodeDeflated());
+	}
+
+	@Test
+	void refusesAnInflatedLengthOverTheLimit() {
+		byte[] content = deflatedContent(Frame.MAX_LENGTH + 1, 64);
+
+		assertThrows(IOException.class, () -> Frame.decode(content));
+	}
+
+	@Test
+	void refusesAFrameThatInflatesPastItsLength() {
+		byte[] content = deflatedContent(1024, 64 * 1024);					// Says 1 KB but holds 64 KB
+
+		assertThrows(IOException.class, () -> Frame.decode(content));
+	}
+
+	@Test
+	void refusesAFrameThatInflatesShortOfItsLength() {
+		byte[] content = deflatedContent(64 * 1024, 1024);
+
+		assertThrows(IOException.class, () -> Frame.decode(content));
+	}
+
+	@Test
+	void refusesDataThatIsNotDeflated() {
+		byte[] content = content(new Frame(Opcode.CHAT, "ann", longBody(4096)).encodeDeflated());
+		Arrays.fill(content, 7, content.length, (byte) 0xFF);				// Everything after the inflated length
+
+		assertThrows(IOException.class, () -> Frame.decode(content));
+	}
+
+	// Strips the length prefix, which the decoder has already read by the time it decodes a frame
+	private static byte[] content(byte[] encoded) {
+		return Arrays.copyOfRange(encoded, 4, encoded.length);
+	}
+
+	// Builds the content of a deflated CHAT frame whose inflated length field may not match what it holds
+	private static byte[] deflatedContent(int inflatedLength, int actualLength) {
+		byte[] plain = new byte[actualLength];								// A target length of 0 followed by a body of zeros
+		Deflater deflater = new Deflater();
+		deflater.setInput(plain);
+		deflater.finish();
+		byte[] deflated = new byte[actualLength + 64];
+		int length = deflater.deflate(deflated);
+		deflater.end();
+		return ByteBuffer.allocate(7 + length)
+				.put(Frame.VERSION)
+				.put(Opcode.CHAT.getCode())
+				.put(Frame.FLAG_DEFLATE)
+				.putInt(inflatedLength)
+				.put(deflated, 0, length)
+				.array();
+	}
+
+	private static String longBody(int length) {
+		StringBuilder body = new StringBuilder(length);
+		while (body.length() < length) {
+			body.append("a pasted log line with a timestamp ").append(body.length()).append('\n');
+		}
+		return body.substring(0, length);
+	}
+
+}
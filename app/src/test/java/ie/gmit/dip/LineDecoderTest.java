@@ -0,0 +1,73 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the {@link LineDecoder} finds the same lines however the bytes are split between reads.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class LineDecoderTest {
+
+	private static final byte[] TEXT = "ann\r\nhello there\n\nslán ☕\n".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void decodesLinesInOneRead() {
+		assertEquals(Arrays.asList("ann", "hello there", "", "slán ☕"), decode(TEXT, TEXT.length));
+	}
+
+	@Test
+	void decodesLinesSplitAtEveryByte() {
+		for (int size = 1; size < 8; size++) {								// Also splits \r\n and the multi-byte characters
+			assertEquals(Arrays.asList("ann", "hello there", "", "slán ☕"), decode(TEXT, size));
+		}
+	}
+
+	@Test
+	void keepsAPartialLineForTheNextRead() {
+		LineDecoder decoder = new LineDecoder();
+
+		assertNull(decoder.next(ByteBuffer.wrap("hel".getBytes(StandardCharsets.UTF_8))));
+		assertEquals("hello", decoder.next(ByteBuffer.wrap("lo\n".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	void refusesALineThatNeverEnds() {
+		LineDecoder decoder = new LineDecoder();
+		byte[] chunk = new byte[8192];
+		Arrays.fill(chunk, (byte) 'a');
+
+		assertThrows(IllegalStateException.class, () -> {
+			for (int i = 0; i < 64; i++) {									// 512 KB with no line break
+				decoder.next(ByteBuffer.wrap(chunk));
+			}
+		});
+	}
+
+	// Feeds the bytes to one decoder in reads of the size, as a channel would, and keeps every line found
+	private static List<String> decode(byte[] bytes, int size) {
+		LineDecoder decoder = new LineDecoder();
+		List<String> lines = new ArrayList<>();
+		for (int start = 0; start < bytes.length; start += size) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, start, Math.min(size, bytes.length - start));
+			String line;
+			while ((line = decoder.next(buffer)) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,218 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that the {@link MessageJournal} replays what was written, in order and with no gaps, across segment
+ * boundaries and after it is reopened, and that a torn or corrupted record at the end of a room's log is cut
+ * off rather than replayed.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class MessageJournalTest {
+
+	private static final int SEGMENT_BYTES = 64 * 1024;					// About 600 messages, so a replay spans segments
+	private static final int MESSAGES = 10_000;								// Enough for more segments than are kept
+	private static final long REPLAY_TIMEOUT_S = 10;
+	private static final String ROOM = "lobby";
+	private static final String ESCAPED_ROOM = "café.*";				// Needs escaping to be a directory name
+
+	@TempDir
+	Path directory;
+
+	private MessageJournal journal;
+
+	@AfterEach
+	void closeJournal() {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	@Test
+	void replaysOnlyTheLastMessages() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, MESSAGES);
+
+		assertMessages(replay(ROOM, 0, MESSAGES), MESSAGES - MessageJournal.REPLAY_LIMIT + 1, MESSAGES);
+	}
+
+	@Test
+	void replaysAcrossASegmentBoundary() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, MESSAGES);
+		replay(ROOM, MESSAGES - 1, MESSAGES);									// Waits for the journal to write everything
+		List<Long> firsts = segments(ROOM);
+		long boundary = firsts.get(firsts.size() - 1);						// First message of the newest segment
+		long end = Math.min(boundary + 5, MESSAGES);
+
+		assertTrue(firsts.size() > 1);
+		assertMessages(replay(ROOM, boundary - 6, end), boundary - 5, end);
+	}
+
+	@Test
+	void keepsOnlyTheRetainedSegments() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, MESSAGES);
+		journal.close();
+
+		List<Long> firsts = segments(ROOM);
+		assertEquals(MessageJournal.RETAINED_SEGMENTS, firsts.size());
+		assertTrue(firsts.get(0) > 1);
+	}
+
+	@Test
+	void keepsMoreSegmentsWhileAReplayNeedsThem() throws Exception {
+		journal = open(4 * 1024);												// About 40 messages a segment
+		append(ROOM, 1, MESSAGES);
+		journal.close();
+
+		List<Long> firsts = segments(ROOM);
+		assertTrue(firsts.size() > MessageJournal.RETAINED_SEGMENTS);
+		assertTrue(firsts.get(0) <= MESSAGES - MessageJournal.REPLAY_LIMIT + 1);
+		assertTrue(firsts.get(1) > firsts.get(firsts.size() - 1) - MessageJournal.REPLAY_LIMIT);	// None older than a replay needs
+
+		journal = open(4 * 1024);
+		assertMessages(replay(ROOM, 0, MESSAGES), MESSAGES - MessageJournal.REPLAY_LIMIT + 1, MESSAGES);
+	}
+
+	@Test
+	void carriesOnWhereItStoppedWhenReopened() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, MESSAGES);
+		append(ESCAPED_ROOM, 1, 10);
+		journal.close();
+
+		journal = open(SEGMENT_BYTES);
+		assertEquals(MESSAGES, journal.lastSequence(ROOM));
+		assertEquals(10, journal.lastSequence(ESCAPED_ROOM));
+		append(ROOM, MESSAGES + 1, MESSAGES + 100);
+
+		assertMessages(replay(ROOM, MESSAGES - 50, MESSAGES + 100), MESSAGES - 49, MESSAGES + 100);
+		assertMessages(replay(ESCAPED_ROOM, 0, 10), 1, 10);
+	}
+
+	@Test
+	void cutsOffATornRecord() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, 100);
+		journal.close();
+		Path tail = tail(ROOM);
+		long intact = Files.size(tail);
+		try (FileChannel channel = FileChannel.open(tail, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer torn = ByteBuffer.allocate(19).putInt(0).putLong(101).putInt(200);	// Only 3 of 200 bytes were written
+			torn.rewind();
+			channel.write(torn);
+		}
+
+		journal = open(SEGMENT_BYTES);
+		assertEquals(100, journal.lastSequence(ROOM));
+		assertEquals(intact, Files.size(tail));
+		append(ROOM, 101, 101);
+
+		assertMessages(replay(ROOM, 90, 101), 91, 101);
+	}
+
+	@Test
+	void cutsOffARecordWithABadChecksum() throws Exception {
+		journal = open(SEGMENT_BYTES);
+		append(ROOM, 1, 100);
+		journal.close();
+		Path tail = tail(ROOM);
+		try (FileChannel channel = FileChannel.open(tail, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			last.put(0, (byte) (last.get(0) ^ 0xFF));							// Change the last byte of the body
+			last.rewind();
+			channel.write(last, channel.size() - 1);
+		}
+
+		journal = open(SEGMENT_BYTES);
+		assertEquals(99, journal.lastSequence(ROOM));
+
+		assertMessages(replay(ROOM, 90, 99), 91, 99);
+	}
+
+	private MessageJournal open(int segmentBytes) throws IOException {
+		return MessageJournal.open(directory, segmentBytes, new LongAdder());
+	}
+
+	// Appends the messages numbered from one sequence number to another, as the router would
+	private void append(String room, long from, long to) {
+		for (long sequence = from; sequence <= to; sequence++) {
+			Frame frame = new Frame(Opcode.CHAT, "user", body(sequence)).withSequence(sequence);
+			journal.append(room, sequence, Payload.of(frame));
+		}
+	}
+
+	// Replays a range of a room and returns what was sent, once the journal says it is done
+	private List<Payload> replay(String room, long after, long upTo) throws InterruptedException {
+		TestSession session = new TestSession("reader");
+		CountDownLatch done = new CountDownLatch(1);
+		journal.replay(room, after, upTo, session, done::countDown);
+		assertTrue(done.await(REPLAY_TIMEOUT_S, TimeUnit.SECONDS), "replay did not finish");
+		return session.getReceived();
+	}
+
+	// Checks the replayed messages are every message from one sequence number to another, in order
+	private static void assertMessages(List<Payload> replayed, long from, long to) {
+		assertEquals(to - from + 1, replayed.size());
+		long expected = from;
+		for (Payload payload : replayed) {
+			assertEquals(expected, payload.getFrame().getSequence());
+			assertEquals(body(expected), payload.getFrame().getBody());
+			expected++;
+		}
+	}
+
+	// Returns the first sequence number of each segment of a room, oldest first
+	private List<Long> segments(String room) throws IOException {
+		List<Long> firsts = new ArrayList<>();
+		for (Path file : files(room)) {
+			String name = file.getFileName().toString();
+			firsts.add(Long.parseLong(name.substring(0, name.indexOf('.'))));
+		}
+		Collections.sort(firsts);
+		return firsts;
+	}
+
+	private Path tail(String room) throws IOException {
+		List<Path> files = files(room);
+		Collections.sort(files);												// Names are zero padded so they sort by sequence
+		return files.get(files.size() - 1);
+	}
+
+	private List<Path> files(String room) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory.resolve(room), "*.log")) {
+			segments.forEach(files::add);
+		}
+		return files;
+	}
+
+	private static String body(long sequence) {
+		return "message " + sequence + " of a conversation long enough to fill a few segments";
+	}
+
+}
@@ -0,0 +1,225 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the lines the {@link MessageRouter} sends on to the other users of a room, and that a user who takes
+ * their session back on a new connection misses nothing sent to them meanwhile.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class MessageRouterTest {
+
+	@Test
+	void relaysATextLineWithTheSendersName() {
+		MessageRouter router = new MessageRouter();
+		TestSession ann = join(router, "ann");
+		TestSession bob = join(router, "bob");
+
+		router.handle(ann, "ann:hello");
+
+		assertEquals("ann:hello", last(bob).getText());
+		assertEquals("hello", last(bob).getFrame().getBody());
+	}
+
+	@Test
+	void neverRelaysALineThatLooksLikeAServerCommand() {
+		MessageRouter router = new MessageRouter();
+		TestSession ann = join(router, "ann");
+		TestSession bob = join(router, "bob");
+
+		router.handle(ann, "#tokenstolen");
+		router.handle(ann, "#namebob");
+
+		assertEquals("ann:#tokenstolen", bob.getReceived().get(bob.getReceived().size() - 2).getText());
+		assertEquals("ann:#namebob", last(bob).getText());
+	}
+
+	@Test
+	void dropsALeadingHashFromAName() {
+		MessageRouter router = new MessageRouter();
+
+		assertEquals("tokenX", router.uniqueName("##tokenX", new TestSession(null)));
+	}
+
+	@Test
+	void writesBytesAsTwoHexDigitsEach() {
+		assertEquals("000f10ff", MessageRouter.hex(new byte[] { 0, 15, 16, -1 }));
+	}
+
+	@Test
+	void sendsANewUserTheirNameAndToken() {
+		MessageRouter router = new MessageRouter();
+		TestSession ann = join(router, "ann");
+
+		List<Payload> received = ann.getReceived();
+		assertEquals("#nameann", received.get(0).getText());
+		assertTrue(received.get(1).getText().startsWith("#token"));
+	}
+
+	@Test
+	void logsInANewUserUnderAFreeName() {
+		MessageRouter router = new MessageRouter();
+		join(router, "ann");
+		TestSession other = new TestSession(null);
+
+		assertEquals("ann1", router.login(other, new Frame(Opcode.JOIN, "ann", ""), other::setUserName));
+		assertEquals("ann1", other.getUserName());
+		assertEquals("#nameann1", other.getReceived().get(0).getText());
+	}
+
+	@Test
+	void logsInWithATokenAsTheSameUser() throws IOException {
+		MessageRouter router = resumingRouter();
+		try {
+			TestSession ann = join(router, "ann");
+			TestSession back = new TestSession(null);
+
+			assertEquals("ann", router.login(back, resumeFrame(ann), back::setUserName));
+			assertEquals("ann", back.getUserName());
+			assertSame(back, router.getUsers().get("ann"));
+		} finally {
+			router.close();
+		}
+	}
+
+	@Test
+	void resumesAParkedSessionWithTheMessagesKeptForIt() throws IOException {
+		MessageRouter router = resumingRouter();
+		try {
+			TestSession ann = join(router, "ann");
+			TestSession bob = join(router, "bob");
+			router.disconnect(ann);
+			router.handle(bob, "bob:while you were away");
+			TestSession back = new TestSession("ann");
+
+			assertEquals("ann", router.resume(back, resumeFrame(ann)));
+			router.handle(bob, "bob:welcome back");
+
+			assertEquals("bob:while you were away", back.getReceived().get(1).getText());
+			assertEquals("bob:welcome back", last(back).getText());
+		} finally {
+			router.close();
+		}
+	}
+
+	@Test
+	void refusesAWrongToken() throws IOException {
+		MessageRouter router = resumingRouter();
+		try {
+			join(router, "ann");
+
+			assertNull(router.resume(new TestSession("ann"), new Frame(Opcode.JOIN, "ann", "not-the-token")));
+		} finally {
+			router.close();
+		}
+	}
+
+	@Test
+	void keepsTheNewSessionWhenTheOldConnectionClosesLate() throws IOException {
+		MessageRouter router = resumingRouter();
+		try {
+			TestSession ann = join(router, "ann");
+			TestSession bob = join(router, "bob");
+			TestSession back = new TestSession("ann");
+
+			router.resume(back, resumeFrame(ann));
+			router.disconnect(ann);												// The old connection notices it was closed
+			router.handle(bob, "bob:still there?");
+
+			assertTrue(ann.isClosed());
+			assertSame(back.getRoom(), bob.getRoom());
+			assertEquals("bob:still there?", last(back).getText());
+		} finally {
+			router.close();
+		}
+	}
+
+	@Test
+	void losesNoMessageWhenAResumeRacesTheOldConnectionClosing() throws Exception {
+		MessageRouter router = resumingRouter();
+		try {
+			TestSession bob = join(router, "bob");
+			for (int round = 0; round < 200; round++) {
+				TestSession ann = join(router, "ann");
+				TestSession back = new TestSession("ann");
+				AtomicBoolean sending = new AtomicBoolean(true);
+				CountDownLatch start = new CountDownLatch(1);
+				Thread sender = new Thread(() -> {
+					int count = 0;
+					while (sending.get() || count < 10) {
+						router.handle(bob, "bob:" + count++);
+						start.countDown();
+					}
+				});
+				sender.start();
+				start.await();
+				Thread closer = new Thread(() -> router.disconnect(ann));
+				closer.start();
+				router.resume(back, resumeFrame(ann));
+				closer.join();
+				sending.set(false);
+				sender.join();
+
+				TreeSet<Long> sequences = new TreeSet<>();						// Every message reached one connection or the other
+				addChat(sequences, ann);
+				addChat(sequences, back);
+				assertEquals(sequences.last() - sequences.first() + 1, sequences.size(), "gap in round " + round);
+				router.leave(back);
+			}
+		} finally {
+			router.close();
+		}
+	}
+
+	// A parked session keeps as many messages as an outbound queue, set high so the flood in the race test is
+	// never cut short by the drop oldest policy
+	private static MessageRouter resumingRouter() throws IOException {
+		return new MessageRouter(ServerConfig.fromArgs(new String[] { "--resume-grace-s=30", "--history=0", "--outbound-queue=1000000" }));
+	}
+
+	// The join request a reconnecting client sends, with the token the server gave the session
+	private static Frame resumeFrame(TestSession session) {
+		for (Payload payload : session.getReceived()) {
+			if (payload.getText().startsWith("#token")) {
+				return new Frame(Opcode.JOIN, session.getUserName(), payload.getText().substring(6));
+			}
+		}
+		throw new IllegalStateException("No token sent to " + session.getUserName());
+	}
+
+	private static void addChat(TreeSet<Long> sequences, TestSession session) {
+		for (Payload payload : session.getReceived()) {
+			Frame frame = payload.getFrame();
+			if (frame != null && frame.getOpcode() == Opcode.CHAT) {
+				sequences.add(frame.getSequence());
+			}
+		}
+	}
+
+	private static TestSession join(MessageRouter router, String name) {
+		TestSession session = new TestSession(name);
+		assertEquals(name, router.uniqueName(name, session));
+		router.join(session);
+		return session;
+	}
+
+	private static Payload last(TestSession session) {
+		List<Payload> received = session.getReceived();
+		return received.get(received.size() - 1);
+	}
+
+}
@@ -0,0 +1,96 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+import ie.gmit.dip.OutboundQueue.OverflowPolicy;
+
+/**
+ * Tests what each {@link OverflowPolicy} does with a message sent to a full {@link OutboundQueue}.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class OutboundQueueTest {
+
+	@Test
+	void dropOldestMakesRoomForTheNewMessage() {
+		LongAdder droppedTotal = new LongAdder();
+		OutboundQueue<String> queue = new OutboundQueue<>(2, OverflowPolicy.DROP_OLDEST, 0, droppedTotal);
+
+		assertTrue(queue.offer("one"));
+		assertTrue(queue.offer("two"));
+		assertTrue(queue.offer("three"));
+
+		assertEquals("two", queue.poll());
+		assertEquals("three", queue.poll());
+		assertEquals(1, queue.getDropped());
+		assertEquals(1, droppedTotal.sum());
+	}
+
+	@Test
+	void disconnectRefusesTheNewMessage() {
+		OutboundQueue<String> queue = new OutboundQueue<>(2, OverflowPolicy.DISCONNECT, 0);
+
+		assertTrue(queue.offer("one"));
+		assertTrue(queue.offer("two"));
+		assertFalse(queue.offer("three"));
+
+		assertEquals(2, queue.size());
+		assertEquals("one", queue.poll());
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	void blockGivesUpAfterItsTimeout() {
+		OutboundQueue<String> queue = new OutboundQueue<>(1, OverflowPolicy.BLOCK, 50);
+		queue.offer("one");
+		long start = System.nanoTime();
+
+		assertFalse(queue.offer("two"));
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	void blockWaitsForTheWriterToMakeRoom() throws InterruptedException {
+		OutboundQueue<String> queue = new OutboundQueue<>(1, OverflowPolicy.BLOCK, 5000);
+		queue.offer("one");
+		Thread writer = new Thread(() -> {
+			try {
+				TimeUnit.MILLISECONDS.sleep(50);
+				queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		writer.start();
+
+		assertTrue(queue.offer("two"));
+
+		writer.join();
+		assertEquals("two", queue.poll());
+		assertNull(queue.poll());
+		assertEquals(0, queue.getDropped());
+	}
+
+	@Test
+	void blockStopsWaitingWhenInterrupted() {
+		OutboundQueue<String> queue = new OutboundQueue<>(1, OverflowPolicy.BLOCK, 5000);
+		queue.offer("one");
+		Thread.currentThread().interrupt();
+
+		assertFalse(queue.offer("two"));
+		assertTrue(Thread.interrupted());									// Clears the flag for the next test too
+	}
+
+}
@@ -0,0 +1,89 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a {@link RecentHistory} keeps the last messages in order once the ring has wrapped round, and
+ * knows which readers it can still serve.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class RecentHistoryTest {
+
+	@Test
+	void returnsEverythingBeforeTheRingIsFull() {
+		RecentHistory history = history(4, 0, 3);
+
+		assertEquals(Arrays.asList(1L, 2L, 3L), sequences(history.snapshot(-1, 3)));
+	}
+
+	@Test
+	void keepsTheLastMessagesAfterWrappingRound() {
+		RecentHistory history = history(4, 0, 10);
+
+		assertEquals(10, history.getSequence());
+		assertEquals(Arrays.asList(7L, 8L, 9L, 10L), sequences(history.snapshot(-1, 10)));
+	}
+
+	@Test
+	void keepsItsSizeWhenItIsNotAPowerOfTwo() {
+		RecentHistory history = history(5, 0, 21);							// Eight slots, of which the last five are read
+
+		assertEquals(Arrays.asList(17L, 18L, 19L, 20L, 21L), sequences(history.snapshot(-1, 21)));
+	}
+
+	@Test
+	void returnsOnlyTheMessagesInTheRange() {
+		RecentHistory history = history(4, 0, 10);
+
+		assertEquals(Arrays.asList(9L, 10L), sequences(history.snapshot(8, 10)));
+		assertEquals(Arrays.asList(8L, 9L), sequences(history.snapshot(7, 9)));
+		assertTrue(history.snapshot(10, 10).isEmpty());
+	}
+
+	@Test
+	void coversOnlyReadersWhoMissedNoMoreThanTheRing() {
+		RecentHistory history = history(4, 0, 10);
+
+		assertTrue(history.covers(6));
+		assertTrue(history.covers(10));
+		assertFalse(history.covers(5));
+	}
+
+	@Test
+	void coversNothingBeforeItWasCreated() {
+		RecentHistory history = history(4, 100, 102);						// A room reopened from its journal
+
+		assertTrue(history.covers(100));
+		assertFalse(history.covers(99));
+		assertEquals(Arrays.asList(101L, 102L), sequences(history.snapshot(-1, 102)));
+	}
+
+	// Creates a ring after the sequence number and appends the messages after it up to the last one
+	private static RecentHistory history(int size, long start, long last) {
+		RecentHistory history = new RecentHistory(size, start);
+		for (long sequence = start + 1; sequence <= last; sequence++) {
+			history.append(sequence, Payload.of(new Frame(Opcode.CHAT, "ann", "message " + sequence).withSequence(sequence)));
+		}
+		return history;
+	}
+
+	private static List<Long> sequences(List<Payload> payloads) {
+		List<Long> sequences = new ArrayList<>();
+		for (Payload payload : payloads) {
+			sequences.add(payload.getFrame().getSequence());
+		}
+		return sequences;
+	}
+
+}
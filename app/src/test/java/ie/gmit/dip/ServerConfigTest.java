@@ -0,0 +1,41 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that {@link ServerConfig} refuses an option value out of its range rather than starting a server that
+ * misbehaves with it.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class ServerConfigTest {
+
+	@Test
+	void acceptsZeroWhereItTurnsAnOptionOff() {
+		ServerConfig config = ServerConfig.fromArgs(new String[] { "--flush-latency-us=0", "--stats-interval-s=0" });
+
+		assertEquals(0, config.getFlushLatencyMicros());
+		assertEquals(0, config.getStatsIntervalSeconds());
+	}
+
+	@Test
+	void refusesANegativeFlushLatency() {
+		assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[] { "--flush-latency-us=-1" }));
+	}
+
+	@Test
+	void refusesANegativeStatsInterval() {
+		assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[] { "--stats-interval-s=-5" }));
+	}
+
+	@Test
+	void refusesAZeroBlockTimeout() {
+		assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[] { "--block-timeout-ms=0" }));
+	}
+
+}
@@ -0,0 +1,81 @@
+package ie.gmit.dip;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A session with no connection for the unit tests. It keeps every payload sent to it so a test can check what
+ * a user would have received, in order.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class TestSession implements Session {
+
+	private volatile String userName;
+	private final List<Payload> received = new CopyOnWriteArrayList<>();	// Sent to from the replay and router threads
+	private volatile ChatRoom room;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor for a session that has not joined.
+	 *
+	 * @param userName The username reported by the session, or null.
+	 */
+	TestSession(String userName) {
+		this.userName = userName;
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @param userName The username the router gave the session when it logged in.
+	 */
+	void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	@Override
+	public void send(Payload payload) {
+		received.add(payload);
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return 0;
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return The payloads sent to the session so far, oldest first.
+	 */
+	List<Payload> getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return True once the session has been closed.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+}
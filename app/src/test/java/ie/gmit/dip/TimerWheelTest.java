@@ -0,0 +1,146 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a {@link TimerWheel} runs timeouts once they are due, puts them back when asked and never runs
+ * one that was cancelled, whether it was still waiting to go on the wheel or already in a slot.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class TimerWheelTest {
+
+	private static final long TICK_MS = 5;
+	private static final long WAIT_S = 5;
+
+	private TimerWheel wheel;
+
+	@BeforeEach
+	void startWheel() {
+		wheel = new TimerWheel(TICK_MS);
+		wheel.start("test-wheel");
+	}
+
+	@AfterEach
+	void stopWheel() {
+		wheel.stop();
+	}
+
+	@Test
+	void runsATimeoutOnceItIsDue() throws InterruptedException {
+		Counter counter = new Counter(-1);
+		long deadline = wheel.now() + 50;
+
+		wheel.schedule(counter, deadline);
+
+		assertTrue(counter.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertTrue(counter.ranAt >= deadline);
+	}
+
+	@Test
+	void runsATimeoutAgainAtItsNextDeadline() throws InterruptedException {
+		Counter counter = new Counter(3);
+
+		wheel.schedule(counter, wheel.now() + 10);
+
+		assertTrue(counter.ran.await(WAIT_S, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertEquals(3, counter.runs.get());								// Taken off once it returned a negative deadline
+	}
+
+	@Test
+	void neverRunsATimeoutCancelledBeforeItIsOnTheWheel() throws InterruptedException {
+		Counter cancelled = new Counter(-1);
+		Counter control = new Counter(-1);
+
+		wheel.schedule(cancelled, wheel.now() + 50);
+		wheel.cancel(cancelled);
+		wheel.schedule(control, wheel.now() + 100);
+
+		assertTrue(control.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertEquals(0, cancelled.runs.get());
+	}
+
+	@Test
+	void neverRunsATimeoutCancelledInItsSlot() throws InterruptedException {
+		Counter cancelled = new Counter(-1);
+		Counter control = new Counter(-1);
+
+		wheel.schedule(cancelled, wheel.now() + 200);
+		TimeUnit.MILLISECONDS.sleep(50);									// Several ticks, so it is in its slot
+		wheel.cancel(cancelled);
+		wheel.schedule(control, wheel.now() + 300);
+
+		assertTrue(control.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertEquals(0, cancelled.runs.get());
+	}
+
+	@Test
+	void keepsTheOtherTimeoutsOfASlot() throws InterruptedException {
+		Counter first = new Counter(-1);
+		Counter cancelled = new Counter(-1);
+		Counter last = new Counter(-1);
+		long deadline = wheel.now() + 100;									// The same slot, linked one after another
+
+		wheel.schedule(first, deadline);
+		wheel.schedule(cancelled, deadline);
+		wheel.schedule(last, deadline);
+		TimeUnit.MILLISECONDS.sleep(20);
+		wheel.cancel(cancelled);
+
+		assertTrue(first.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertTrue(last.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertEquals(0, cancelled.runs.get());
+	}
+
+	@Test
+	void allowsCancelAfterTheTimeoutRan() throws InterruptedException {
+		Counter counter = new Counter(-1);
+		Counter control = new Counter(-1);
+
+		wheel.schedule(counter, wheel.now() + 10);
+		assertTrue(counter.ran.await(WAIT_S, TimeUnit.SECONDS));
+		wheel.cancel(counter);
+		wheel.schedule(control, wheel.now() + 50);
+
+		assertTrue(control.ran.await(WAIT_S, TimeUnit.SECONDS));
+		assertEquals(1, counter.runs.get());
+	}
+
+	/**
+	 * A timeout that counts its runs and puts itself back on the wheel until it has run a number of times.
+	 */
+	private static class Counter extends TimerWheel.Timeout {
+
+		private final int times;
+		private final AtomicInteger runs = new AtomicInteger();
+		private final CountDownLatch ran;
+		private volatile long ranAt;
+
+		Counter(int times) {
+			this.times = Math.max(1, times);
+			this.ran = new CountDownLatch(this.times);
+		}
+
+		@Override
+		protected long expire(long now) {
+			ranAt = now;
+			runs.incrementAndGet();
+			ran.countDown();
+			return runs.get() < times ? now + 10 : -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,78 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a {@link TokenBucket} lets a burst through at once and spaces out the messages after it.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class TokenBucketTest {
+
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);	// 10 messages a second
+
+	@Test
+	void letsABurstThrough() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+
+		assertEquals(0, bucket.reserve(now));
+		assertEquals(0, bucket.reserve(now));
+		assertEquals(0, bucket.reserve(now));
+	}
+
+	@Test
+	void spacesOutMessagesAfterTheBurst() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			bucket.reserve(now);
+		}
+
+		assertEquals(INTERVAL, bucket.reserve(now));
+		assertEquals(2 * INTERVAL, bucket.reserve(now));					// Each waiting message takes the next token to come
+	}
+
+	@Test
+	void refillsAtTheSteadyRate() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			bucket.reserve(now);
+		}
+
+		assertEquals(0, bucket.reserve(now + 2 * INTERVAL));
+		assertEquals(INTERVAL, bucket.reserve(now + 2 * INTERVAL));
+	}
+
+	@Test
+	void fillsUpAfterAQuietSpell() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			bucket.reserve(now);
+		}
+		long later = now + TimeUnit.SECONDS.toNanos(5);
+
+		assertEquals(0, bucket.reserve(later));
+		assertEquals(0, bucket.reserve(later));
+		assertEquals(0, bucket.reserve(later));
+		assertEquals(INTERVAL, bucket.reserve(later));						// No more than a full bucket is saved up
+	}
+
+	@Test
+	void treatsABurstBelowOneAsOne() {
+		TokenBucket bucket = new TokenBucket(10, 0);
+		long now = System.nanoTime();
+
+		assertEquals(0, bucket.reserve(now));
+		assertEquals(INTERVAL, bucket.reserve(now));
+	}
+
+}
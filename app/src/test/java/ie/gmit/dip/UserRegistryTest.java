@@ -0,0 +1,113 @@
+package ie.gmit.dip;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the {@link UserRegistry} never gives one name to two sessions, even when they ask at once.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+class UserRegistryTest {
+
+	@Test
+	void addsASuffixToANameInUse() {
+		UserRegistry users = new UserRegistry();
+
+		assertEquals("ann", users.reserve("ann", new TestSession("ann")));
+		assertEquals("ann1", users.reserve("ann", new TestSession("ann1")));
+		assertEquals("ann2", users.reserve("ann", new TestSession("ann2")));
+		assertEquals(3, users.size());
+	}
+
+	@Test
+	void freesANameWhenItsSessionLeaves() {
+		UserRegistry users = new UserRegistry();
+		Session first = new TestSession("ann");
+		users.reserve("ann", first);
+		users.reserve("ann", new TestSession("ann1"));
+
+		assertTrue(users.remove("ann", first));
+		assertEquals("ann", users.reserve("ann", new TestSession("ann")));
+	}
+
+	@Test
+	void onlyRemovesANameForTheSessionThatHoldsIt() {
+		UserRegistry users = new UserRegistry();
+		Session holder = new TestSession("ann");
+		users.reserve("ann", holder);
+
+		assertFalse(users.remove("ann", new TestSession("ann")));
+		assertFalse(users.remove(null, holder));
+		assertSame(holder, users.get("ann"));
+	}
+
+	@Test
+	void claimsOnlyAFreeName() {
+		UserRegistry users = new UserRegistry();
+		users.reserve("ann", new TestSession("ann"));
+
+		assertFalse(users.claim("ann", new TestSession("ann")));
+		assertTrue(users.claim("bob", new TestSession("bob")));
+		assertTrue(users.contains("bob"));
+	}
+
+	@Test
+	void replacesOnlyTheSessionThatHoldsTheName() {
+		UserRegistry users = new UserRegistry();
+		Session old = new TestSession("ann");
+		Session parked = new TestSession("ann");
+		users.reserve("ann", old);
+
+		assertFalse(users.replace("ann", parked, new TestSession("ann")));
+		assertTrue(users.replace("ann", old, parked));
+		assertSame(parked, users.get("ann"));
+		assertNull(users.get("bob"));
+	}
+
+	@Test
+	void neverGivesOneNameToTwoSessionsAtOnce() throws Exception {
+		UserRegistry users = new UserRegistry();
+		int threads = 8;
+		int perThread = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<List<String>>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				tasks.add(() -> {
+					List<String> names = new ArrayList<>();
+					for (int i = 0; i < perThread; i++) {
+						names.add(users.reserve("ann", new TestSession(null)));
+					}
+					return names;
+				});
+			}
+			Set<String> names = new HashSet<>();
+			for (Future<List<String>> future : executor.invokeAll(tasks)) {
+				names.addAll(future.get());
+			}
+
+			assertEquals(threads * perThread, names.size());
+			assertEquals(threads * perThread, users.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package ie.gmit.dip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.dip.Frame;
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.Opcode;
+
+/**
+ * Measures the fan-out of one group message to every other member of a room, for a text and a binary sender.
+ * Half of the recipients use each protocol so both encodings are paid for once per message.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	private int recipients;
+
+	private MessageRouter router;
+	private StubSession sender;
+	private Frame frame;
+
+	@Setup
+	public void setUp() {
+		router = new MessageRouter();
+		sender = new StubSession(router, "sender", false);
+		for (int i = 0; i < recipients; i++) {
+			new StubSession(router, "user" + i, i % 2 == 0);
+		}
+		frame = new Frame(Opcode.CHAT, "", "hello everyone in the room");
+	}
+
+	@Benchmark
+	public boolean groupMessageText() {
+		return router.handle(sender, "sender:hello everyone in the room");
+	}
+
+	@Benchmark
+	public boolean groupMessageBinary() {
+		return router.handle(sender, frame);
+	}
+
+}
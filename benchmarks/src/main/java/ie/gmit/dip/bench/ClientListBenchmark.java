@@ -0,0 +1,54 @@
+package ie.gmit.dip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.dip.MessageRouter;
+
+/**
+ * Measures building and sending the #userlist reply for a room of the given size.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientListBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	private int users;
+
+	private MessageRouter router;
+	private StubSession sender;
+
+	@Setup
+	public void setUp() {
+		router = new MessageRouter();
+		sender = new StubSession(router, "sender", false);
+		for (int i = 0; i < users; i++) {
+			new StubSession(router, "user" + i, false);
+		}
+	}
+
+	@Benchmark
+	public boolean clientList() {
+		return router.handle(sender, "#userlist");
+	}
+
+}
@@ -0,0 +1,80 @@
+package ie.gmit.dip.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.dip.Frame;
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.Opcode;
+import ie.gmit.dip.ServerConfig;
+
+/**
+ * Measures the fan-out of one long group message to binary recipients that read deflated frames, against the
+ * same message sent plain. The message is deflated once however many recipients there are, so the cost over a
+ * plain broadcast should not grow with the size of the room.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "10", "1000" })
+	private int recipients;
+
+	@Param({ "1024", "16384" })
+	private int size;
+
+	private MessageRouter plainRouter;
+	private MessageRouter deflateRouter;
+	private StubSession plainSender;
+	private StubSession deflateSender;
+	private Frame frame;
+
+	@Setup
+	public void setUp() {
+		plainRouter = new MessageRouter();
+		deflateRouter = new MessageRouter();
+		plainSender = new StubSession(plainRouter, "sender", true);
+		deflateSender = new StubSession(deflateRouter, "sender", true);
+		for (int i = 0; i < recipients; i++) {
+			new StubSession(plainRouter, "user" + i, true);
+			new StubSession(deflateRouter, "user" + i, true, ServerConfig.DEFAULT_COMPRESS_THRESHOLD);
+		}
+		StringBuilder body = new StringBuilder(size);
+		while (body.length() < size) {
+			body.append("a pasted log line with a timestamp ").append(body.length()).append('\n');
+		}
+		char[] text = Arrays.copyOf(body.toString().toCharArray(), size);
+		frame = new Frame(Opcode.CHAT, "", new String(text));
+	}
+
+	@Benchmark
+	public boolean groupMessagePlain() {
+		return plainRouter.handle(plainSender, frame);
+	}
+
+	@Benchmark
+	public boolean groupMessageDeflated() {
+		return deflateRouter.handle(deflateSender, frame);
+	}
+
+}
@@ -0,0 +1,153 @@
+package ie.gmit.dip.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.Server;
+import ie.gmit.dip.ServerConfig;
+
+/**
+ * Load test that shows how far the number of connected clients scales with each {@link ServerConfig.Executor}
+ * on the same machine. A thread per connection {@link Server} is started in this process and clients are
+ * connected one after another until the target is reached or a connection fails. All client sockets are
+ * drained by a single selector thread so the test itself does not need a thread per client.
+ *
+ * Usage: <code>java -cp benchmarks/target/benchmarks.jar ie.gmit.dip.bench.ConnectionLoadTest --connections=5000
+ * --executor=virtual</code>. Both executors are tested in turn when <code>--executor</code> is left out, and
+ * virtual threads are skipped on a Java run time without them. The open file limit of the shell
+ * (<code>ulimit -n</code>) must allow two sockets per connection.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ConnectionLoadTest {
+
+	private static final long JOIN_TIMEOUT_MS = 60_000;						// Time allowed for the server to register every client
+
+	public static void main(String[] args) throws Exception {
+		int connections = 2000;
+		List<ServerConfig.Executor> executors = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--connections=")) {
+				connections = Integer.parseInt(arg.substring("--connections=".length()));
+			} else if (arg.startsWith("--executor=")) {
+				executors.add(ServerConfig.Executor.valueOf(arg.substring("--executor=".length()).toUpperCase()));
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		if (executors.isEmpty()) {
+			executors.add(ServerConfig.Executor.PLATFORM);
+			executors.add(ServerConfig.Executor.VIRTUAL);
+		}
+
+		for (ServerConfig.Executor executor : executors) {
+			run(executor, connections);
+			System.gc();
+		}
+	}
+
+	// Method starts a server with the input executor and connects clients to it until the target is reached
+	private static void run(ServerConfig.Executor executor, int target) throws IOException, InterruptedException {
+		MessageRouter router = new MessageRouter();
+		ServerSocket serverSocket = new ServerSocket(0, 1024);				// Any free port with a large accept backlog
+		Server server;
+		try {
+			server = new Server(serverSocket, router, ServerConfig.fromArgs(new String[] { "--executor=" + executor.name() }));
+		} catch (UnsupportedOperationException e) {
+			System.out.printf("%-8s skipped: %s%n", executor.name().toLowerCase(), e.getMessage());	// Virtual threads before Java 21
+			serverSocket.close();
+			router.close();
+			return;
+		}
+		Thread acceptThread = new Thread(server::runServer, "accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		Selector selector = Selector.open();
+		Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();		// Channels waiting to be registered by the drain thread
+		Thread drainThread = new Thread(() -> drain(selector, pending), "drain");	// Reads and discards what the server sends
+		drainThread.setDaemon(true);
+		drainThread.start();
+
+		List<SocketChannel> clients = new ArrayList<>();
+		InetSocketAddress address = new InetSocketAddress("localhost", serverSocket.getLocalPort());
+		long start = System.nanoTime();
+		String failure = null;
+		try {
+			while (clients.size() < target) {
+				SocketChannel channel = SocketChannel.open(address);
+				clients.add(channel);
+				channel.write(ByteBuffer.wrap(("user" + clients.size() + "\n").getBytes(StandardCharsets.UTF_8)));
+				channel.configureBlocking(false);
+				pending.add(channel);
+				selector.wakeup();
+			}
+		} catch (IOException e) {
+			failure = e.getMessage();
+		}
+
+		// Wait for the server threads to add every connected client to the chat room
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MS;
+		while (router.getUsers().size() < clients.size() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+		Runtime runtime = Runtime.getRuntime();
+		System.out.printf("%-8s connected %d/%d, joined %d in %d ms, live platform threads %d, heap used %d MB%s%n",
+				executor.name().toLowerCase(), clients.size(), target, router.getUsers().size(), elapsedMs,
+				ManagementFactory.getThreadMXBean().getThreadCount(),
+				(runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024),
+				failure == null ? "" : ", stopped by: " + failure);
+
+		// Disconnect every client and stop the server before the next run
+		drainThread.interrupt();											// Interrupting wakes the selector, the drain thread then closes it
+		drainThread.join();
+		for (SocketChannel channel : clients) {
+			channel.close();
+		}
+		server.closeServerSocket();
+	}
+
+	// Method reads from every client socket so the server is never blocked on a full socket buffer
+	private static void drain(Selector selector, Queue<SocketChannel> pending) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				SocketChannel channel;
+				while ((channel = pending.poll()) != null) {
+					channel.register(selector, SelectionKey.OP_READ);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					buffer.clear();
+					if (((SocketChannel) key.channel()).read(buffer) < 0) {
+						key.cancel();
+					}
+				}
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package ie.gmit.dip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.dip.Frame;
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.Opcode;
+
+/**
+ * Measures resolving and delivering a direct message as the reading thread does for each line it receives.
+ * The recipient is the last user to join so a linear search would have to look at every user.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectMessageBenchmark {
+
+	@Param({ "10", "100", "1000", "2000" })
+	private int users;
+
+	private MessageRouter router;
+	private StubSession sender;
+	private String line;
+	private Frame frame;
+
+	@Setup
+	public void setUp() {
+		router = new MessageRouter();
+		sender = new StubSession(router, "sender", false);
+		String last = null;
+		for (int i = 0; i < users; i++) {
+			last = new StubSession(router, "user" + i, false).getUserName();
+		}
+		line = "sender:#" + last + " are you there?";
+		frame = new Frame(Opcode.DM, last, "are you there?");
+	}
+
+	@Benchmark
+	public boolean directMessageText() {
+		return router.handle(sender, line);
+	}
+
+	@Benchmark
+	public boolean directMessageBinary() {
+		return router.handle(sender, frame);
+	}
+
+}
@@ -0,0 +1,88 @@
+package ie.gmit.dip.bench;
+
+import ie.gmit.dip.ChatRoom;
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.Payload;
+import ie.gmit.dip.Session;
+
+/**
+ * An in-memory stand-in for a connected client so the router can be measured without sockets. Each payload
+ * sent to the session is encoded for its protocol, the same work a real writer does, and its length is added
+ * to a counter instead of being written.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class StubSession implements Session {
+
+	private final String userName;
+	private final boolean binary;
+	private final int deflateAbove;
+	private volatile ChatRoom room;
+	private long bytesSent;													// Keeps the encoded bytes from being optimised away
+
+	/**
+	 * Constructor reserves a username and joins the chat room.
+	 *
+	 * @param router The router to join.
+	 * @param inputName The username asked for, a suffix is added if it is in use.
+	 * @param binary True to receive payloads as binary frames, false for lines of text.
+	 */
+	public StubSession(MessageRouter router, String inputName, boolean binary) {
+		this(router, inputName, binary, Payload.NO_DEFLATE);
+	}
+
+	/**
+	 * Constructor for a session that may be sent deflated frames.
+	 *
+	 * @param router The router to join.
+	 * @param inputName The username asked for, a suffix is added if it is in use.
+	 * @param binary True to receive payloads as binary frames, false for lines of text.
+	 * @param deflateAbove Length from which frames are deflated, or {@link Payload#NO_DEFLATE}.
+	 */
+	public StubSession(MessageRouter router, String inputName, boolean binary, int deflateAbove) {
+		this.binary = binary;
+		this.deflateAbove = deflateAbove;
+		this.userName = router.uniqueName(inputName, this);
+		router.join(this);
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public void send(Payload payload) {
+		bytesSent += payload.length(binary, deflateAbove);
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return 0;
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to close
+	}
+
+	/**
+	 * @return The number of encoded bytes sent to this session.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+}
@@ -0,0 +1,298 @@
+package ie.gmit.dip.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import ie.gmit.dip.HandshakePool;
+import ie.gmit.dip.MessageRouter;
+import ie.gmit.dip.NioServer;
+import ie.gmit.dip.Server;
+import ie.gmit.dip.ServerConfig;
+import ie.gmit.dip.TlsContexts;
+
+/**
+ * Benchmark of the cost of TLS against plain text. A plain text and a TLS server are started in this process
+ * with the same options and measured in turn:
+ * <ol>
+ * 	<li><strong>Handshakes:</strong><p>Connections a second, each joining the chat and leaving again. TLS is
+ * 	measured with a new client context for every connection, so each one runs a full handshake, and with one
+ * 	shared context, so each one resumes the session of the connection before it.</p>
+ * 	<li><strong>Throughput:</strong><p>Messages a second from one user to another in the same room once both
+ * 	are connected.</p>
+ * <ol>
+ *
+ * Usage: <code>java -cp benchmarks/target/benchmarks.jar ie.gmit.dip.bench.TlsBenchmark
+ * --keystore=certs/server.p12 --truststore=certs/truststore.p12</code> with the files made by
+ * <code>scripts/gen-test-certs.sh</code>. Other options are <code>--password</code>,
+ * <code>--mode</code> (<code>thread</code> or <code>nio</code>), <code>--connections</code>,
+ * <code>--clients</code> (threads connecting at once), <code>--messages</code> and <code>--size</code>.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class TlsBenchmark {
+
+	private static final int WINDOW = 512;									// Most messages in flight, well inside the outbound queue so none are dropped
+	private static final int BATCH = 64;									// Messages the sender writes at once, as a busy client would
+
+	private String keystore;
+	private String truststore;
+	private String password = "changeit";
+	private String mode = "thread";
+	private int connections = 2000;
+	private int clients = 4;
+	private int messages = 200_000;
+	private int size = 100;
+
+	private TrustManager[] trustManagers;
+
+	public static void main(String[] args) throws Exception {
+		TlsBenchmark benchmark = new TlsBenchmark();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0) {
+				throw new IllegalArgumentException("Expected --name=value but found: " + arg);
+			}
+			benchmark.set(arg.substring(2, split), arg.substring(split + 1));
+		}
+		if (benchmark.keystore == null || benchmark.truststore == null) {
+			throw new IllegalArgumentException("The key and trust stores must be given with --keystore and --truststore");
+		}
+		benchmark.run();
+		System.exit(0);															// The servers' threads never stop on their own
+	}
+
+	// Method sets a single command line option
+	private void set(String name, String value) {
+		switch (name) {
+		case "keystore":
+			keystore = value;
+			break;
+		case "truststore":
+			truststore = value;
+			break;
+		case "password":
+			password = value;
+			break;
+		case "mode":
+			mode = value;
+			break;
+		case "connections":
+			connections = Integer.parseInt(value);
+			break;
+		case "clients":
+			clients = Integer.parseInt(value);
+			break;
+		case "messages":
+			messages = Integer.parseInt(value);
+			break;
+		case "size":
+			size = Integer.parseInt(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+		if (connections < 1 || clients < 1 || messages < 1 || size < 1) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+		}
+	}
+
+	// Method starts both servers and prints each measurement against plain text
+	private void run() throws IOException, GeneralSecurityException, InterruptedException {
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(truststore)) {
+			store.load(in, password.toCharArray());
+		}
+		trust.init(store);
+		trustManagers = trust.getTrustManagers();
+
+		String[] options = { "--mode=" + mode, "--rate-limit=0", "--resume-grace-s=0", "--history=0" };
+		int plainPort = start(ServerConfig.fromArgs(options));
+		String[] tlsOptions = Arrays.copyOf(options, options.length + 2);
+		tlsOptions[options.length] = "--tls-keystore=" + keystore;
+		tlsOptions[options.length + 1] = "--tls-password=" + password;
+		int tlsPort = start(ServerConfig.fromArgs(tlsOptions));
+		SSLContext shared = newClientContext();
+
+		System.out.printf("%s mode, %d connections from %d clients, %d messages of %d bytes%n",
+				mode, connections, clients, messages, size);
+		connect(plainPort, null, false, connections / 10);						// Warm up every path before measuring
+		connect(tlsPort, null, true, connections / 10);
+		connect(tlsPort, shared, false, connections / 10);
+		report("handshakes", "plain", connect(plainPort, null, false, connections), "connections/s");
+		report("handshakes", "tls full", connect(tlsPort, null, true, connections), "connections/s");
+		report("handshakes", "tls resumed", connect(tlsPort, shared, false, connections), "connections/s");
+
+		throughput(plainPort, null, messages);
+		throughput(tlsPort, shared, messages);
+		report("throughput", "plain", throughput(plainPort, null, messages), "messages/s");
+		report("throughput", "tls", throughput(tlsPort, shared, messages), "messages/s");
+	}
+
+	// Method starts a server on any free port and returns the port
+	private int start(ServerConfig config) throws IOException, GeneralSecurityException {
+		MessageRouter router = new MessageRouter(config);
+		HandshakePool handshakes = null;
+		if (config.isTls()) {
+			handshakes = new HandshakePool(config.newSslContext(), config.getHandshakeThreads(), router.getMetrics());
+		}
+		Thread thread;
+		int port;
+		if (config.getMode() == ServerConfig.Mode.NIO) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(0), 1024);
+			port = channel.socket().getLocalPort();
+			NioServer server = new NioServer(channel, router, config, handshakes);
+			thread = new Thread(server::runServer, "accept-" + port);
+		} else {
+			ServerSocket serverSocket = new ServerSocket(0, 1024);				// Any free port with a large accept backlog
+			port = serverSocket.getLocalPort();
+			Server server = new Server(serverSocket, router, config, handshakes);
+			thread = new Thread(server::runServer, "accept-" + port);
+		}
+		thread.setDaemon(true);
+		thread.start();
+		return port;
+	}
+
+	// Method connects, joins and leaves the chat over and over from each client thread, returning connections a second
+	private double connect(int port, SSLContext shared, boolean full, int count) throws InterruptedException {
+		AtomicInteger remaining = new AtomicInteger(count);
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			Thread thread = new Thread(() -> {
+				while (remaining.getAndDecrement() > 0) {
+					try (Socket socket = open(port, full ? newClientContext() : shared)) {
+						BufferedReader in = join(socket, "bench");
+						in.readLine();											// By the first reply the session can be resumed
+						write(socket.getOutputStream(), "\\q\n");
+					} catch (IOException | GeneralSecurityException e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (failures.get() > 0) {
+			System.out.println(failures.get() + " connections failed");
+		}
+		return count / seconds;
+	}
+
+	// Method sends messages from one user to another in the same room, returning messages a second
+	private double throughput(int port, SSLContext context, int count) throws InterruptedException {
+		char[] body = new char[size];
+		Arrays.fill(body, 'x');
+		String line = new String(body) + "\n";
+		try (Socket receiver = open(port, context)) {
+			BufferedReader in = join(receiver, "receiver");
+			in.readLine();														// Joined before the sender connects, so it sees the sender join
+			try (Socket sender = open(port, context)) {
+				String name = join(sender, "sender").readLine().substring("#name".length());	// The name the server gave the sender
+				String text;
+				while ((text = in.readLine()) != null && !text.contains(name + " has entered")) {
+					// Skip the receiver's own welcome up to the notice that the sender joined
+				}
+				AtomicInteger received = new AtomicInteger();
+				Thread writer = new Thread(() -> {
+					try {
+						OutputStream out = sender.getOutputStream();
+						byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+						byte[] batch = new byte[bytes.length * BATCH];
+						for (int i = 0; i < BATCH; i++) {
+							System.arraycopy(bytes, 0, batch, i * bytes.length, bytes.length);
+						}
+						for (int sent = 0; sent < count; sent += BATCH) {
+							while (sent - received.get() > WINDOW - BATCH) {
+								Thread.yield();										// Wait for the receiver to catch up
+							}
+							out.write(batch, 0, bytes.length * Math.min(BATCH, count - sent));
+							out.flush();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				long start = System.nanoTime();
+				writer.start();
+				while (received.get() < count && (text = in.readLine()) != null) {
+					if (text.length() == name.length() + 1 + size && text.startsWith(name)) {	// Relayed as name:message
+						received.incrementAndGet();
+					}
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				writer.join();
+				write(sender.getOutputStream(), "\\q\n");
+				write(receiver.getOutputStream(), "\\q\n");
+				while (in.readLine() != null) {
+					// Both users are gone once the server closes the receiver, so the next run starts with an empty room
+				}
+				return received.get() / seconds;
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	// Method connects in plain text if there is no context, otherwise over TLS
+	private Socket open(int port, SSLContext context) throws IOException, GeneralSecurityException {
+		if (context == null) {
+			Socket socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			return socket;
+		}
+		return TlsContexts.connect(context, "localhost", port);
+	}
+
+	// Method sends the username and returns a reader of the lines the server sends back
+	private static BufferedReader join(Socket socket, String userName) throws IOException {
+		write(socket.getOutputStream(), userName + "\n");
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	// Method creates a client context with no sessions to resume, so its first connection runs a full handshake
+	private SSLContext newClientContext() throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers, null);
+		return context;
+	}
+
+	private static void report(String test, String transport, double rate, String unit) {
+		System.out.printf("%-11s %-12s %,12.0f %s%n", test, transport, rate, unit);
+	}
+
+}
@@ -0,0 +1,57 @@
+package ie.gmit.dip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ie.gmit.dip.MessageRouter;
+
+/**
+ * Measures assigning a username when many users have already asked for the same name, i.e. ann, ann1 ... are
+ * all taken. The name is released again after each call so every call sees the same number of collisions.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniqueNameBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	private int collisions;
+
+	private MessageRouter router;
+	private StubSession session;
+
+	@Setup
+	public void setUp() {
+		router = new MessageRouter();
+		for (int i = 0; i < collisions; i++) {
+			new StubSession(router, "ann", false);
+		}
+		session = new StubSession(router, "newcomer", false);
+	}
+
+	@Benchmark
+	public String uniqueName() {
+		String name = router.uniqueName("ann", session);
+		router.getUsers().remove(name, session);
+		return name;
+	}
+
+}
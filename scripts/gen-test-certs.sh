@@ -0,0 +1,19 @@
+#!/bin/sh
+# Creates a self-signed key and certificate for localhost to test the TLS mode with. The server is started
+# with --tls-keystore=<dir>/server.p12 and the client with --tls --truststore=<dir>/truststore.p12, both
+# with the password "changeit". The files are written to ./certs unless another directory is given.
+set -e
+
+DIR=${1:-certs}
+PASSWORD=changeit
+mkdir -p "$DIR"
+rm -f "$DIR/server.p12" "$DIR/server.crt" "$DIR/truststore.p12"
+
+keytool -genkeypair -alias chat -keyalg RSA -keysize 2048 -validity 365 \
+	-dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" \
+	-storetype PKCS12 -keystore "$DIR/server.p12" -storepass "$PASSWORD" -keypass "$PASSWORD"
+keytool -exportcert -rfc -alias chat -keystore "$DIR/server.p12" -storepass "$PASSWORD" -file "$DIR/server.crt"
+keytool -importcert -noprompt -alias chat -file "$DIR/server.crt" \
+	-storetype PKCS12 -keystore "$DIR/truststore.p12" -storepass "$PASSWORD"
+
+echo "Keystore $DIR/server.p12 and truststore $DIR/truststore.p12, password $PASSWORD"
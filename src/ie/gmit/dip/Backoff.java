@@ -0,0 +1,32 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between attempts to open a connection again, shared by the {@link ChatClient} reconnecting to a server
+ * and the {@link ClusterNode} relinking to another node. The delay doubles with each attempt from half a second
+ * up to 30 seconds, and half of it is random so a crowd of clients dropped at the same time does not come back
+ * all at once.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+final class Backoff {
+
+	static final long BASE_MS = 500;
+	static final long MAX_MS = 30_000;
+
+	private Backoff() {
+	}
+
+	/**
+	 * @param attempt The number of the attempt about to be made, from 1.
+	 * @return Milliseconds to wait before the attempt.
+	 */
+	static long delay(int attempt) {
+		long delay = Math.min(MAX_MS, BASE_MS << Math.min(Math.max(attempt, 1) - 1, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);	// Half fixed and half random
+	}
+
+}
@@ -0,0 +1,174 @@
+package ie.gmit.dip;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes queued messages to a blocking output stream, coalescing them so that a burst of messages costs one
+ * flush rather than one per message. After the first message of a batch is written the writer keeps taking
+ * messages that are already queued and flushes when the queue is empty or the flush latency budget has been
+ * used up, whichever comes first. A lone message is therefore never delayed.
+ *
+ * The writer is run on a thread of its own and is used by both the server's {@link ClientThread} and the
+ * {@link Client} application.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class BatchingWriter implements Runnable {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final OutputStream outputStream;
+	private final OutboundQueue<Payload> queue;
+	private final long flushLatencyNanos;									// Longest a written message may wait for a flush
+	private final FlushStats stats;
+	private Thread thread;													// Interrupted to stop the writer waiting on the queue, guarded by this
+	private volatile boolean closed;
+	private volatile IOException failure;									// Set if the stream could not be written to
+	private volatile boolean binary;										// Write frames of the binary protocol instead of lines
+	private volatile int deflateAbove = Payload.NO_DEFLATE;					// Length from which frames are written deflated
+
+	/**
+	 * Constructor for a writer over a socket's output stream.
+	 *
+	 * @param outputStream The stream to write to. It is buffered by the writer.
+	 * @param queue The queue the messages are taken from.
+	 * @param flushLatencyMicros How long written messages may wait for more to join the batch, in microseconds.
+	 * @param stats Counters for the flushes made by this writer.
+	 */
+	public BatchingWriter(OutputStream outputStream, OutboundQueue<Payload> queue, long flushLatencyMicros,
+			FlushStats stats) {
+		this.outputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+		this.queue = queue;
+		this.flushLatencyNanos = TimeUnit.MICROSECONDS.toNanos(flushLatencyMicros);
+		this.stats = stats;
+	}
+
+	/**
+	 * Queues a message to be written.
+	 *
+	 * @param payload The encoded message.
+	 * @return False if the queue is full and the overflow policy says the connection should be closed.
+	 * @throws IOException If the writer has already failed or been closed.
+	 */
+	public boolean send(Payload payload) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("Writer closed");
+		}
+		return queue.offer(payload);
+	}
+
+	/**
+	 * @return The number of messages waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Switches the writer between the text and binary protocols. Set before any message that depends on the
+	 * protocol is queued.
+	 *
+	 * @param binary True to write each payload as a {@link Frame}, false to write it as a line of text.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * Sets the length from which frames are written deflated. Set before any message is queued for the user.
+	 *
+	 * @param deflateAbove Length in bytes, or {@link Payload#NO_DEFLATE} if the client cannot read deflated frames.
+	 */
+	public void setDeflateAbove(int deflateAbove) {
+		this.deflateAbove = deflateAbove;
+	}
+
+	/**
+	 * Takes messages from the queue and writes them until the writer is closed or the stream fails.
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			thread = Thread.currentThread();
+		}
+		try {
+			while (!closed) {												// Checked after thread is set so a close is never missed
+				Payload payload = queue.take(); 							// Blocking operation
+				long flushBy = System.nanoTime() + flushLatencyNanos;
+				int batched = 0;
+				do {
+					payload.writeTo(outputStream, binary, deflateAbove);
+					batched++;
+					if (System.nanoTime() - flushBy >= 0) {
+						break;												// Latency budget used up, flush what we have
+					}
+					payload = queue.poll();
+				} while (payload != null);
+				outputStream.flush();										// Queue is empty or the budget is used up
+				stats.record(batched);
+			}
+		} catch (InterruptedException e) {
+			// Interrupted by close()
+		} catch (IOException e) {
+			failure = e;
+			closed = true;
+			release();
+			return;
+		}
+		writeRemaining();
+		release();
+	}
+
+	// Method hands the thread back, so a close after this point cannot interrupt whatever task the pool runs on it next
+	private synchronized void release() {
+		thread = null;
+		Thread.interrupted();												// Clears an interrupt from a close that raced the end of the loop
+	}
+
+	// Method writes the messages queued before the writer was closed
+	private void writeRemaining() {
+		try {
+			int batched = 0;
+			Payload payload;
+			while ((payload = queue.poll()) != null) {
+				payload.writeTo(outputStream, binary, deflateAbove);
+				batched++;
+			}
+			if (batched > 0) {
+				outputStream.flush();
+				stats.record(batched);
+			}
+		} catch (IOException e) {
+			// The connection is closing, nothing more can be sent
+		}
+	}
+
+	/**
+	 * Writes anything still queued as a last batch, then stops the writer. Errors are ignored as the
+	 * connection is closing.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The error that stopped the writer, or null if it has not failed.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+}
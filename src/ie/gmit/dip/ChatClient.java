@@ -0,0 +1,827 @@
+package ie.gmit.dip;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A chat client that can be embedded in any application, the console {@link Client} is one user of it. The
+ * client connects, sends what it is given and hands what arrives to its subscribers:
+ * <pre>
+ * ChatClient chat = new ChatClient("localhost", 5000, "amy");
+ * chat.subscribe(messages -&gt; messages.forEach(System.out::println));
+ * chat.connect();
+ * chat.send("hello");
+ * chat.send("\\q");
+ * </pre>
+ *
+ * The socket is an {@link AsynchronousSocketChannel}, so reading and writing run on the threads of the
+ * channel's group and never on the caller's thread. Each message read is put on a bounded queue and a
+ * dispatch thread hands the subscribers every message that has arrived since their last call in one batch,
+ * so a burst of thousands of messages is rendered a batch at a time rather than a line at a time. When the
+ * queue is full the client stops reading from the socket until the subscribers catch up, so nothing is
+ * dropped and the server's outbound queue takes the backlog. Sending only waits if the send queue is full.
+ *
+ * The client answers the server's pings, keeps the session token and, if the connection drops, reconnects
+ * with exponential backoff and takes its session back. A binary client also asks for the messages it missed
+ * in its room if the session had expired. Over TLS the handshake runs on the connecting thread and the same
+ * {@link SSLEngine} then encrypts and decrypts on the channel's threads.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ChatClient implements Closeable {
+
+	private static final int INBOUND_QUEUE = 8192;							// Messages read but not yet handed to the subscribers
+	private static final int DISPATCH_BATCH = 1024;							// Most messages handed to the subscribers at once
+	private static final int SEND_QUEUE_SIZE = 1024;
+	private static final long SEND_TIMEOUT_MS = 1000;						// Longest a sender waits for room in the send queue
+	private static final int MAX_GATHER = 64;								// Most messages in one gathering write
+	private static final int READ_BUFFER = 16 * 1024;
+	private static final long CONNECT_TIMEOUT_MS = 10_000;
+	private static final int MAX_ATTEMPTS = 10;								// Connection attempts before giving up
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final String END = new String("");						// Compared by identity, tells the dispatch thread to stop
+
+	private final String host;
+	private final int port;
+	private volatile String userName;										// Changed by the server if the name is taken
+	private boolean binary;
+	private SSLContext sslContext;											// Null unless connecting over TLS
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+	private final ArrayBlockingQueue<String> inbound = new ArrayBlockingQueue<>(INBOUND_QUEUE);
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private volatile Connection connection;									// Null while connecting or reconnecting
+	private volatile boolean quitting;										// Set once the user quits, so a drop is not a reason to reconnect
+	private volatile String token;											// Takes the session back after a reconnect
+	private volatile String currentRoom = MessageRouter.DEFAULT_ROOM;
+	private volatile long lastSequence = -1;								// Last message seen in the current room, -1 before joining
+
+	/**
+	 * Receives what the client reads from the server.
+	 */
+	public interface Subscriber {
+
+		/**
+		 * Called on the client's dispatch thread with the messages that arrived since the last call, oldest
+		 * first, each as a line of the text protocol would show it. Pings, pongs and session tokens are handled by
+		 * the client and are not passed on. The client reads no further than its queue while this runs.
+		 *
+		 * @param messages The messages, which must not be kept after the call returns.
+		 */
+		void onMessages(List<String> messages);
+
+		/**
+		 * Called when the connection drops and the client is about to reconnect.
+		 */
+		default void onDisconnected() {
+		}
+
+		/**
+		 * Called when an attempt to connect fails and the client will try again.
+		 *
+		 * @param delayMs How long the client waits before it tries again.
+		 * @param attemptsLeft The attempts left after the next one.
+		 */
+		default void onRetry(long delayMs, int attemptsLeft) {
+		}
+
+		/**
+		 * Called once on the dispatch thread after the last message, when the client has been closed or has
+		 * given up reconnecting.
+		 */
+		default void onClosed() {
+		}
+
+	}
+
+	/**
+	 * Constructor for a client of the text protocol over plain text. Change either with the setters before
+	 * connecting.
+	 *
+	 * @param host The host name or address of the server.
+	 * @param port The port of the server.
+	 * @param userName The username to ask for, the server adds a suffix if it is taken.
+	 */
+	public ChatClient(String host, int port, String userName) {
+		this.host = host;
+		this.port = port;
+		this.userName = userName;
+	}
+
+	/**
+	 * @param binary True to use the binary {@link Frame} protocol, which also deflates long messages both ways.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * @param sslContext The TLS context to connect with, or null for plain text. Keep the same context for
+	 *            every client of a server so each new connection resumes the TLS session of the last.
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Adds a subscriber to the messages read from the server. Add subscribers before connecting so none of the
+	 * first messages are missed.
+	 *
+	 * @param subscriber The subscriber to add.
+	 */
+	public void subscribe(Subscriber subscriber) {
+		subscribers.add(subscriber);
+	}
+
+	/**
+	 * Connects and joins the chat, trying again with backoff if the server cannot be reached.
+	 *
+	 * @throws IOException If every attempt failed, the client is closed.
+	 */
+	public void connect() throws IOException {
+		Thread dispatcher = new Thread(this::dispatch, "chat-client-dispatch");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		if (!open()) {
+			finish();
+			throw new IOException("Cannot connect to " + host + ":" + port);
+		}
+	}
+
+	/**
+	 * Sends one line the way the user typed it. <code>\q</code> leaves the chat, after which the client closes
+	 * once the server has closed the connection. Commands such as <code>#userlist</code>, <code>#join</code>
+	 * and <code>#name</code> are sent as their own frames by a binary client.
+	 *
+	 * @param line The line to send, without a line terminator.
+	 * @throws IOException If the client is not connected or the server has stopped reading.
+	 */
+	public void send(String line) throws IOException {
+		Connection current = connection;
+		if (current == null) {
+			throw new IOException("Not connected");
+		}
+		if ("\\q".equalsIgnoreCase(line)) {
+			quitting = true;												// The server closes the connection once it has the quit
+			current.send(Payload.of(new Frame(Opcode.QUIT, "", ""), "\\q"));
+		} else if ("#userlist".equalsIgnoreCase(line)) {
+			current.send(Payload.of(new Frame(Opcode.USERLIST, "", ""), "#userlist"));
+		} else {
+			current.send(Payload.of(toFrame(line), userName + ":" + line));	// The text protocol prefixes the sender's name
+		}
+	}
+
+	/**
+	 * @return The username the server gave this client, or the one asked for before it has joined.
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return True if the client is connected now, false while it is reconnecting or once it is closed.
+	 */
+	public boolean isConnected() {
+		return connection != null;
+	}
+
+	/**
+	 * @return True once the client has been closed or has given up reconnecting.
+	 */
+	public boolean isClosed() {
+		return finished.get();
+	}
+
+	/**
+	 * Closes the connection once the messages already sent have been written, without reconnecting.
+	 */
+	@Override
+	public void close() {
+		quitting = true;
+		Connection current = connection;
+		if (current != null) {
+			current.shutdown();												// The drop that follows finishes the client
+		} else {
+			finish();
+		}
+	}
+
+	// Method attempts to connect a number of times. The wait between attempts doubles each time up to a limit
+	// and is picked at random from its upper half, so clients that lost the server at the same moment do not all
+	// come back at the same moment
+	private boolean open() {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS && !quitting; attempt++) {
+			Connection opened = null;
+			try {
+				opened = new Connection();
+				connection = opened;											// Set first so the dispatch thread can let it read again
+				opened.start();
+				return true;
+			} catch (IOException e) {
+				connection = null;
+				if (opened != null) {
+					opened.drop();
+				}
+				long delay = Backoff.delay(attempt);
+				for (Subscriber subscriber : subscribers) {
+					subscriber.onRetry(delay, MAX_ATTEMPTS - attempt);
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Called once for each connection that drops. Reconnects on a thread of its own unless the user has quit
+	private void dropped(Connection dropped) {
+		if (connection != dropped) {
+			return;															// Never finished connecting, open() tries again
+		}
+		connection = null;
+		if (quitting) {
+			finish();
+			return;
+		}
+		for (Subscriber subscriber : subscribers) {
+			subscriber.onDisconnected();
+		}
+		Thread reconnect = new Thread(() -> {
+			if (!open()) {
+				finish();
+			}
+		}, "chat-client-reconnect");
+		reconnect.setDaemon(true);
+		reconnect.start();
+	}
+
+	// Tells the dispatch thread to stop once it has handed over every message before this point
+	private void finish() {
+		if (finished.compareAndSet(false, true)) {
+			try {
+				inbound.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Hands the messages read to the subscribers in batches, letting the connection read again as the queue empties
+	private void dispatch() {
+		List<String> batch = new ArrayList<>(DISPATCH_BATCH);
+		List<String> view = Collections.unmodifiableList(batch);
+		boolean end = false;
+		while (!end) {
+			try {
+				batch.add(inbound.take()); 									// Blocking operation
+			} catch (InterruptedException e) {
+				return;
+			}
+			inbound.drainTo(batch, DISPATCH_BATCH - 1);
+			for (int i = 0; i < batch.size() && !end; i++) {
+				if (batch.get(i) == END) {
+					batch.subList(i, batch.size()).clear();
+					end = true;
+				}
+			}
+			if (!batch.isEmpty()) {
+				for (Subscriber subscriber : subscribers) {
+					subscriber.onMessages(view);
+				}
+			}
+			batch.clear();
+			Connection current = connection;
+			if (current != null) {
+				current.resume();
+			}
+		}
+		for (Subscriber subscriber : subscribers) {
+			subscriber.onClosed();
+		}
+	}
+
+	// A message starting with a room command or #username is sent as its own frame, anything else goes to the room
+	private static Frame toFrame(String message) {
+		int space = message.indexOf(' ');
+		if ("#rooms".equalsIgnoreCase(message)) {
+			return new Frame(Opcode.ROOMS, "", "");
+		} else if ("#leave".equalsIgnoreCase(message)) {
+			return new Frame(Opcode.LEAVE_ROOM, "", "");
+		} else if (message.regionMatches(true, 0, "#join ", 0, 6)) {
+			return new Frame(Opcode.JOIN_ROOM, message.substring(6).trim(), "");
+		} else if (message.startsWith("#") && space > 1) {
+			return new Frame(Opcode.DM, message.substring(1, space), message.substring(space + 1));
+		}
+		return new Frame(Opcode.CHAT, "", message);
+	}
+
+	// Waits for an operation of the connection set up, which runs on the connecting thread
+	private static <V> V await(Future<V> future) throws IOException {
+		try {
+			return future.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (TimeoutException e) {
+			future.cancel(true);											// Closes the channel
+			throw new SocketTimeoutException("Server did not answer in " + CONNECT_TIMEOUT_MS + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting");
+		}
+	}
+
+	private static final CompletionHandler<Integer, Connection> READ = new CompletionHandler<Integer, Connection>() {
+
+		@Override
+		public void completed(Integer n, Connection connection) {
+			connection.onRead(n);
+		}
+
+		@Override
+		public void failed(Throwable e, Connection connection) {
+			connection.drop();
+		}
+
+	};
+
+	private static final CompletionHandler<Long, Connection> WRITE = new CompletionHandler<Long, Connection>() {
+
+		@Override
+		public void completed(Long n, Connection connection) {
+			connection.onWritten();
+		}
+
+		@Override
+		public void failed(Throwable e, Connection connection) {
+			connection.drop();
+		}
+
+	};
+
+	private static final CompletionHandler<Integer, Connection> WRITE_TLS = new CompletionHandler<Integer, Connection>() {
+
+		@Override
+		public void completed(Integer n, Connection connection) {
+			connection.onWritten();
+		}
+
+		@Override
+		public void failed(Throwable e, Connection connection) {
+			connection.drop();
+		}
+
+	};
+
+	/**
+	 * One connection to the server. A new one is opened for each reconnect.
+	 *
+	 * Reading is one read at a time: each completed read is decrypted if needed, decoded and queued for the
+	 * dispatch thread, and only then is the next read started, unless the queue is full in which case the
+	 * dispatch thread starts it once there is room. Writing is also one write at a time, and the completion of
+	 * each write gathers every message queued meanwhile into the next.
+	 */
+	private class Connection {
+
+		private final AsynchronousSocketChannel channel;
+		private final SSLEngine engine;										// Null for plain text
+		private final boolean binary = ChatClient.this.binary;
+		private final FrameDecoder frameDecoder = new FrameDecoder();		// Checks the server's handshake, then reads frames
+		private final LineDecoder lineDecoder = new LineDecoder();
+		private final OutboundQueue<Payload> outbound =
+				new OutboundQueue<>(SEND_QUEUE_SIZE, OutboundQueue.OverflowPolicy.BLOCK, SEND_TIMEOUT_MS);
+		private final AtomicBoolean writing = new AtomicBoolean();			// A write is in flight or being prepared
+		private final AtomicBoolean dropped = new AtomicBoolean();
+		private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];		// Messages being written, only used by the writing thread
+		private int batchHead;
+		private int batchTail;
+		private ByteBuffer netIn;											// Read from the socket, kept ready to fill
+		private ByteBuffer appIn;											// Decrypted, kept ready to fill. The same as netIn for plain text
+		private ByteBuffer netOut;											// Encrypted, kept ready to drain
+		private boolean paused;												// The inbound queue was full, guarded by this
+		private String pending;												// The message that did not fit in the queue, guarded by this
+		private boolean inboundDone;										// The server sent close_notify
+		private boolean established;										// The TLS handshake is done
+		private volatile boolean closing;									// Close once everything queued is written
+		private String resumeRoom;											// Room to ask for missed messages in if the session has expired
+		private long resumeAfter = -1;
+
+		// Connects and runs the TLS handshake, throwing if the server cannot be reached
+		private Connection() throws IOException {
+			channel = AsynchronousSocketChannel.open();
+			try {
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);	// Writes are already batched
+				await(channel.connect(new InetSocketAddress(host, port)));
+				if (sslContext != null) {
+					engine = sslContext.createSSLEngine(host, port);		// The host and port find the session to resume
+					engine.setUseClientMode(true);
+					SSLParameters parameters = engine.getSSLParameters();
+					parameters.setEndpointIdentificationAlgorithm("HTTPS");	// Check the name as a browser would
+					engine.setSSLParameters(parameters);
+					netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+					netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					netOut.flip();
+					handshake();
+				} else {
+					engine = null;
+					netIn = ByteBuffer.allocate(READ_BUFFER);
+					appIn = netIn;
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		// Identifies the user to the server, with the session token if this is a reconnect, then starts reading
+		private void start() throws IOException {
+			String sessionToken = token;
+			if (binary) {
+				send(Payload.raw(Frame.HELLO));
+				if (lastSequence >= 0) {									// Ask for the missed messages if the session has expired
+					resumeRoom = currentRoom;
+					resumeAfter = lastSequence;
+				}
+				Frame join = new Frame(Opcode.JOIN, userName, sessionToken == null ? "" : sessionToken).acceptingDeflate();
+				send(Payload.of(join, userName));
+			} else if (sessionToken != null) {
+				send(Payload.of("#resume " + sessionToken + " " + userName));
+			} else {
+				send(Payload.of(userName));
+			}
+			synchronized (this) {
+				process();
+			}
+		}
+
+		// Runs the whole TLS handshake, waiting for each read and write
+		private void handshake() throws IOException {
+			engine.beginHandshake();
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					wrap(EMPTY);
+					while (netOut.hasRemaining()) {
+						await(channel.write(netOut));
+					}
+					break;
+				case NEED_UNWRAP:
+					if (unwrapOnce().getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && await(channel.read(netIn)) < 0) {
+						throw new EOFException("Server left during the TLS handshake");
+					}
+					break;
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					established = true;
+					return;
+				default:
+					throw new SSLException("Unexpected handshake status " + engine.getHandshakeStatus());
+				}
+			}
+		}
+
+		// Queues a message and starts a write if none is in flight
+		private void send(Payload payload) throws IOException {
+			if (!outbound.offer(payload)) {
+				throw new IOException("Server is not reading messages");
+			}
+			if (writing.compareAndSet(false, true)) {
+				writeNext();
+			}
+		}
+
+		// Writes what is left of the batch, or the next batch of queued messages, stopping once nothing is left
+		private void writeNext() {
+			try {
+				while (true) {
+					if (batchHead == batchTail) {
+						batchHead = 0;
+						batchTail = 0;
+						Payload payload;
+						while (batchTail < MAX_GATHER && (payload = outbound.poll()) != null) {
+							batch[batchTail++] = payload.buffer(binary, ServerConfig.DEFAULT_COMPRESS_THRESHOLD);	// Long messages go deflated
+						}
+					}
+					if (engine != null) {
+						while (batchHead < batchTail || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+							int produced = batchHead < batchTail ? wrap(batch, batchHead, batchTail - batchHead) : wrap(EMPTY);
+							if (produced == 0) {
+								break;												// The rest waits for the bytes already encrypted to be written
+							}
+							skipWritten();
+						}
+						if (netOut.hasRemaining()) {
+							channel.write(netOut, this, WRITE_TLS);
+							return;
+						}
+					} else if (batchHead < batchTail) {
+						channel.write(batch, batchHead, batchTail - batchHead, 0, TimeUnit.MILLISECONDS, this, WRITE);
+						return;
+					}
+					writing.set(false);										// Nothing left, unless a sender queued a message just now
+					if (outbound.isEmpty() || !writing.compareAndSet(false, true)) {
+						if (closing && writing.compareAndSet(false, true)) {
+							closeChannel();
+						}
+						return;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				drop();
+			}
+		}
+
+		// Called on a thread of the channel's group when a write is done, which may have been partial
+		private void onWritten() {
+			if (engine == null) {
+				skipWritten();
+			}
+			writeNext();
+		}
+
+		private void skipWritten() {
+			while (batchHead < batchTail && !batch[batchHead].hasRemaining()) {
+				batch[batchHead++] = null;
+			}
+		}
+
+		// Called on a thread of the channel's group when a read is done
+		private synchronized void onRead(int n) {
+			if (n < 0) {
+				drop();															// Server closed the connection
+				return;
+			}
+			try {
+				process();
+			} catch (IOException | RuntimeException e) {
+				drop();
+			}
+		}
+
+		// Called by the dispatch thread once there is room in the queue again
+		private synchronized void resume() {
+			if (paused) {
+				paused = false;
+				try {
+					process();
+				} catch (IOException | RuntimeException e) {
+					drop();
+				}
+			}
+		}
+
+		// Decrypts and decodes what has been read, queueing the messages until the queue is full or the bytes run
+		// out, in which case the next read is started
+		private void process() throws IOException {
+			boolean more = true;
+			while (more) {
+				more = engine != null && unwrap() == SSLEngineResult.Status.BUFFER_OVERFLOW;	// Decoding makes room for the rest
+				if (!deliver()) {
+					paused = true;												// The dispatch thread carries on from here
+					return;
+				}
+			}
+			if (inboundDone) {
+				drop();
+				return;
+			}
+			if (!dropped.get()) {
+				channel.read(netIn, this, READ);
+			}
+		}
+
+		// Method queues the decoded messages, returning false if the queue filled up first
+		private boolean deliver() throws IOException {
+			appIn.flip();
+			try {
+				while (true) {
+					if (pending == null) {
+						pending = next(appIn);
+					}
+					if (pending == null) {
+						return true;
+					}
+					if (!inbound.offer(pending)) {
+						return false;
+					}
+					pending = null;
+				}
+			} finally {
+				appIn.compact();
+			}
+		}
+
+		// Decodes the next message for the subscribers, answering pings and keeping the session token on the way
+		private String next(ByteBuffer input) throws IOException {
+			while (true) {
+				String text;
+				if (binary) {
+					Frame frame = frameDecoder.next(input);
+					if (frame == null) {
+						return null;
+					}
+					track(frame);
+					text = frame.toText();
+				} else {
+					text = lineDecoder.next(input);
+					if (text == null) {
+						return null;
+					}
+				}
+				if (text.startsWith("#token")) {
+					token = text.substring(6);									// Kept for a reconnect, not shown to the user
+				} else if ("#ping".equals(text)) {
+					send(Payload.of(new Frame(Opcode.PONG, "", ""), "#pong"));	// Tell the server the client is still here
+				} else if (!"#pong".equals(text) && !text.isEmpty()) {
+					if (text.startsWith("#name")) {
+						userName = text.substring(5);
+					}
+					return text;
+				}
+			}
+		}
+
+		// Keeps the room and the last message seen in it, to ask for what was missed if the session expires
+		private void track(Frame frame) throws IOException {
+			if (!frame.hasSequence()) {
+				return;
+			}
+			switch (frame.getOpcode()) {
+			case NAME_ASSIGNED:												// Joined the default room as a new user
+				currentRoom = MessageRouter.DEFAULT_ROOM;
+				lastSequence = frame.getSequence();
+				if (resumeAfter >= 0) {										// The old session had expired, catch up from the journal
+					Frame resume = new Frame(Opcode.JOIN_ROOM, resumeRoom, "").withSequence(resumeAfter);
+					send(Payload.of(resume, "#join " + resumeRoom));
+					resumeAfter = -1;
+				}
+				break;
+			case JOIN_ROOM:													// Moved to another room
+				currentRoom = frame.getTarget();
+				lastSequence = frame.getSequence();
+				break;
+			default:
+				lastSequence = Math.max(lastSequence, frame.getSequence());
+			}
+		}
+
+		// Decrypts every whole record read so far, or as many as fit before the decoded bytes are taken
+		private SSLEngineResult.Status unwrap() throws SSLException {
+			while (true) {
+				SSLEngineResult result = unwrapOnce();
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+				} else if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+						&& established && writing.compareAndSet(false, true)) {
+					writeNext();													// Answers a key update from the server
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					inboundDone = true;
+				}
+				if (result.getStatus() != SSLEngineResult.Status.OK || netIn.position() == 0
+						|| result.bytesConsumed() == 0 && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					return result.getStatus();
+				}
+			}
+		}
+
+		// Decrypts one record into the decoded bytes, growing the buffers if it does not fit
+		private SSLEngineResult unwrapOnce() throws SSLException {
+			SSLEngineResult result;
+			netIn.flip();
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && appIn.position() == 0) {
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+			} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && netIn.position() == netIn.capacity()) {
+				netIn = grow(netIn, engine.getSession().getPacketBufferSize());	// A record larger than the buffer
+			}
+			return result;
+		}
+
+		private int wrap(ByteBuffer src) throws SSLException {
+			return wrap(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		// Encrypts one record onto the end of the bytes waiting to be written, returning the bytes it produced
+		private int wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+			netOut.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.wrap(srcs, offset, length, netOut);
+			} finally {
+				netOut.flip();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (!netOut.hasRemaining()) {
+					netOut.compact();
+					netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+					netOut.flip();
+					return wrap(srcs, offset, length);
+				}
+				return 0;															// Write what is waiting first
+			case CLOSED:
+				if (!engine.isOutboundDone() || result.bytesProduced() == 0) {
+					throw new SSLException("TLS connection is closed");
+				}
+				break;
+			default:
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+				}
+			}
+			return result.bytesProduced();
+		}
+
+		// Runs the slow parts of the handshake, i.e. checking the server's certificate, on the calling thread
+		private void runTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		}
+
+		// Closes the connection once the writes in flight are done
+		private void shutdown() {
+			closing = true;
+			if (writing.compareAndSet(false, true)) {
+				writeNext();
+			}
+		}
+
+		// Sends close_notify over TLS first, then closes the channel, which stops the read in flight
+		private void closeChannel() {
+			if (engine != null && !engine.isOutboundDone()) {
+				engine.closeOutbound();
+				try {
+					wrap(EMPTY);
+					if (netOut.hasRemaining()) {
+						channel.write(netOut, this, WRITE_TLS);				// Its completion closes the channel
+						return;
+					}
+				} catch (IOException e) {
+					// Best effort, the server may already be gone
+				}
+			}
+			drop();
+		}
+
+		// Closes the channel and lets the client know, once
+		private void drop() {
+			if (dropped.compareAndSet(false, true)) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Already closed
+				}
+				dropped(this);
+			}
+		}
+
+	}
+
+	// Method copies a buffer that is ready to fill into a larger one
+	private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity()) + buffer.capacity());
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+}
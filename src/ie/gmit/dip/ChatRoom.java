@@ -0,0 +1,154 @@
+package ie.gmit.dip;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A named room of the chat server with its own set of members. A message sent to a room is only fanned out to
+ * the sessions in its membership set, so the cost of a group message depends on the size of the room rather
+ * than the number of users connected to the server.
+ *
+ * Rooms are created and removed by the {@link MessageRouter}. The membership set is a concurrent set so a
+ * broadcast can iterate it while other users join and leave. A user whose session is swapped for another,
+ * i.e. when their connection drops or they come back on a new one, must get each message on one session or
+ * the other, which a weakly consistent iteration cannot promise. Broadcasts therefore share the room's seat
+ * lock and a swap takes it on its own, so a broadcast never runs in the middle of one. Each group message is numbered with the room's
+ * next sequence number, so a client that reconnects can ask for what it missed, and the most recent messages
+ * are kept in a {@link RecentHistory} for users who join the room. A room may also have a {@link TokenBucket}
+ * shared by its members, so a busy room cannot take over the server however many connections it is spread over.
+ *
+ * On a cluster the room also lists the users of other nodes who are in a room of the same name. They are kept
+ * apart from the members, as a group message is relayed to each other node once rather than to each of its
+ * users, but count towards the size of the room and are shown in its user list.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ChatRoom {
+
+	private final String name;
+	private final Set<Session> members = ConcurrentHashMap.newKeySet();
+	private final Set<Session> remote = ConcurrentHashMap.newKeySet();		// Users of other nodes in the cluster
+	private long sequence;													// Last sequence number used, guarded by this
+	private final RecentHistory history;									// Null if no history is kept
+	private final TokenBucket rateLimit;									// Null if the room is not limited
+	private final ReentrantReadWriteLock seats = new ReentrantReadWriteLock();	// Read by broadcasts, written by swaps
+
+	/**
+	 * Constructor for an empty room.
+	 *
+	 * @param name The unique name of the room.
+	 * @param sequence The last sequence number used by an earlier room of the same name, or 0.
+	 * @param historySize The number of recent messages kept for users who join, 0 for none.
+	 * @param rateLimit The rate limit shared by the members, or null for none.
+	 */
+	public ChatRoom(String name, long sequence, int historySize, TokenBucket rateLimit) {
+		this.name = name;
+		this.sequence = sequence;
+		this.history = historySize > 0 ? new RecentHistory(historySize, sequence) : null;
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @return The unique name of the room.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Numbers the next group message. The caller must hold the room's lock so the message is published in
+	 * the same order as it is numbered.
+	 *
+	 * @return The next sequence number.
+	 */
+	long nextSequence() {
+		return ++sequence;
+	}
+
+	/**
+	 * @return The sequence number of the last group message.
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return The recent messages of the room, or null if no history is kept.
+	 */
+	public RecentHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * @return The rate limit shared by the members, or null if the room is not limited.
+	 */
+	public TokenBucket getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * @return The lock a broadcast holds while it sends a message to the members. Any number of broadcasts can
+	 *         hold it at once.
+	 */
+	Lock broadcastLock() {
+		return seats.readLock();
+	}
+
+	/**
+	 * @return The lock held while a member's session is swapped for another, which waits for the broadcasts in
+	 *         progress and holds up new ones until the swap is done.
+	 */
+	Lock swapLock() {
+		return seats.writeLock();
+	}
+
+	/**
+	 * @param session The session to add to the room, a {@link RemoteSession} for a user of another node.
+	 */
+	void add(Session session) {
+		(session instanceof RemoteSession ? remote : members).add(session);
+	}
+
+	/**
+	 * @param session The session to remove from the room.
+	 */
+	void remove(Session session) {
+		(session instanceof RemoteSession ? remote : members).remove(session);
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the members connected to this server that is safe to iterate
+	 *         while users join and leave.
+	 */
+	public Collection<Session> members() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the users of other nodes in the room.
+	 */
+	public Collection<Session> remoteMembers() {
+		return Collections.unmodifiableSet(remote);
+	}
+
+	/**
+	 * @return The number of users in the room.
+	 */
+	public int size() {
+		return members.size() + remote.size();
+	}
+
+	/**
+	 * @return True if nobody is in the room.
+	 */
+	public boolean isEmpty() {
+		return members.isEmpty() && remote.isEmpty();
+	}
+
+}
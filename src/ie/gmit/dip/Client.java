@@ -1,186 +1,151 @@
 package ie.gmit.dip;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * This class creates a socket for the clients side of the chat application.
  * 
- * There is three commands that the client can use with the command prefix # when sending a chat message:
+ * There is six commands that the client can use with the command prefix # when sending a chat message:
  * <ol>
  * 	<li><strong>\q:</strong><p>Exits the chat room.</p>
  * 	<li><strong>#userlist</strong><p>Lists users in the chat room.</p>
+ * 	<li><strong>#rooms</strong><p>Lists the rooms on the server.</p>
+ * 	<li><strong>#join *</strong><p>Replace the * with a room name to move to that room.</p>
+ * 	<li><strong>#leave</strong><p>Goes back to the default room.</p>
  * 	<li><strong>#*</strong><p>Replace the * with a username to send a private message to that user.</p>
  * <ol>
  * 
+ * Start the client with <code>--binary</code> to talk to the server with the binary {@link Frame} protocol
+ * instead of lines of text. A binary client remembers the room it is in and the last message it saw there,
+ * and after a reconnect asks the server for the messages it missed while it was away. It also reads and
+ * sends long messages deflated.
+ * 
+ * If the connection drops the client reconnects on its own, waiting longer after each failed attempt. It
+ * sends the session token the server gave it, so within the server's grace period it gets its old name back
+ * along with the messages sent while it was away.
+ * 
+ * Start the client with <code>--tls</code> to connect to a server that was given a keystore, and with
+ * <code>--truststore=path</code> to trust a self-signed certificate. The same TLS context is used for every
+ * reconnect, so the client resumes its TLS session rather than running a full handshake each time.
+ * 
+ * The connection itself is a {@link ChatClient}, which reads and writes on its own threads. This class only
+ * reads what the user types and prints what arrives, a batch of messages at a time.
+ * 
  * @author PJ
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public class Client {
 
-	private Socket socket;
-	private BufferedReader bufferedReader;
-	private BufferedWriter bufferedWriter;
-	private String userName;
-	private static boolean toQuit = false;
+	private static volatile boolean toQuit = false;						// Read by the dispatch thread as well as the console
 	private static int PORT;
 	private static String IPADDRESS;
+	private static boolean binary = false;
+	private static SSLContext sslContext;								// Null unless connecting over TLS
 
-	/**
-	 * Constructor creates a client instance using a socket and a chat room username.
-	 * 
-	 * @param socket A connected stream socket connected to the user's specified port & IP
-	 * @param userName A chat room username chosen by the user.
-	 */
-	public Client(Socket socket, String userName) {
+	// Method connects to the server and then sends what the user types until they quit
+	private static void connect(String userName, Scanner sc) {
+		ChatClient chat = new ChatClient(IPADDRESS, PORT, userName);
+		chat.setBinary(binary);
+		chat.setSslContext(sslContext);									// Shared by every reconnect so the session is resumed
+		chat.subscribe(new ConsoleRenderer());
 		try {
-			this.socket = socket;
-			this.userName = userName;
-			this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			chat.connect();												// Tries again with backoff if the server cannot be found
 		} catch (IOException e) {
-			closeResources(socket, bufferedReader, bufferedWriter);
+			System.out.println("Could not connect to the server.");
+			return;
 		}
+		sendMessage(chat, sc);
 	}
-	
-	// Method attempts to make a connection to the server for a number of specified attempts
-	private static void connect(String userName) {
-		Socket socket;
-		// A short loop for demonstration purposes
-		int reconnect = 3;		// Number of attempts to reconnect
-		int keepAlive = 5; 		// Time (s) between each attempt
 
-		while (reconnect > 0 && !toQuit) {
-			try {
-				socket = new Socket(IPADDRESS, PORT);		// Create a socket using the saved IP Address/Port number
-				Client client = new Client(socket, userName);
-				System.out.print("You have now entered the chat room as ");
-				client.listen();							// Method runs inside its own thread so it does not block the application
-				client.sendMessage();
-			} catch (ConnectException e) {
-				System.out.println("Cannot find server! \nTry to reconnect in " + keepAlive + " seconds" + " Number of attempts remaining: " + reconnect);
-		        // Timer to between reconnect attempts
-				try {
-		            TimeUnit.SECONDS.sleep(keepAlive); 
-		        } catch(InterruptedException ie) {
-		            // Interrupted.
-		        }
-			} catch (SocketException se) {
-				System.out.println("No server active on that port");
-				break; 
-			} catch (IOException e) {
-				System.out.println("IO Exception");
+	// Method reads input from the user's console and sends it to the server over the current connection
+	private static void sendMessage(ChatClient chat, Scanner sc) {
+		String outputMessage = "";
+
+		// Loop reads each line of input from the client application
+		while (!toQuit) {
+			outputMessage = sc.nextLine(); 								// Blocking operation
+			if (chat.isClosed()) {
+				System.out.println("Could not reconnect to the server.");
+				break;
 			}
-			reconnect--;
-		}
-	}
-	
-	// Method reads input from the user's console and sends it to the server
-	private void sendMessage() {
-		try {
-			// Send the username to identify the sender
-			flushToBuffer(userName);
-			Scanner sc = new Scanner(System.in);
-			String outputMessage = "";
-			
-			// Loop reads each line of input from the client application
-			while (!toQuit) {
-				outputMessage = sc.nextLine(); 				// Blocking operation
-				// COMMAND: If user inputs quit command, send command to server and exit the current loop
+			try {
+				chat.send(outputMessage);
+				// COMMAND: The client closes once the server has the quit command
 				if ("\\q".equalsIgnoreCase(outputMessage)) {
-					flushToBuffer("\\q");
 					System.out.println("You left the chat room.");
 					toQuit = true;
 				}
-				// COMMAND: If the user requests the current online users in the chat room send command to server
-				else if ("#userlist".equalsIgnoreCase(outputMessage)) {
-					flushToBuffer("#userlist");
-					continue;
-				// Send the user's input to the server along with their username prefix.
-				} else {
-					flushToBuffer(userName + ":" + outputMessage);
-				}
+			} catch (IOException e) {
+				System.out.println("Not connected, message not sent.");
 			}
-			sc.close();
-		} catch (Exception e) {
-			closeResources(socket, bufferedReader, bufferedWriter);
 		}
 	}
-	
-	// Method writes input message to bufferWriter and flushes the stream
-	private void flushToBuffer(String msg) throws IOException {
-		bufferedWriter.write(msg);
-		bufferedWriter.newLine();
-		bufferedWriter.flush();
-	}
 
-	// Reading input from the input stream is processed in its own thread to prevent blocking
-	private void listen() throws SocketException {
-		// use lambda syntax for creating a new Thread
-		new Thread(() ->  {
-				String incomingMessage;									// Store the incoming message as a string
-				
-				// Continue to read from the socket input stream until quit trigger set
-				while (!toQuit) {
-					try {
-						incomingMessage = bufferedReader.readLine(); 	// Blocking operation
-		
-						if (incomingMessage.contains("#name")) {
-							incomingMessage = incomingMessage.replace("#name", "");
-							userName = incomingMessage;
-							System.out.println(incomingMessage);
-						}
-						else if (incomingMessage != null) {
-							System.out.println(incomingMessage);
-						} 
-					} catch (Exception e) { 
-						System.out.println("Disconnected from server."); 
-						break; 											// Break out of the listening for input loop
-					}
+	/**
+	 * Prints the messages from the server to the console. Each batch is printed with a single write, so a
+	 * busy room costs one write for every batch rather than one for every line.
+	 */
+	private static class ConsoleRenderer implements ChatClient.Subscriber {
+
+		private final StringBuilder text = new StringBuilder();		// Only used by the dispatch thread
+
+		@Override
+		public void onMessages(List<String> messages) {
+			text.setLength(0);
+			for (String message : messages) {
+				if (message.startsWith("#name")) {
+					text.append("You have now entered the chat room as ").append(message, 5, message.length());
+				} else {
+					text.append(message);
 				}
-		}).start(); 
-	}
-	
-	// Method closes these resources and the underlying streams they are wrapping
-	private void closeResources(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
-		try {
-			// Close BufferedReader/InputStreamReader
-			if (bufferedReader != null) {
-				bufferedReader.close();
-			}
-			// Close BufferedWriter/OutputStreamWriter
-			if (bufferedWriter != null) {
-				bufferedWriter.close();
+				text.append(System.lineSeparator());
 			}
-			// Closes Socket/InputStream/OutputStream
-			if (socket != null) {
-				socket.close();
-				// System.out.println("Socket Closed"); Causes infinite loop.
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			System.out.print(text);
+			System.out.flush();
+		}
+
+		@Override
+		public void onDisconnected() {
+			System.out.println("Disconnected from server. Reconnecting...");
+		}
+
+		@Override
+		public void onRetry(long delayMs, int attemptsLeft) {
+			System.out.println("Cannot find server! \nTry to reconnect in " + delayMs + " ms" + " Number of attempts remaining: " + attemptsLeft);
 		}
+
 	}
 	
 	// Main method
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException, GeneralSecurityException {
+		binary = Arrays.asList(args).contains("--binary");
+		if (Arrays.asList(args).contains("--tls")) {
+			String truststore = null;
+			char[] password = "changeit".toCharArray();				// The same default as the server's keystore
+			for (String arg : args) {
+				if (arg.startsWith("--truststore=")) {
+					truststore = arg.substring("--truststore=".length());
+				} else if (arg.startsWith("--truststore-password=")) {
+					password = arg.substring("--truststore-password=".length()).toCharArray();
+				}
+			}
+			sslContext = TlsContexts.forClient(truststore, password);
+		}
 		Scanner sc = new Scanner(System.in);
 		Addressing ad = new Addressing();
-		System.out.println("Socket Chat Client Application V1.0");
+		System.out.println("Socket Chat Client Application V1.1");
 		IPADDRESS = ad.getAddress(sc);									// Prompts user with IP address options
 		PORT = ad.getPortNumber(sc);									// Prompts user to enter a port number
 		System.out.println("Enter your user name for the group chat: ");
 		String userName = sc.nextLine();								// Save user name
-		connect(userName);												// Attempt to create a socket using the input port number
+		connect(userName, sc);											// Attempt to connect using the input port number
 		
 		// Loop to keep the application alive and connect to another port or shutdown
 		while (!toQuit) {
@@ -188,8 +153,8 @@ public class Client {
 			String res = sc.nextLine();
 			if ("n".equalsIgnoreCase(res)) {
 				System.out.println("Ok try again");
-				ad.getPortNumber(sc);
-				connect(userName);
+				PORT = ad.getPortNumber(sc);
+				connect(userName, sc);
 			} else if ("y".equalsIgnoreCase(res)) {
 				toQuit = true;
 				System.out.println("Client shutdown");
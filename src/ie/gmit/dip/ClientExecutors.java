@@ -0,0 +1,64 @@
+package ie.gmit.dip;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class creates the executor that the thread per connection {@link Server} runs each {@link ClientThread} on.
+ * <ol>
+ * 	<li><strong>platform:</strong><p>A new operating system thread for each client, the original behaviour.</p>
+ * 	<li><strong>virtual:</strong><p>A new virtual thread for each client. Needs Java 21 or later at run time.</p>
+ * <ol>
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ClientExecutors {
+
+	private ClientExecutors() {
+	}
+
+	/**
+	 * Creates the executor for the input type.
+	 *
+	 * @param type The type of thread to run each client on.
+	 * @return A new executor that starts a thread for every task submitted to it.
+	 */
+	public static ExecutorService create(ServerConfig.Executor type) {
+		return type == ServerConfig.Executor.VIRTUAL ? virtual() : platform();
+	}
+
+	/**
+	 * @return An executor that runs each client on its own platform thread.
+	 */
+	public static ExecutorService platform() {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = task -> new Thread(task, "client-" + count.incrementAndGet());
+		return Executors.newCachedThreadPool(factory);
+	}
+
+	/**
+	 * The virtual thread executor is looked up at run time so the application still compiles and runs
+	 * with platform threads on Java versions before 21.
+	 *
+	 * @return An executor that runs each client on its own virtual thread.
+	 * @throws UnsupportedOperationException If the Java run time does not have virtual threads.
+	 */
+	public static ExecutorService virtual() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"));
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Could not create a virtual thread executor", e);
+		}
+	}
+
+}
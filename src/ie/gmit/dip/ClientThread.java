@@ -1,165 +1,269 @@
 package ie.gmit.dip;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.StringJoiner;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements the Runnable interface to create a thread for each new client.
- * This allows the server to send and receive data concurrently from multiple clients. 
+ * This allows the server to send and receive data concurrently from multiple clients.
  * 
+ * The thread may be a platform or a virtual thread, see {@link ClientExecutors}. Other users' threads never
+ * write to this client's socket. They add messages to its {@link OutboundQueue}, which is drained by a
+ * second {@link #writer()} task, so there is no lock or synchronized block around the socket I/O and a
+ * client that is slow to read cannot hold up the sender. Messages arrive already encoded as a shared
+ * {@link Payload} and the {@link BatchingWriter} coalesces them into as few flushes as it can.
+ * 
+ * A client may speak either the original line protocol or the binary {@link Frame} protocol. The first byte
+ * the client sends decides which, see {@link Frame#HELLO}.
+ * 
+ * A peer that vanishes without closing its socket leaves the read blocked, so the {@link IdleReaper} closes
+ * the socket once the client stops answering heartbeats, which ends the read with an exception.
+ * 
+ * A client that sends faster than its rate limit is made to wait before each message is handled. The thread
+ * does not read while it waits, so the client's messages back up in TCP rather than on the server.
+ *
  * @author PJ
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
-public class ClientThread implements Runnable {
+public class ClientThread implements Runnable, Session {
 
-	public static ArrayList<ClientThread> usersList = new ArrayList<>();	// Stores the ClientThread object for current users in the chat room
 	private Socket clientSocket;											// Socket object for the new client
-	private BufferedReader bufferedReader;									// Reading clients input stream
-	private BufferedWriter bufferedWriter;									// Sending server output stream
-	private String userName;												// Each user has unique chat name
-	
-	
+	private BufferedInputStream inputStream;								// Reading clients input stream
+	private BatchingWriter writer;											// Sending server output stream
+	private volatile String userName;										// Each user has unique chat name
+	private volatile ChatRoom room;											// The room messages from this user are sent to
+	private MessageRouter router;											// Chat room commands and current users
+	private boolean quit;													// The user asked to leave rather than the connection dropping
+	private IdleReaper.Watch watch;											// Null if quiet connections are never closed
+	private TokenBucket rateLimit;											// Null if the client is not limited
+
+
 	/**
 	 * Constructor for creating a new ClientThread using a Socket object.
-	 * 
+	 *
 	 * @param clientSocket A new instance of the Socket object to communicate with a new client application.
+	 * @param router The chat room the client is joining.
+	 * @param config The start up options of the server, used for the outbound queue and flush latency.
+	 * @param flushStats Counters shared by every client's writer.
 	 */
-	public ClientThread(Socket clientSocket) {
+	public ClientThread(Socket clientSocket, MessageRouter router, ServerConfig config, FlushStats flushStats) {
 
 		try {
 			this.clientSocket = clientSocket;
-			this.bufferedReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-			String inputName = bufferedReader.readLine(); 					// Receive the username input send from the client
-			String newName = uniqueName(inputName);							// Check/modifies a username if already in use
-			this.userName = newName;
-			usersList.add(this);											// Add this ClientThread to the usersList
-	
-			groupMessage(
-					"Server: " + userName + " has entered the chat.");		// Let other users know the name of the new user in the chat room		
-			directMessage("#name" + userName, userName); 					// Update the client with the assigned/modified username
+			this.router = router;
+			this.rateLimit = config.newRateLimit();
+			this.inputStream = new BufferedInputStream(clientSocket.getInputStream());
+			this.writer = new BatchingWriter(clientSocket.getOutputStream(), config.<Payload>newOutboundQueue(router.getMetrics()),
+					config.getFlushLatencyMicros(), flushStats);
 		} catch (IOException e) {
 			e.printStackTrace();
-			closeResources(clientSocket, bufferedReader, bufferedWriter);
+			closeResources(clientSocket, inputStream, writer);
 		}
 
 	}
-	
+
 	/**
 	 * The threaded process. Method listens for incoming messages from clients input stream and send messages back to connected clients.
 	 * As the process is multi-threaded the server can accepts and send messages to more than one client at a time as each has their own thread.
 	 */
 	@Override
 	public void run() {
+		if (writer == null) {
+			return;															// The constructor could not open the streams and has already cleaned up
+		}
+
+		watch = router.watch(this);
+		try {
+			// Peek at the first byte to see which protocol the client is using
+			inputStream.mark(1);
+			int first = inputStream.read(); 								// Blocking operation
+			inputStream.reset();
+			if (first == Frame.HELLO[0]) {
+				runBinary();
+			} else {
+				runText();
+			}
+		} catch (IOException e) {
+			// Client disconnected or broke the protocol
+		}
+		closeResources(clientSocket, inputStream, writer);
+	}
+
+	// Method reads lines of the text protocol until the client leaves
+	private void runText() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
 		String incomingMessage;
 
-		while (clientSocket.isConnected()) {
-			try {
-				// Server listens for input from the client socket input stream
-				incomingMessage = bufferedReader.readLine(); // Blocking operation
-				
-				// Check if the incoming message has the direct message (DM) command 
-				boolean containsUser = false;
-				String privateUser = "";
-				for (ClientThread clientThread : usersList) {
-					// Check if the DM command matches to a currently online username
-					if (incomingMessage.contains('#' + clientThread.userName)) {
-						privateUser = clientThread.userName;				// Assign the username to receive the DM
-						containsUser = true;								// Flag the message as a DM
-					}
-				}
-				
-				/*
-				 * Client side console commands that are sent via input text with a 
-				 * special character that the server screens for in received messages. 
-				 */
-				// COMMAND: Client sends a leave chat room request
-				if ("\\q".equalsIgnoreCase(incomingMessage)) {
-					// Close all the I/O (Close socket to remove client from connection to server)
-					closeResources(clientSocket, bufferedReader, bufferedWriter);
-					break;
-				// COMMAND: Client requests current users online 
-				} else if ("#userlist".equalsIgnoreCase(incomingMessage)) {
-					incomingMessage = "Users online: " + getClientList();
-					// Use directMessage to send user list back to sender
-					directMessage(incomingMessage, userName);
-				// COMMAND: Client sends a direct message to another user currently online
-				} else if (containsUser) {
-					// Do not broadcast but return command to the specified user
-					incomingMessage = incomingMessage.replace("#" + privateUser, ""); // Remove the command prefix from the message
-					directMessage("DM from " + incomingMessage, privateUser);
-				// Send received message back to other users
-				} else {
-					groupMessage(incomingMessage);
-				}
-			} catch (IOException e) {
-				closeResources(clientSocket, bufferedReader, bufferedWriter);
+		String inputName = bufferedReader.readLine(); 						// Receive the username input send from the client. Blocking
+		if (inputName == null) {
+			return;
+		}
+		touch();
+		login(MessageRouter.toJoin(inputName));
+
+		// Server listens for input until the stream ends, which isConnected() would never show
+		while ((incomingMessage = bufferedReader.readLine()) != null) { 	// Blocking operation
+			touch();
+			throttle();
+			// COMMAND: Client sends a leave chat room request
+			if (!router.handle(this, incomingMessage)) {
+				quit = true;
 				break;
 			}
 		}
 	}
 
-	// Method broadcasts the input message to the client of all users on the userList
-	private void groupMessage(String message) {
-		for (ClientThread clientThread : usersList) {
+	// Method completes the binary protocol handshake and then reads frames until the client leaves
+	private void runBinary() throws IOException {
+		DataInputStream dataInput = new DataInputStream(inputStream);
+		byte[] hello = new byte[Frame.HELLO.length];
+		dataInput.readFully(hello); 										// Blocking operation
+		if (!Arrays.equals(hello, Frame.HELLO)) {
+			throw new IOException("Unsupported binary protocol handshake");
+		}
+		writer.setBinary(true);
+		send(Payload.raw(Frame.HELLO));										// Accept the binary protocol
+
+		Frame join = Frame.read(dataInput);									// The first frame must be the username
+		touch();
+		if (join.getOpcode() != Opcode.JOIN) {
+			throw new IOException("Expected JOIN but received " + join.getOpcode());
+		}
+		login(join);
+
+		Frame frame;
+		do {
+			frame = Frame.read(dataInput); 									// Blocking operation
+			touch();
+			throttle();
+		} while (router.handle(this, frame));								// Each frame is dispatched on its opcode until the client sends QUIT
+		quit = true;
+	}
+
+	// Records that the client is still there
+	private void touch() {
+		if (watch != null) {
+			watch.touch();
+		}
+	}
+
+	// Waits until the message just read is within the rate limits of the client and its room
+	private void throttle() throws IOException {
+		long wait = router.throttle(this, rateLimit);
+		if (wait > 0) {
 			try {
-				// Exclude the sender from the group message
-				if (!clientThread.userName.equals(userName)) {
-					writeToBuffer(message, clientThread);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				closeResources(clientSocket, bufferedReader, bufferedWriter);
+				TimeUnit.NANOSECONDS.sleep(wait);								// Nothing is read meanwhile so TCP holds the client back
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while rate limited");
 			}
 		}
 	}
 
-	// Sends a message to only the user on the user list with the input name parameter
-	private void directMessage(String message, String inputName) {
-		for (ClientThread clientThread : usersList) {
-			try {
-				// Send the message to only the input username
-				if (clientThread.userName.equals(inputName)) {
-					writeToBuffer(message, clientThread);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				closeResources(clientSocket, bufferedReader, bufferedWriter);
+	// Takes back the user's session if the client sent its token, otherwise joins as a new user
+	private void login(Frame join) {
+		writer.setDeflateAbove(router.deflateAbove(join));
+		router.login(this, join, name -> this.userName = name);
+	}
+
+	/**
+	 * @return The unique chat room username of this client.
+	 */
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return writer == null ? 0 : writer.getQueueDepth();
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * Queues the input message for this client's writer. The caller never blocks on the socket, but may wait
+	 * for room in the queue if the server was started with the block overflow policy.
+	 *
+	 * @param payload The encoded message to send to the client.
+	 */
+	@Override
+	public void send(Payload payload) {
+		try {
+			if (!writer.send(payload)) {
+				close();													// Slow consumer, the reading thread cleans up once the socket is closed
 			}
+		} catch (IOException e) {
+			// Writer has already stopped, the client is leaving
 		}
 	}
-	
-	// Method removes the ClientThread object from the user list
-	private void removeUser() {
-		usersList.remove(this); 											// Remove the current user
-		groupMessage("Server: " + userName + " has left the chat.");		// Broadcast to others user has left chat room
+
+	/**
+	 * @return The task that writes queued messages to this client. The server runs it alongside this ClientThread.
+	 */
+	public Runnable writer() {
+		return this::writeLoop;
+	}
+
+	/**
+	 * Closes the client socket, which unblocks the reading thread so it can remove the user.
+	 */
+	@Override
+	public void close() {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
-	
-	// Writes the input message for the input ClientThread object (i.e. user)
-	private void writeToBuffer(String message, ClientThread clientThread) throws IOException {
-		clientThread.bufferedWriter.write(message);
-		clientThread.bufferedWriter.newLine();
-		clientThread.bufferedWriter.flush();
+
+	// Method runs the batching writer until the client is closed
+	private void writeLoop() {
+		if (writer == null) {
+			return;															// The constructor could not open the streams and has already cleaned up
+		}
+		writer.run();
+		if (writer.getFailure() != null) {
+			close();														// The reading thread cleans up once the socket is closed
+		}
 	}
-	
-	// Method closes all the IO level resources 
-	private void closeResources(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
-		removeUser();														// Remove the user's ClientThread object
+
+	// Method closes all the IO level resources
+	private void closeResources(Socket socket, BufferedInputStream inputStream, BatchingWriter writer) {
+		if (watch != null) {
+			watch.cancel();
+		}
+		if (userName != null && quit) {
+			router.leave(this);												// Remove the user's ClientThread object
+		} else if (userName != null) {
+			router.disconnect(this);										// Keep the user's place for a while in case they reconnect
+		}
+		router.getMetrics().connectionClosed();								// Counted for every accepted socket, logged in or not
 		try {
-			// Close BufferedReader/InputStreamReader
-			if (bufferedReader != null) {
-				bufferedReader.close();
+			// Close BufferedInputStream
+			if (inputStream != null) {
+				inputStream.close();
 			}
-			// Close BufferedWriter/OutputStreamWriter
-			if (bufferedWriter != null) {
-				bufferedWriter.close();
+			// Stop the writer waiting on the outbound queue
+			if (writer != null) {
+				writer.close();
 			}
 			// Closes Socket/InputStream/OutputStream
 			if (socket != null) {
@@ -170,40 +274,5 @@ public class ClientThread implements Runnable {
 			e.printStackTrace();
 		}
 	}
-	
-	// Returns the list of current username as a string
-	private String getClientList() {
-		// Join each username with the specified delimiter
-		StringJoiner users = new StringJoiner(", ");
-		
-		for (ClientThread clientThread : usersList) {
-			// Exclude the sender from the group message
-			if (!clientThread.userName.equals(userName))
-				users.add(clientThread.userName);
-		}
-		return users.toString();
-	}
-	
-	// Method checks if input username is in the username ArrayList and returns true/false
-	private boolean onUserList(String inputName) {
-		for (ClientThread clientThread : usersList) {
-			if (clientThread.userName.equals(inputName)) {
-				return true;
-			} 
-		}
-		return false;
-	}
-	
-	// Method checks against the current list of users and adds a numerical suffix to the username if name is not unique
-	private String uniqueName(String inputName) {
-		int counter = 1;
-		String newName = inputName;
-		while(onUserList(newName)) {
-			newName = inputName + counter;
-			counter++;
-		}
-		return newName;
-	}
-
 
-}
\ No newline at end of file
+}
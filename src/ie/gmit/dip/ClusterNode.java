@@ -0,0 +1,497 @@
+package ie.gmit.dip;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins the server to a cluster of servers that share their users and rooms, so users connected to different
+ * nodes can chat in the same room, send each other direct messages and see each other in user lists. Every
+ * node listens on a cluster port of its own and connects to the cluster port of every other node.
+ *
+ * Each link between two nodes only carries messages one way, from the node that connected to the node that
+ * accepted, so a full mesh has a link each way between every pair of nodes. The links use the frames of the
+ * binary protocol:
+ * <ol>
+ * 	<li><strong>NAME_ASSIGNED:</strong><p>The id of the node, sent by both ends when the link opens along with
+ * 	the handshake below.</p>
+ * 	<li><strong>JOIN:</strong><p>A user of the node has joined or moved to the room in the body.</p>
+ * 	<li><strong>QUIT:</strong><p>A user of the node has left the chat.</p>
+ * 	<li><strong>CHAT:</strong><p>A user of the node sent a group message to their room.</p>
+ * 	<li><strong>DM:</strong><p>A direct message for a user of the receiving node, the body is the sender's name,
+ * 	a line feed and the message.</p>
+ * <ol>
+ *
+ * Before a link carries anything each end proves it knows the cluster secret, without sending the secret.
+ * The accepting node sends a random challenge, the connecting node answers with an HMAC-SHA256 of it under the
+ * secret and a challenge of its own, and the accepting node answers that in turn. A link that fails is closed,
+ * so only nodes given the same <code>--cluster-secret</code> can speak for users. The links are not encrypted,
+ * and the cluster port can be bound to a private address with <code>--cluster-bind</code>.
+ *
+ * A group message crosses each link once however many users of the other node are in the room. The
+ * receiving node numbers it in its own copy of the room and sends it to its own members, so sequence numbers,
+ * history and the journal are kept per node and a client resumes on the node it was connected to.
+ *
+ * When a link opens the node sends the other node every one of its users and their room, and when a link
+ * closes the other node drops them. A link that drops is opened again with exponential backoff and the users
+ * are sent again, so the nodes agree once the link is back. Messages sent while a link is down are not kept.
+ * A user of another node whose name is taken on this node is known here by their name and node id, see
+ * {@link RemoteSession}, so two users never share a name in a room.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ClusterNode {
+
+	private static final int LINK_QUEUE = 64 * 1024;						// Most messages waiting for one node before the link is dropped
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+	private static final int CHALLENGE_BYTES = 16;
+	private static final String LINK_ROLE = "link";							// Kept apart so one end's answer is no use to the other
+	private static final String NODE_ROLE = "node";
+	private static final SecureRandom CHALLENGES = new SecureRandom();
+
+	private final String nodeId;
+	private final int port;
+	private final String bindAddress;										// Null to listen on every interface
+	private final SecretKeySpec secret;
+	private final List<InetSocketAddress> peers;
+	private final long flushLatencyMicros;
+	private final MessageRouter router;
+	private final ServerMetrics metrics;
+	private final FlushStats flushStats = new FlushStats();					// Kept apart from the flushes to clients
+	private final List<Link> links = new ArrayList<>();						// One for each other node
+	private final ConcurrentHashMap<String, Link> linksById = new ConcurrentHashMap<>();	// Open links by the id of the node
+	private final ConcurrentHashMap<String, Peer> peersById = new ConcurrentHashMap<>();	// Nodes connected to this one by id
+	private volatile boolean running = true;
+	private ServerSocket serverSocket;
+
+	/**
+	 * Constructor for a node that has not started listening or connecting yet.
+	 *
+	 * @param config The start up options of the server, which give the cluster port and the other nodes.
+	 * @param router The router of this server, which is told about the users of other nodes.
+	 */
+	public ClusterNode(ServerConfig config, MessageRouter router) {
+		this.nodeId = config.getNodeId();
+		this.port = config.getClusterPort();
+		this.bindAddress = config.getClusterBind();
+		this.secret = new SecretKeySpec(config.getClusterSecret().getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+		this.peers = config.getPeers();
+		this.flushLatencyMicros = config.getFlushLatencyMicros();
+		this.router = router;
+		this.metrics = router.getMetrics();
+	}
+
+	/**
+	 * Binds the cluster port and starts connecting to the other nodes, each on a background thread.
+	 *
+	 * @throws IOException If the cluster port cannot be bound.
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port, 50, bindAddress == null ? null : InetAddress.getByName(bindAddress));
+		daemon(this::accept, "cluster-accept").start();
+		for (InetSocketAddress address : peers) {
+			Link link = new Link(address);
+			links.add(link);
+			daemon(link, "cluster-link-" + address.getHostString() + ":" + address.getPort()).start();
+		}
+		System.out.println("Cluster node " + nodeId + " listening on " + serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * Closes the cluster port and every link. The other nodes drop this node's users.
+	 */
+	public void close() {
+		running = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Link link : links) {
+			link.drop();
+		}
+		for (Peer peer : peersById.values()) {
+			peer.drop();
+		}
+	}
+
+	/**
+	 * @return The id of this node.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Tells the other nodes a user of this server has joined or moved to a room. Locked against a link sending
+	 * its list of users, so a link that opens at the same time never misses the change.
+	 *
+	 * @param userName The user.
+	 * @param roomName The room the user is now in.
+	 */
+	public synchronized void announce(String userName, String roomName) {
+		relay(Payload.of(new Frame(Opcode.JOIN, userName, roomName)));
+	}
+
+	/**
+	 * Tells the other nodes a user of this server has left the chat.
+	 *
+	 * @param userName The user.
+	 */
+	public synchronized void withdraw(String userName) {
+		relay(Payload.of(new Frame(Opcode.QUIT, userName, "")));
+	}
+
+	/**
+	 * Sends a group message of a user of this server to the other nodes, once to each node.
+	 *
+	 * @param userName The sender.
+	 * @param body The message text.
+	 */
+	public void chat(String userName, String body) {
+		relay(Payload.of(new Frame(Opcode.CHAT, userName, body)));
+	}
+
+	/**
+	 * Sends a direct message to a user of another node.
+	 *
+	 * @param nodeId The id of the node the recipient is connected to.
+	 * @param from The sender.
+	 * @param to The recipient.
+	 * @param body The message text.
+	 */
+	public void forward(String nodeId, String from, String to, String body) {
+		Link link = linksById.get(nodeId);
+		if (link != null) {
+			link.send(Payload.of(new Frame(Opcode.DM, to, from + "\n" + body)));
+		}
+	}
+
+	// The payload is encoded once and the same bytes are written to every link
+	private void relay(Payload payload) {
+		for (Link link : linksById.values()) {
+			link.send(payload);
+		}
+	}
+
+	// Sends the users of this server to a node whose link has just opened and lets the link carry messages.
+	// Holds the same lock as announce() and withdraw() so every change after the list is sent goes out after it
+	private synchronized void open(Link link, String id, BatchingWriter writer) throws IOException {
+		for (Session session : router.getUsers().sessions()) {
+			ChatRoom room = session.getRoom();
+			if (!(session instanceof RemoteSession) && room != null) {
+				if (!writer.send(Payload.of(new Frame(Opcode.JOIN, session.getUserName(), room.getName())))) {
+					throw new IOException("Too many users to send to node " + id);
+				}
+			}
+		}
+		link.writer = writer;
+		linksById.put(id, link);
+	}
+
+	// Accepts links from the other nodes until the node is closed
+	private void accept() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept(); 						// Blocking operation
+				daemon(() -> serve(socket), "cluster-peer-" + socket.getPort()).start();
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// Reads the messages of another node until its link closes, then drops the node's users
+	private void serve(Socket socket) {
+		Peer peer = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = socket.getOutputStream();
+			socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+			String challenge = challenge();
+			out.write(new Frame(Opcode.NAME_ASSIGNED, nodeId, challenge).encode());
+			out.flush();
+			Frame hello = Frame.read(in);
+			if (hello.getOpcode() != Opcode.NAME_ASSIGNED || hello.getTarget().equals(nodeId)) {
+				return;															// Not a node, or this node listed as its own peer
+			}
+			String[] answer = hello.getBody().split(" ", 2);					// The answer to this node's challenge and one of its own
+			if (answer.length != 2 || !verify(answer[0], LINK_ROLE, challenge, hello.getTarget())) {
+				System.out.println("Refused a link from " + socket.getRemoteSocketAddress() + " that does not know the cluster secret");
+				return;
+			}
+			out.write(new Frame(Opcode.NAME_ASSIGNED, nodeId, prove(NODE_ROLE, answer[1], nodeId)).encode());
+			out.flush();
+			socket.setSoTimeout(0);
+			peer = new Peer(hello.getTarget(), socket);
+			Peer previous = peersById.put(peer.id, peer);
+			if (previous != null) {
+				previous.dropAndWait();											// The node reconnected before its old link was seen to close
+			}
+			System.out.println("Node " + peer.id + " joined the cluster");
+			while (true) {
+				Frame frame = Frame.read(in); 								// Blocking operation
+				metrics.clusterMessageReceived();
+				peer.dispatch(frame);
+			}
+		} catch (IOException e) {
+			// The link closed
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (peer != null) {
+				peersById.remove(peer.id, peer);
+				peer.leaveAll();
+				System.out.println("Node " + peer.id + " left the cluster");
+			}
+		}
+	}
+
+	/**
+	 * Another node connected to this one, and the users it has told this node about.
+	 */
+	private final class Peer {
+
+		private final String id;
+		private final Socket socket;
+		private final Thread thread = Thread.currentThread();				// The thread reading the link
+		private final Map<String, RemoteSession> users = new HashMap<>();	// Only used by the reading thread
+
+		private Peer(String id, Socket socket) {
+			this.id = id;
+			this.socket = socket;
+		}
+
+		// Applies one message from the node to this server
+		private void dispatch(Frame frame) {
+			String name = frame.getTarget();
+			switch (frame.getOpcode()) {
+			case JOIN:
+				RemoteSession session = users.get(name);
+				if (session == null) {
+					session = new RemoteSession(name, id, ClusterNode.this);
+					users.put(name, session);
+				}
+				router.remoteJoin(session, frame.getBody());
+				break;
+			case QUIT:
+				session = users.remove(name);
+				if (session != null) {
+					router.remoteLeave(session);
+				}
+				break;
+			case CHAT:
+				session = users.get(name);
+				if (session != null) {
+					router.remoteChat(session, frame.getBody());
+				}
+				break;
+			case DM:
+				int split = frame.getBody().indexOf('\n');
+				if (split >= 0) {
+					String from = frame.getBody().substring(0, split);
+					session = users.get(from);
+					if (session != null) {
+						from = session.getUserName();								// The name the recipient can reply to
+					}
+					router.remoteDirect(from, name, frame.getBody().substring(split + 1));
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		// Removes every user of the node from this server
+		private void leaveAll() {
+			for (RemoteSession session : users.values()) {
+				router.remoteLeave(session);
+			}
+			users.clear();
+		}
+
+		private void drop() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void dropAndWait() {
+			drop();
+			try {
+				thread.join(CONNECT_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * The link this node opens to another node. It keeps trying to connect while the node is running.
+	 */
+	private final class Link implements Runnable {
+
+		private final InetSocketAddress address;
+		private volatile BatchingWriter writer;								// Null while the link is not open
+		private volatile Socket socket;
+
+		private Link(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		// Queues a message for the other node. A node that cannot keep up is dropped and sent its users again
+		// once it reconnects, rather than holding up the router
+		private void send(Payload payload) {
+			BatchingWriter out = writer;
+			if (out == null) {
+				return;
+			}
+			try {
+				if (out.send(payload)) {
+					metrics.clusterMessageRelayed();
+					return;
+				}
+			} catch (IOException e) {
+				// Already closed
+			}
+			drop();
+		}
+
+		private void drop() {
+			Socket s = socket;
+			if (s != null) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int attempt = 0;
+			while (running) {
+				String id = null;
+				BatchingWriter out = null;
+				try (Socket s = new Socket()) {
+					socket = s;
+					s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+					s.setTcpNoDelay(true);
+					s.setKeepAlive(true);
+					InputStream in = s.getInputStream();
+					DataInputStream handshake = new DataInputStream(in);				// Unbuffered, so nothing is read past the handshake
+					s.setSoTimeout(CONNECT_TIMEOUT_MS);
+					Frame hello = Frame.read(handshake);
+					if (hello.getTarget().equals(nodeId)) {
+						System.out.println(address + " is this node, not linking to it");
+						return;
+					}
+					String challenge = challenge();
+					s.getOutputStream().write(new Frame(Opcode.NAME_ASSIGNED, nodeId,
+							prove(LINK_ROLE, hello.getBody(), nodeId) + " " + challenge).encode());
+					s.getOutputStream().flush();
+					Frame answer = Frame.read(handshake);
+					if (!verify(answer.getBody(), NODE_ROLE, challenge, hello.getTarget())) {
+						System.out.println("Node at " + address + " does not know the cluster secret");
+						throw new IOException("Cluster secret not proven by " + address);
+					}
+					s.setSoTimeout(0);
+					id = hello.getTarget();
+					out = new BatchingWriter(s.getOutputStream(),
+							new OutboundQueue<Payload>(LINK_QUEUE, OutboundQueue.OverflowPolicy.DISCONNECT, 0),
+							flushLatencyMicros, flushStats);
+					out.setBinary(true);
+					daemon(out, "cluster-writer-" + id).start();
+					open(this, id, out);
+					attempt = 0;
+					System.out.println("Linked to node " + id);
+					while (in.read() >= 0) {
+						// Nothing is sent back, the read only ends when the other node closes the link
+					}
+				} catch (IOException e) {
+					// Could not connect or the link closed
+				} finally {
+					writer = null;
+					if (id != null) {
+						linksById.remove(id, this);
+					}
+					if (out != null) {
+						out.close();
+					}
+				}
+				if (!running) {
+					return;
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(Backoff.delay(++attempt));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+	}
+
+	// A random challenge for the other end of a link to answer
+	private static String challenge() {
+		byte[] bytes = new byte[CHALLENGE_BYTES];
+		CHALLENGES.nextBytes(bytes);
+		return MessageRouter.hex(bytes);
+	}
+
+	// The answer to a challenge, which only a node with the cluster secret can give. The role and the id of the
+	// answering node are part of it so an answer cannot be replayed by the other end or for another node
+	private String prove(String role, String challenge, String id) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(secret);
+			return MessageRouter.hex(mac.doFinal((role + "\n" + challenge + "\n" + id).getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 is not available", e);	// Every Java runtime has it
+		}
+	}
+
+	private boolean verify(String answer, String role, String challenge, String id) {
+		return MessageDigest.isEqual(answer.getBytes(StandardCharsets.US_ASCII),
+				prove(role, challenge, id).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
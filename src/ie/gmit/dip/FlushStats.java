@@ -0,0 +1,91 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for how well outgoing messages are being coalesced. Every {@link BatchingWriter} and NIO connection
+ * of a server records into the same instance, so the counters are striped {@link LongAdder}s that many
+ * writer threads can update without contending.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class FlushStats {
+
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private long reportedMessages;											// Totals at the last report, only used by the reporting thread
+	private long reportedFlushes;
+	private long reportedAt = System.nanoTime();
+
+	/**
+	 * Records one flush of the socket.
+	 *
+	 * @param batched The number of messages written since the previous flush.
+	 */
+	public void record(int batched) {
+		messages.add(batched);
+		flushes.increment();
+	}
+
+	/**
+	 * @return The total number of messages written.
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 * @return The total number of flushes.
+	 */
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	/**
+	 * @return The average number of messages written per flush since the server started.
+	 */
+	public double getMessagesPerFlush() {
+		long total = flushes.sum();
+		return total == 0 ? 0 : (double) messages.sum() / total;
+	}
+
+	/**
+	 * Starts printing a {@link #report()} to the server console at a fixed interval on a daemon thread.
+	 *
+	 * @param intervalSeconds Seconds between reports.
+	 */
+	public void startReporting(long intervalSeconds) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread t = new Thread(task, "flush-stats");
+			t.setDaemon(true);												// Do not keep the server alive
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println(report()), intervalSeconds, intervalSeconds,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Describes the flush rate since the previous report. Must only be called from one thread at a time.
+	 *
+	 * @return A line for the server console with flushes per second and messages per flush.
+	 */
+	public String report() {
+		long now = System.nanoTime();
+		long totalMessages = messages.sum();
+		long totalFlushes = flushes.sum();
+		long newMessages = totalMessages - reportedMessages;
+		long newFlushes = totalFlushes - reportedFlushes;
+		double seconds = (now - reportedAt) / 1e9;
+		reportedMessages = totalMessages;
+		reportedFlushes = totalFlushes;
+		reportedAt = now;
+		return String.format("Flushes per second: %.1f, messages per flush: %.2f",
+				newFlushes / seconds, newFlushes == 0 ? 0 : (double) newMessages / newFlushes);
+	}
+
+}
@@ -0,0 +1,329 @@
+package ie.gmit.dip;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A single message of the binary protocol. A client chooses the binary protocol by sending {@link #HELLO}
+ * instead of a username line, and the server answers with the same bytes. Every message after that is a
+ * length prefixed frame:
+ *
+ * <pre>
+ * int    length         number of bytes that follow
+ * byte   version        {@link #VERSION}
+ * byte   opcode         see {@link Opcode}
+ * byte   flags          {@link #FLAG_SEQUENCE}, {@link #FLAG_DEFLATE} and {@link #FLAG_ACCEPTS_DEFLATE},
+ *                       other bits are reserved
+ * long   sequence       only present with {@link #FLAG_SEQUENCE}
+ * int    inflated length  only present with {@link #FLAG_DEFLATE}
+ * short  target length  the rest of the frame is deflated with {@link #FLAG_DEFLATE}
+ * byte[] target         UTF-8 username the opcode refers to
+ * byte[] body           UTF-8 message text, the rest of the frame
+ * </pre>
+ *
+ * A client that sets {@link #FLAG_ACCEPTS_DEFLATE} on its JOIN frame may be sent frames whose target and body
+ * are deflated, which the server does for frames above a size threshold, i.e. long pasted messages, the user
+ * list of a big room and the history replayed to a user who joins. Either side may deflate any frame it sends.
+ *
+ * Clients that send a username line instead keep using the original text protocol.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public final class Frame {
+
+	/** Version of the frame layout. */
+	public static final byte VERSION = 1;
+
+	/** Handshake sent by a binary client and echoed by the server. A text client never starts with a zero byte. */
+	static final byte[] HELLO = { 0, 'C', 'H', 'T', VERSION };
+
+	/** Flag set when the frame carries the sequence number of a message in its room. */
+	public static final byte FLAG_SEQUENCE = 0x01;
+
+	/** Flag set when the target and body of the frame are deflated. */
+	public static final byte FLAG_DEFLATE = 0x02;
+
+	/** Flag set on a client's JOIN frame when it can read frames sent with {@link #FLAG_DEFLATE}. */
+	public static final byte FLAG_ACCEPTS_DEFLATE = 0x04;
+
+	/** Largest frame accepted, not counting the length field. Also the most a deflated frame may inflate to. */
+	public static final int MAX_LENGTH = 1024 * 1024;
+
+	private static final int HEADER_LENGTH = 5;								// version, opcode, flags and target length
+
+	private final Opcode opcode;
+	private final byte flags;
+	private final long sequence;											// 0 unless FLAG_SEQUENCE is set
+	private final String target;
+	private final String body;
+
+	/**
+	 * Constructor for a frame with no flags.
+	 *
+	 * @param opcode The command of the frame.
+	 * @param target The username the command refers to, or an empty string.
+	 * @param body The message text, or an empty string.
+	 */
+	public Frame(Opcode opcode, String target, String body) {
+		this(opcode, (byte) 0, 0, target, body);
+	}
+
+	private Frame(Opcode opcode, byte flags, long sequence, String target, String body) {
+		this.opcode = opcode;
+		this.flags = flags;
+		this.sequence = sequence;
+		this.target = target;
+		this.body = body;
+	}
+
+	/**
+	 * @param sequence The sequence number of the message in its room, or of the last message in the room the
+	 *            frame refers to, which is 0 if the room has had no messages.
+	 * @return A copy of this frame that carries the sequence number.
+	 */
+	public Frame withSequence(long sequence) {
+		return new Frame(opcode, (byte) (flags | FLAG_SEQUENCE), sequence, target, body);
+	}
+
+	/**
+	 * @return A copy of this frame that tells the server the client can read deflated frames. Only meaningful
+	 *            on a JOIN frame.
+	 */
+	public Frame acceptingDeflate() {
+		return new Frame(opcode, (byte) (flags | FLAG_ACCEPTS_DEFLATE), sequence, target, body);
+	}
+
+	/**
+	 * @return The command of the frame.
+	 */
+	public Opcode getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * @return The flags of the frame.
+	 */
+	public byte getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return True if the frame carries a sequence number.
+	 */
+	public boolean hasSequence() {
+		return (flags & FLAG_SEQUENCE) != 0;
+	}
+
+	/**
+	 * @return True if the client that sent this frame can read deflated frames.
+	 */
+	public boolean acceptsDeflate() {
+		return (flags & FLAG_ACCEPTS_DEFLATE) != 0;
+	}
+
+	/**
+	 * @return The sequence number of the message in its room, or 0 if the frame does not carry one.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return The username the command refers to, or an empty string.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return The message text, or an empty string.
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Describes a frame sent by the server the same way the text protocol would, so binary and text
+	 * clients display the same thing.
+	 *
+	 * @return The line a text client would have received for this frame.
+	 */
+	public String toText() {
+		switch (opcode) {
+		case CHAT:
+			return target + ":" + body;
+		case DM:
+			return "DM from " + target + ": " + body;
+		case JOIN:
+			return body.isEmpty() ? "Server: " + target + " has entered the chat."
+					: "Server: " + target + " has joined room " + body + ".";
+		case QUIT:
+			return body.isEmpty() ? "Server: " + target + " has left the chat."
+					: "Server: " + target + " has left room " + body + ".";
+		case USERLIST:
+			return "Users online: " + body;
+		case NAME_ASSIGNED:
+			return "#name" + target;
+		case JOIN_ROOM:
+			return "Server: you are now in room " + target + ".";
+		case ROOMS:
+			return "Rooms: " + body;
+		case SESSION_TOKEN:
+			return "#token" + body;
+		case PING:
+			return "#ping";
+		case PONG:
+			return "#pong";
+		default:
+			throw new IllegalStateException("Unknown opcode: " + opcode);
+		}
+	}
+
+	/**
+	 * @return The frame encoded with its length prefix.
+	 */
+	public byte[] encode() {
+		byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+		byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER_LENGTH + (hasSequence() ? 8 : 0) + targetBytes.length + bodyBytes.length;
+		if (targetBytes.length > Short.MAX_VALUE || length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Frame too long: " + length + " bytes");
+		}
+		ByteBuffer buffer = header(length, flags);
+		buffer.putShort((short) targetBytes.length)
+				.put(targetBytes)
+				.put(bodyBytes);
+		return buffer.array();
+	}
+
+	/**
+	 * Encodes the frame with its target and body deflated. A message is deflated once however many clients it
+	 * is sent to, see {@link Payload}.
+	 *
+	 * @return The deflated frame with its length prefix, or the same bytes as {@link #encode()} if deflating
+	 *         would not make the frame any shorter.
+	 */
+	public byte[] encodeDeflated() {
+		byte[] plain = encode();
+		int start = 4 + HEADER_LENGTH - 2 + (hasSequence() ? 8 : 0);		// Where the target length starts
+		int inflatedLength = plain.length - start;
+		byte[] deflated = new byte[inflatedLength];
+		Deflater deflater = new Deflater();
+		int deflatedLength;
+		try {
+			deflater.setInput(plain, start, inflatedLength);
+			deflater.finish();
+			deflatedLength = deflater.deflate(deflated);
+			if (!deflater.finished() || deflatedLength + 4 >= inflatedLength) {
+				return plain;												// Already compressed or too short to gain anything
+			}
+		} finally {
+			deflater.end();													// Frees the native memory now rather than when collected
+		}
+		ByteBuffer buffer = header(start + deflatedLength, (byte) (flags | FLAG_DEFLATE));	// The inflated length is as long as the uncounted length prefix
+		buffer.putInt(inflatedLength)
+				.put(deflated, 0, deflatedLength);
+		return buffer.array();
+	}
+
+	// Allocates a frame of the length and writes everything before the target length
+	private ByteBuffer header(int length, byte headerFlags) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+		buffer.putInt(length)
+				.put(VERSION)
+				.put(opcode.getCode())
+				.put(headerFlags);
+		if (hasSequence()) {
+			buffer.putLong(sequence);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reads one frame from a blocking stream.
+	 *
+	 * @param in The stream to read from.
+	 * @return The next frame.
+	 * @throws IOException If the stream ends or the frame is not valid.
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		int length = in.readInt(); 											// Blocking operation
+		checkLength(length);
+		byte[] content = new byte[length];
+		in.readFully(content);
+		return decode(content);
+	}
+
+	/**
+	 * Decodes the content of a frame, everything after the length field.
+	 *
+	 * @param content The bytes of the frame.
+	 * @return The decoded frame.
+	 * @throws IOException If the frame is not valid.
+	 */
+	static Frame decode(byte[] content) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			byte version = buffer.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported frame version: " + version);
+			}
+			Opcode opcode = Opcode.fromCode(buffer.get());
+			byte flags = buffer.get();
+			long sequence = (flags & FLAG_SEQUENCE) != 0 ? buffer.getLong() : 0;
+			if ((flags & FLAG_DEFLATE) != 0) {
+				int inflatedLength = buffer.getInt();
+				content = inflate(content, buffer.position(), inflatedLength);
+				buffer = ByteBuffer.wrap(content);
+				flags &= ~FLAG_DEFLATE;											// The frame holds the inflated text from here on
+			}
+			int targetLength = buffer.getShort();
+			String target = new String(content, buffer.position(), targetLength, StandardCharsets.UTF_8);
+			int bodyStart = buffer.position() + targetLength;
+			String body = new String(content, bodyStart, content.length - bodyStart, StandardCharsets.UTF_8);
+			return new Frame(opcode, flags, sequence, target, body);
+		} catch (RuntimeException e) {											// Truncated header, bad target length or unknown opcode
+			throw new IOException("Invalid frame", e);
+		}
+	}
+
+	// Method inflates the deflated target and body of a frame, checking they inflate to exactly the length sent
+	private static byte[] inflate(byte[] content, int start, int inflatedLength) throws IOException {
+		if (inflatedLength < 2 || inflatedLength > MAX_LENGTH) {
+			throw new IOException("Invalid inflated frame length: " + inflatedLength);
+		}
+		byte[] inflated = new byte[inflatedLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(content, start, content.length - start);
+			if (inflater.inflate(inflated) != inflatedLength || !inflater.finished()) {
+				throw new IOException("Deflated frame does not inflate to " + inflatedLength + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid deflated frame", e);
+		} finally {
+			inflater.end();
+		}
+		return inflated;
+	}
+
+	/**
+	 * Checks the length prefix of a frame before its content is read.
+	 *
+	 * @param length The value of the length field.
+	 * @throws IOException If the length is out of range.
+	 */
+	static void checkLength(int length) throws IOException {
+		if (length < HEADER_LENGTH || length > MAX_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+	}
+
+}
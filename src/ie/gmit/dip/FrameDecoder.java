@@ -0,0 +1,67 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class splits the bytes read from a non-blocking channel into {@link Frame}s of the binary protocol. The
+ * {@link Frame#HELLO} handshake is checked first, then bytes are kept between reads until a whole frame has
+ * arrived.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class FrameDecoder {
+
+	private int helloRead;													// Bytes of the handshake checked so far
+	private int length;														// Length prefix of the current frame
+	private int lengthRead;													// Bytes of the length prefix read so far
+	private byte[] content;													// Content of the current frame, null while reading the length
+	private int filled;
+
+	/**
+	 * Reads bytes from the buffer until a whole frame is found.
+	 *
+	 * @param buffer A buffer in read mode. Its position is moved past the bytes that were used.
+	 * @return The next frame, or null if the buffer ran out before the frame was complete.
+	 * @throws IOException If the handshake or a frame is not valid.
+	 */
+	public Frame next(ByteBuffer buffer) throws IOException {
+		while (helloRead < Frame.HELLO.length) {
+			if (!buffer.hasRemaining()) {
+				return null;
+			}
+			if (buffer.get() != Frame.HELLO[helloRead++]) {
+				throw new IOException("Unsupported binary protocol handshake");
+			}
+		}
+
+		if (content == null) {
+			while (lengthRead < 4) {
+				if (!buffer.hasRemaining()) {
+					return null;
+				}
+				length = (length << 8) | (buffer.get() & 0xff);				// Big endian, the same as DataInputStream
+				lengthRead++;
+			}
+			Frame.checkLength(length);
+			content = new byte[length];
+			filled = 0;
+		}
+
+		int count = Math.min(buffer.remaining(), length - filled);
+		buffer.get(content, filled, count);
+		filled += count;
+		if (filled < length) {
+			return null;
+		}
+
+		Frame frame = Frame.decode(content);
+		content = null;
+		length = 0;
+		lengthRead = 0;
+		return frame;
+	}
+
+}
@@ -0,0 +1,134 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Runs the TLS handshakes of newly accepted connections on a small fixed pool of threads, so the accept loop
+ * of the {@link Server} or {@link NioServer} only ever accepts. A full handshake costs a signature with the
+ * server's key, which takes long enough that doing it on the accept thread would cap the rate at which a crowd
+ * of reconnecting clients can be let in, and a client that stalls part way would stop the server accepting.
+ *
+ * The pool has a bounded queue. A connection that arrives when the queue is full is closed straight away, as
+ * is one that takes longer than {@value #HANDSHAKE_TIMEOUT_MS} ms to answer, and both are counted in the
+ * server's metrics as failed handshakes. A client that is turned away reconnects with backoff.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class HandshakePool {
+
+	private static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+	private static final int BACKLOG_PER_THREAD = 256;						// Accepted connections waiting for a thread
+
+	private final SSLContext context;
+	private final ServerMetrics metrics;
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * Constructor starts the threads of the pool.
+	 *
+	 * @param context The TLS context of the server, which keeps the sessions clients may resume.
+	 * @param threads Number of handshakes run at once.
+	 * @param metrics The metrics of the server, which count the failed handshakes.
+	 */
+	public HandshakePool(SSLContext context, int threads, ServerMetrics metrics) {
+		this.context = context;
+		this.metrics = metrics;
+		AtomicInteger count = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * BACKLOG_PER_THREAD), r -> {
+					Thread t = new Thread(r, "tls-handshake-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * Wraps a socket accepted by the thread per connection server in TLS and runs its handshake.
+	 *
+	 * @param socket The newly accepted socket.
+	 * @param then Called on the pool's thread with the socket once the handshake is done.
+	 */
+	public void handshake(Socket socket, Consumer<SSLSocket> then) {
+		submit(socket, () -> {
+			SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+			ssl.setUseClientMode(false);
+			ssl.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+			ssl.startHandshake();
+			ssl.setSoTimeout(0);
+			then.accept(ssl);
+		});
+	}
+
+	/**
+	 * Runs the handshake of a channel accepted by the selector based server.
+	 *
+	 * @param channel The newly accepted channel in blocking mode.
+	 * @param then Called on the pool's thread with the TLS state of the channel once the handshake is done and
+	 * the channel is in non-blocking mode.
+	 */
+	public void handshake(SocketChannel channel, Consumer<TlsChannel> then) {
+		submit(channel.socket(), () -> {
+			SSLEngine engine = context.createSSLEngine();
+			engine.setUseClientMode(false);
+			TlsChannel tls = new TlsChannel(channel, engine);
+			tls.handshake(HANDSHAKE_TIMEOUT_MS);
+			then.accept(tls);
+		});
+	}
+
+	/**
+	 * Stops the threads once the handshakes already queued are done.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Method queues a handshake, closing the connection if it is turned away or fails
+	private void submit(Socket socket, Handshake handshake) {
+		try {
+			pool.execute(() -> {
+				try {
+					handshake.run();
+				} catch (IOException | RuntimeException e) {
+					fail(socket);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fail(socket);														// Too many handshakes waiting already
+		}
+	}
+
+	private void fail(Socket socket) {
+		metrics.tlsHandshakeFailed();
+		metrics.connectionClosed();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A handshake run on the pool.
+	 */
+	private interface Handshake {
+
+		void run() throws IOException;
+
+	}
+
+}
@@ -0,0 +1,122 @@
+package ie.gmit.dip;
+
+/**
+ * Finds connections that have gone quiet and closes the ones that no longer answer. A connection that has
+ * sent nothing for the heartbeat interval is sent a {@link Opcode#PING}, which a live client answers with a
+ * {@link Opcode#PONG}. If still nothing has arrived by the idle timeout the connection is closed, so a peer
+ * that vanished without closing its socket does not hold on to a thread, buffers and its username until TCP
+ * gives up hours later.
+ *
+ * Each connection has one {@link Watch} on a shared {@link TimerWheel}. Reading a message only stores the
+ * wheel's coarse clock in the watch. The watch is checked when its deadline comes round and put back on the
+ * wheel for the new deadline if the connection has been heard from, so a busy connection costs the wheel one
+ * check per heartbeat interval however many messages it sends.
+ *
+ * A connection is watched from the moment it is accepted, so one that never logs in is still closed at the
+ * idle timeout. It is only pinged once it has logged in, as until then the server may not know whether the
+ * client speaks the text or the binary protocol.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class IdleReaper {
+
+	private static final long TICK_MILLIS = 250;
+	private static final Payload PING = Payload.of(new Frame(Opcode.PING, "", ""));	// Shared by every connection
+
+	private final TimerWheel wheel = new TimerWheel(TICK_MILLIS);
+	private final long heartbeatMillis;
+	private final long idleTimeoutMillis;
+	private final ServerMetrics metrics;
+
+	/**
+	 * The idle state of one connection.
+	 */
+	public final class Watch extends TimerWheel.Timeout {
+
+		private final Session session;
+		private volatile long lastRead;										// Wheel clock when the connection was last heard from
+		private volatile boolean cancelled;
+		private long pinged = -1;											// lastRead when the ping was sent, only used by the wheel thread
+
+		private Watch(Session session, long now) {
+			this.session = session;
+			this.lastRead = now;
+		}
+
+		/**
+		 * Records that something was read from the connection. Called for every message so it only stores the
+		 * wheel's clock.
+		 */
+		public void touch() {
+			lastRead = wheel.now();
+		}
+
+		/**
+		 * Stops watching a connection that has closed. The wheel lets go of the watch, and so the session, at
+		 * its next tick.
+		 */
+		public void cancel() {
+			cancelled = true;
+			wheel.cancel(this);
+		}
+
+		@Override
+		protected long expire(long now) {
+			if (cancelled) {
+				return -1;
+			}
+			long last = lastRead;
+			long idle = now - last;
+			if (idle >= idleTimeoutMillis) {
+				metrics.sessionReaped();
+				session.close();											// The connection cleans up as if the peer had closed it
+				return -1;
+			}
+			if (idle >= heartbeatMillis) {
+				if (pinged != last && session.getUserName() != null) {		// Not before login, the protocol may not be known yet
+					pinged = last;
+					session.send(PING);										// Once for each quiet spell
+				}
+				return last + idleTimeoutMillis;
+			}
+			return last + heartbeatMillis;
+		}
+
+	}
+
+	/**
+	 * Constructor starts the wheel that checks the connections.
+	 *
+	 * @param heartbeatSeconds How long a connection may be quiet before it is sent a ping.
+	 * @param idleTimeoutSeconds How long a connection may be quiet before it is closed.
+	 * @param metrics The metrics of the server, which count the connections closed.
+	 */
+	public IdleReaper(long heartbeatSeconds, long idleTimeoutSeconds, ServerMetrics metrics) {
+		this.idleTimeoutMillis = idleTimeoutSeconds * 1000;
+		this.heartbeatMillis = Math.min(heartbeatSeconds * 1000, idleTimeoutMillis);
+		this.metrics = metrics;
+		wheel.start("idle-reaper");
+	}
+
+	/**
+	 * Starts watching a new connection.
+	 *
+	 * @param session The session of the connection, closed if it stays quiet for too long.
+	 * @return The watch the connection touches each time it reads a message.
+	 */
+	public Watch watch(Session session) {
+		Watch watch = new Watch(session, wheel.now());
+		wheel.schedule(watch, watch.lastRead + heartbeatMillis);
+		return watch;
+	}
+
+	/**
+	 * Stops checking connections.
+	 */
+	public void stop() {
+		wheel.stop();
+	}
+
+}
@@ -0,0 +1,132 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe histogram of durations in nanoseconds with a fixed set of log-linear buckets. Every power of two
+ * is split into {@value #SUB_BUCKETS} equal buckets, so a percentile is never more than about 3% above the
+ * true value, from nanoseconds up to hours. Any other non-negative value, such as the number of recipients of a
+ * message, can be recorded the same way.
+ *
+ * Recording only increments a striped {@link LongAdder}, so many threads can record at the same time without
+ * contending or allocating.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Constructor for an empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records one duration. Negative durations are recorded as zero.
+	 *
+	 * @param nanos The duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)].increment();
+		total.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return The number of durations recorded.
+	 */
+	public long getCount() {
+		return total.sum();
+	}
+
+	/**
+	 * @return The mean duration in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public double getMean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * @return The longest duration recorded in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile The percentile to find, i.e. 99.9 for the p999.
+	 * @return The upper bound of the bucket holding the percentile in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears every count. Durations recorded while the reset is in progress may be partly kept.
+	 */
+	public void reset() {
+		for (LongAdder count : counts) {
+			count.reset();
+		}
+		total.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	// Values below SUB_BUCKETS have a bucket each, above that each power of two is split into SUB_BUCKETS
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);					// At least SUB_BITS
+		int shift = exponent - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	// The largest value that falls into the bucket
+	private static long upperBound(int index) {
+		int group = index / SUB_BUCKETS;
+		long sub = index % SUB_BUCKETS;
+		if (group == 0) {
+			return sub;
+		}
+		int shift = group - 1;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+}
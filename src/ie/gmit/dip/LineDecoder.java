@@ -0,0 +1,50 @@
+package ie.gmit.dip;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class splits the bytes read from a non-blocking channel into lines of text. Bytes are kept between reads
+ * until a full line has arrived. Lines may end with <code>\n</code> or <code>\r\n</code>, the same as
+ * {@link java.io.BufferedReader#readLine()} used by the client application.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class LineDecoder {
+
+	private static final int MAX_LINE_LENGTH = 64 * 1024;					// Guards against a client that never sends a line break
+
+	private byte[] line = new byte[256];									// Bytes of the current partial line
+	private int length;
+
+	/**
+	 * Reads bytes from the buffer until a full line is found.
+	 *
+	 * @param buffer A buffer in read mode. Its position is moved past the bytes that were used.
+	 * @return The next line without its line terminator, or null if the buffer ran out before a line ended.
+	 * @throws IllegalStateException If a line is longer than the maximum line length.
+	 */
+	public String next(ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				int end = (length > 0 && line[length - 1] == '\r') ? length - 1 : length;	// Drop a Windows line terminator
+				String text = new String(line, 0, end, StandardCharsets.UTF_8);
+				length = 0;
+				return text;
+			}
+			if (length == line.length) {
+				if (length >= MAX_LINE_LENGTH) {
+					throw new IllegalStateException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+				}
+				line = Arrays.copyOf(line, length * 2);
+			}
+			line[length++] = b;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,393 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for end to end capacity tests of a running {@link Server}. It opens a number of
+ * simulated users, sends group and direct messages at a fixed total rate and measures how long each message
+ * takes to be delivered to every recipient.
+ *
+ * Each message carries the time it was due to be sent, so a sender that falls behind does not hide the delay
+ * it caused. Receiving users are spread over a few selector threads, using the same {@link FrameDecoder} and
+ * {@link LineDecoder} as the server, so the generator does not need a thread per user.
+ *
+ * Usage: <code>java ie.gmit.dip.LoadGenerator --port=5000 --connections=1000 --rate=2000 --dm-ratio=0.1</code>
+ * <ol>
+ * 	<li><strong>--host, --port:</strong><p>Address of the server, default localhost. The port must be given.</p>
+ * 	<li><strong>--connections:</strong><p>Number of simulated users.</p>
+ * 	<li><strong>--rooms:</strong><p>Users are spread over this many rooms, 1 keeps everyone in the lobby.</p>
+ * 	<li><strong>--rate:</strong><p>Messages sent per second by all users together.</p>
+ * 	<li><strong>--dm-ratio:</strong><p>Share of the messages sent as direct messages, from 0 to 1.</p>
+ * 	<li><strong>--size:</strong><p>Bytes of text in each message.</p>
+ * 	<li><strong>--warmup-s, --duration-s:</strong><p>Seconds to send before and while measuring.</p>
+ * 	<li><strong>--protocol:</strong><p><code>binary</code> frames, <code>deflate</code> for binary frames that are
+ * 	deflated both ways from the server's default threshold, or <code>text</code> lines.</p>
+ * 	<li><strong>--readers:</strong><p>Number of selector threads reading from the users' sockets.</p>
+ * <ol>
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class LoadGenerator {
+
+	private static final long JOIN_TIMEOUT_MS = 60_000;						// Time allowed for the server to register every user
+	private static final long DRAIN_MS = 2000;								// Time allowed for the last messages to arrive
+	private static final char STAMP = '@';									// Marks the send time inside a message
+
+	private String host = "localhost";
+	private int port;
+	private int connections = 100;
+	private int rooms = 1;
+	private int rate = 1000;
+	private double dmRatio = 0.1;
+	private int size = 64;
+	private int warmupSeconds = 2;
+	private int durationSeconds = 10;
+	private boolean binary = true;
+	private boolean deflate;
+	private int readers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder joined = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private volatile long measureFrom = Long.MAX_VALUE;						// Messages due before this time are not measured
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0) {
+				throw new IllegalArgumentException("Expected --name=value but found: " + arg);
+			}
+			generator.set(arg.substring(2, split), arg.substring(split + 1));
+		}
+		if (generator.port == 0) {
+			throw new IllegalArgumentException("The server port must be given with --port");
+		}
+		generator.run();
+	}
+
+	// Method sets a single command line option
+	private void set(String name, String value) {
+		switch (name) {
+		case "host":
+			host = value;
+			break;
+		case "port":
+			port = Integer.parseInt(value);
+			break;
+		case "connections":
+			connections = Integer.parseInt(value);
+			break;
+		case "rooms":
+			rooms = Integer.parseInt(value);
+			break;
+		case "rate":
+			rate = Integer.parseInt(value);
+			break;
+		case "dm-ratio":
+			dmRatio = Double.parseDouble(value);
+			break;
+		case "size":
+			size = Integer.parseInt(value);
+			break;
+		case "warmup-s":
+			warmupSeconds = Integer.parseInt(value);
+			break;
+		case "duration-s":
+			durationSeconds = Integer.parseInt(value);
+			break;
+		case "protocol":
+			deflate = "deflate".equalsIgnoreCase(value);
+			binary = deflate || "binary".equalsIgnoreCase(value);
+			break;
+		case "readers":
+			readers = Integer.parseInt(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+		if (connections < 2 || rooms < 1 || rate < 1 || dmRatio < 0 || dmRatio > 1 || readers < 1) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+		}
+	}
+
+	// Method connects every user, sends messages for the warm up and measured periods, then prints the results
+	private void run() throws IOException, InterruptedException {
+		Reader[] readerThreads = new Reader[readers];
+		for (int i = 0; i < readers; i++) {
+			readerThreads[i] = new Reader(Selector.open());
+			readerThreads[i].start();
+		}
+
+		String prefix = "load" + Long.toString(System.nanoTime() % 100_000, 36) + "-";	// Avoids names left over from an earlier run
+		User[] users = new User[connections];
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		for (int i = 0; i < connections; i++) {
+			users[i] = new User(SocketChannel.open(address), i, prefix + i, "room" + (i % rooms));
+			users[i].join();
+			readerThreads[i % readers].add(users[i]);
+		}
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MS;
+		while (joined.sum() < connections && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		if (joined.sum() < connections) {
+			System.out.println("Only " + joined.sum() + " of " + connections + " users joined, stopping");
+			shutdown(readerThreads, users);
+			return;
+		}
+		if (rooms > 1) {
+			for (User user : users) {
+				user.send(new Frame(Opcode.JOIN_ROOM, user.room, ""), "#join " + user.room);
+			}
+			Thread.sleep(500);												// Let the room changes settle before any message is sent
+		}
+		System.out.printf("%d users joined in %d rooms, sending %d messages per second with %.0f%% direct messages%n",
+				connections, rooms, rate, dmRatio * 100);
+
+		long[] expected = new long[1];
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long sent = send(users, start, end, expected);
+		Thread.sleep(DRAIN_MS);
+		running = false;
+
+		double seconds = durationSeconds;
+		System.out.printf("Sent %d messages (%.1f per second), delivered %d of %d expected (%.1f per second)%n",
+				sent, sent / seconds, delivered.sum(), expected[0], delivered.sum() / seconds);
+		System.out.printf("Delivery latency p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms, mean %.3f ms%n",
+				millis(latency.getPercentile(50)), millis(latency.getPercentile(99)), millis(latency.getPercentile(99.9)),
+				millis(latency.getMax()), latency.getMean() / 1e6);
+		shutdown(readerThreads, users);
+	}
+
+	// Method sends messages from random users at the fixed rate until the end time and returns the number
+	// sent while measuring. The expected number of deliveries is added to the input array
+	private long send(User[] users, long start, long end, long[] expected) throws IOException {
+		Random random = new Random(42);										// The same sequence of senders every run
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		char[] padding = new char[Math.max(0, size - 22)];
+		Arrays.fill(padding, 'x');
+		String pad = new String(padding);
+		int[] roomSizes = new int[rooms];
+		for (int i = 0; i < connections; i++) {
+			roomSizes[i % rooms]++;
+		}
+		long sent = 0;
+
+		for (long due = start; due < end; due += interval) {
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			User sender = users[random.nextInt(connections)];
+			String body = STAMP + Long.toString(due) + STAMP + pad;			// The due time, not the actual send time
+			boolean direct = random.nextDouble() < dmRatio;
+			if (direct) {
+				User recipient = users[(sender.index + 1 + random.nextInt(connections - 1)) % connections];	// Anyone but the sender
+				sender.send(new Frame(Opcode.DM, recipient.name, body), "#" + recipient.name + " " + body);
+			} else {
+				sender.send(new Frame(Opcode.CHAT, "", body), body);
+			}
+			if (due >= measureFrom) {
+				sent++;
+				expected[0] += direct ? 1 : roomSizes[sender.index % rooms] - 1;
+			}
+		}
+		return sent;
+	}
+
+	// Method closes every connection and stops the reader threads
+	private void shutdown(Reader[] readerThreads, User[] users) throws InterruptedException {
+		running = false;
+		for (Reader reader : readerThreads) {
+			reader.selector.wakeup();
+			reader.join();
+		}
+		for (User user : users) {
+			if (user != null) {
+				try {
+					user.channel.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+		}
+	}
+
+	// Method records the delivery latency of a received chat message if it carries a send time
+	private void received(String text) {
+		int from = text.indexOf(STAMP);
+		int to = from < 0 ? -1 : text.indexOf(STAMP, from + 1);
+		if (to < 0) {
+			return;
+		}
+		long due = Long.parseLong(text.substring(from + 1, to));
+		if (due >= measureFrom) {
+			latency.record(System.nanoTime() - due);
+			delivered.increment();
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * A simulated user with its own connection to the server.
+	 */
+	private class User {
+
+		private final SocketChannel channel;
+		private final String name;
+		private final String room;
+		private final int index;
+		private final FrameDecoder frameDecoder = new FrameDecoder();		// Checks the server's handshake, then reads frames
+		private final LineDecoder lineDecoder = new LineDecoder();
+
+		private User(SocketChannel channel, int index, String name, String room) throws IOException {
+			this.channel = channel;
+			this.index = index;
+			this.name = name;
+			this.room = room;
+			channel.socket().setTcpNoDelay(true);
+		}
+
+		// Sends the handshake and username the same way as the client application
+		private void join() throws IOException {
+			if (binary) {
+				write(ByteBuffer.wrap(Frame.HELLO));
+				Frame join = new Frame(Opcode.JOIN, name, "");
+				write(ByteBuffer.wrap((deflate ? join.acceptingDeflate() : join).encode()));
+			} else {
+				write(ByteBuffer.wrap((name + "\n").getBytes(StandardCharsets.UTF_8)));
+			}
+			channel.configureBlocking(false);
+		}
+
+		// Sends a message as a frame or as the line the text client would send for it
+		private void send(Frame frame, String line) throws IOException {
+			if (binary) {
+				boolean large = deflate && size >= ServerConfig.DEFAULT_COMPRESS_THRESHOLD;
+				write(ByteBuffer.wrap(large ? frame.encodeDeflated() : frame.encode()));
+			} else {
+				write(ByteBuffer.wrap((name + ":" + line + "\n").getBytes(StandardCharsets.UTF_8)));
+			}
+		}
+
+		// Writes the whole buffer, waiting while the socket buffer is full. The sending thread and the reader
+		// answering a ping may both write, so whole messages are written under the lock
+		private synchronized void write(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.write(buffer) == 0) {
+					Thread.yield();
+				}
+			}
+		}
+
+		// Decodes what the server sent and records each delivered message
+		private void read(ByteBuffer buffer) throws IOException {
+			if (binary) {
+				Frame frame;
+				while ((frame = frameDecoder.next(buffer)) != null) {
+					if (frame.getOpcode() == Opcode.NAME_ASSIGNED) {
+						joined.increment();
+					} else if (frame.getOpcode() == Opcode.PING) {
+						write(ByteBuffer.wrap(new Frame(Opcode.PONG, "", "").encode()));	// Keeps a quiet user from being reaped
+					} else if (frame.getOpcode() == Opcode.CHAT || frame.getOpcode() == Opcode.DM) {
+						received(frame.getBody());
+					}
+				}
+			} else {
+				String line;
+				while ((line = lineDecoder.next(buffer)) != null) {
+					if (line.startsWith("#name")) {
+						joined.increment();
+					} else if ("#ping".equals(line)) {
+						write(ByteBuffer.wrap("#pong\n".getBytes(StandardCharsets.UTF_8)));
+					} else {
+						received(line);
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A thread that reads from its share of the users' sockets with a selector.
+	 */
+	private class Reader extends Thread {
+
+		private final Selector selector;
+		private final Queue<User> pending = new ConcurrentLinkedQueue<>();	// Users waiting to be registered by this thread
+
+		private Reader(Selector selector) {
+			super("load-reader");
+			this.selector = selector;
+			setDaemon(true);
+		}
+
+		private void add(User user) {
+			pending.add(user);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			List<User> failed = new ArrayList<>();
+			try {
+				while (running) {
+					selector.select();
+					User user;
+					while ((user = pending.poll()) != null) {
+						user.channel.register(selector, SelectionKey.OP_READ, user);
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						User reader = (User) key.attachment();
+						buffer.clear();
+						if (reader.channel.read(buffer) < 0) {
+							key.cancel();
+							failed.add(reader);
+							continue;
+						}
+						buffer.flip();
+						reader.read(buffer);
+					}
+				}
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (!failed.isEmpty()) {
+				System.out.println(failed.size() + " users were disconnected by the server");
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,510 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal of the group messages of every room, so a client that reconnects can be sent what it
+ * missed. Each room has a directory of segment files, each named after the sequence number of its first
+ * message. A segment holds records of the form:
+ *
+ * <pre>
+ * int    crc            CRC32 of the rest of the record
+ * long   sequence       sequence number of the message in its room
+ * byte[] frame          the message as a binary protocol {@link Frame}, with its length prefix
+ * </pre>
+ *
+ * The broadcast path only adds the message to a bounded queue and never waits for the disk. A single journal
+ * thread writes the queued records with a {@link FileChannel} and forces them to disk once per batch, so many
+ * messages share one sync (group commit). If the queue is ever full the message is left out of the journal
+ * and counted rather than holding up the broadcast.
+ *
+ * History is replayed on a thread of its own from memory mapped segments, up to {@value #REPLAY_LIMIT} of the
+ * most recent messages. The caller is told when a replay is done, so it can hold the client's live messages
+ * back until then. A torn record at the end of the last segment, i.e. after a crash, is cut off when the
+ * journal is opened.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class MessageJournal {
+
+	private static final int QUEUE_CAPACITY = 64 * 1024;					// Messages waiting for the journal thread
+	private static final int BATCH_SIZE = 1024;								// Most messages written per sync
+	private static final int BUFFER_SIZE = 64 * 1024;						// Write buffer of each room
+	private static final int RECORD_HEADER = 12;							// crc and sequence
+	static final int RETAINED_SEGMENTS = 8;									// Older segments of a room are deleted once not needed for a replay
+	static final int REPLAY_LIMIT = 1000;									// Most messages replayed to one client
+	private static final long COMMIT_WAIT_MS = 1000;						// Longest a replay waits for the journal to catch up
+	private static final String SUFFIX = ".log";
+
+	private final int segmentBytes;
+	private final LongAdder dropped;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+	private final Function<String, RoomLog> newLog;							// Kept so looking up a log does not allocate
+	private final ExecutorService replayExecutor;
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	private MessageJournal(Path directory, int segmentBytes, LongAdder dropped) {
+		this.segmentBytes = segmentBytes;
+		this.dropped = dropped;
+		this.newLog = room -> new RoomLog(room, directory.resolve(encode(room)), 0);
+		this.replayExecutor = Executors.newSingleThreadExecutor(task -> {
+			Thread t = new Thread(task, "journal-replay");
+			t.setDaemon(true);
+			return t;
+		});
+		this.writerThread = new Thread(this::writeLoop, "journal-writer");
+	}
+
+	/**
+	 * Opens the journal in a directory, recovering the rooms already in it, and starts the journal thread.
+	 *
+	 * @param directory The directory of the journal. It is created if it does not exist.
+	 * @param segmentBytes Size at which a room moves on to a new segment file.
+	 * @param dropped Counter for messages left out because the journal had fallen too far behind.
+	 * @return The open journal.
+	 * @throws IOException If the directory or a segment cannot be read.
+	 */
+	public static MessageJournal open(Path directory, int segmentBytes, LongAdder dropped) throws IOException {
+		Files.createDirectories(directory);
+		MessageJournal journal = new MessageJournal(directory, segmentBytes, dropped);
+		try (DirectoryStream<Path> rooms = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (Path roomDirectory : rooms) {
+				String room = decode(roomDirectory.getFileName().toString());
+				journal.logs.put(room, journal.recover(room, roomDirectory));
+			}
+		}
+		journal.writerThread.start();
+		return journal;
+	}
+
+	/**
+	 * @param room The name of a room.
+	 * @return The last sequence number given to a message of the room, or 0 if it has none.
+	 */
+	public long lastSequence(String room) {
+		RoomLog log = logs.get(room);
+		return log == null ? 0 : log.lastAssigned;
+	}
+
+	/**
+	 * Queues a group message to be written. The caller must hold the room's lock so messages of one room are
+	 * queued in sequence order. Never blocks.
+	 *
+	 * @param room The name of the room the message was sent to.
+	 * @param sequence The sequence number of the message.
+	 * @param payload The message, which must have a binary form.
+	 */
+	public void append(String room, long sequence, Payload payload) {
+		RoomLog log = logs.computeIfAbsent(room, newLog);
+		log.lastAssigned = sequence;
+		if (!queue.offer(new Entry(log, sequence, payload))) {
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Sends a client the messages of a room it has not seen, on the journal's replay thread. Only the most
+	 * recent {@value #REPLAY_LIMIT} messages are sent.
+	 *
+	 * @param room The name of the room.
+	 * @param after The last sequence number the client has seen.
+	 * @param upTo The sequence number of the last message the client will not receive live.
+	 * @param session The client to send the messages to.
+	 * @param then Run once the messages have been sent or the replay has failed, on whichever thread finished
+	 * it, so the caller can go on to send the client the messages after <code>upTo</code>.
+	 */
+	public void replay(String room, long after, long upTo, Session session, Runnable then) {
+		RoomLog log = logs.get(room);
+		if (log == null || after >= upTo) {
+			then.run();
+			return;
+		}
+		try {
+			replayExecutor.execute(() -> {
+				try {
+					log.replay(Math.max(after + 1, upTo - REPLAY_LIMIT + 1), upTo, session);
+				} catch (IOException e) {
+					System.out.println("Could not replay room " + room + ": " + e.getMessage());
+				} finally {
+					then.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			then.run();															// The journal is closing
+		}
+	}
+
+	/**
+	 * Writes everything still queued, syncs it to disk and stops the journal thread.
+	 */
+	public void close() {
+		running = false;													// Not interrupted, that would close the segment being written
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		replayExecutor.shutdownNow();
+	}
+
+	// Method takes batches of records off the queue, writes them and syncs each room written to once per batch
+	private void writeLoop() {
+		List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+		List<RoomLog> written = new ArrayList<>();
+		while (running || !queue.isEmpty()) {
+			try {
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);		// Wakes regularly to see if the journal is closing
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			queue.drainTo(batch, BATCH_SIZE - batch.size());
+			for (Entry entry : batch) {
+				try {
+					entry.log.write(entry.sequence, entry.payload.buffer(true));
+					if (!entry.log.dirty) {
+						entry.log.dirty = true;
+						written.add(entry.log);
+					}
+				} catch (IOException e) {
+					System.out.println("Could not write to the journal: " + e.getMessage());
+				}
+			}
+			for (RoomLog log : written) {
+				try {
+					log.commit();												// One sync for every record of the batch
+				} catch (IOException e) {
+					System.out.println("Could not sync the journal: " + e.getMessage());
+				}
+				log.dirty = false;
+			}
+			batch.clear();
+			written.clear();
+		}
+		for (RoomLog log : logs.values()) {
+			log.closeChannel();
+		}
+	}
+
+	// Method reads the segments of a room left by an earlier run and cuts off a torn record at the end
+	private RoomLog recover(String room, Path roomDirectory) throws IOException {
+		List<Segment> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(roomDirectory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+						Files.size(file), false));
+			}
+		}
+		Collections.sort(segments, (a, b) -> Long.compare(a.firstSequence, b.firstSequence));
+
+		long last = 0;
+		if (!segments.isEmpty()) {
+			Segment tail = segments.get(segments.size() - 1);
+			last = tail.firstSequence - 1;
+			long valid = 0;
+			try (FileChannel channel = FileChannel.open(tail.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				CRC32 crc = new CRC32();
+				while (records.remaining() >= RECORD_HEADER + 4) {
+					int start = records.position();
+					int expected = records.getInt();
+					long sequence = records.getLong();
+					int length = records.getInt(records.position());
+					if (length < 0 || length > Frame.MAX_LENGTH || records.remaining() < 4 + length) {
+						break;
+					}
+					ByteBuffer rest = records.duplicate();
+					rest.position(start + 4).limit(records.position() + 4 + length);
+					crc.reset();
+					crc.update(rest);
+					if ((int) crc.getValue() != expected) {
+						break;
+					}
+					records.position(records.position() + 4 + length);
+					last = sequence;
+					valid = records.position();
+				}
+				if (valid < channel.size()) {
+					channel.truncate(valid);
+				}
+			}
+			tail.size = valid;
+		}
+		for (int i = 0; i < segments.size() - 1; i++) {
+			segments.get(i).sealed = true;
+		}
+		RoomLog log = new RoomLog(room, roomDirectory, last);
+		log.segments.addAll(segments);
+		return log;
+	}
+
+	// Room names may hold any character but a space, so they are escaped to make a safe directory name
+	private static String encode(String room) {
+		try {
+			return URLEncoder.encode(room, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String directoryName) {
+		try {
+			return URLDecoder.decode(directoryName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A message waiting to be written.
+	 */
+	private static class Entry {
+
+		private final RoomLog log;
+		private final long sequence;
+		private final Payload payload;
+
+		private Entry(RoomLog log, long sequence, Payload payload) {
+			this.log = log;
+			this.sequence = sequence;
+			this.payload = payload;
+		}
+
+	}
+
+	/**
+	 * One segment file of a room.
+	 */
+	private static class Segment {
+
+		private final Path path;
+		private final long firstSequence;
+		private volatile long size;											// Bytes synced to disk, the most a reader may map
+		private volatile boolean sealed;									// No more records will be added
+		private volatile MappedByteBuffer mapped;							// Kept once the segment is sealed
+
+		private Segment(Path path, long firstSequence, long size, boolean sealed) {
+			this.path = path;
+			this.firstSequence = firstSequence;
+			this.size = size;
+			this.sealed = sealed;
+		}
+
+		// Returns a buffer over the synced records with its own position
+		private ByteBuffer map() throws IOException {
+			MappedByteBuffer buffer = mapped;
+			if (buffer == null) {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, channel.size()));
+				}
+				if (sealed) {
+					mapped = buffer;
+				}
+			}
+			return buffer.duplicate();
+		}
+
+	}
+
+	/**
+	 * The segments of one room. Only the journal thread writes, any thread may read the synced records.
+	 */
+	private class RoomLog {
+
+		private final String room;
+		private final Path roomDirectory;
+		private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32 crc = new CRC32();
+		private volatile long lastAssigned;									// Last sequence number queued, set by the broadcast path
+		private long lastWritten;											// Only used by the journal thread
+		private long committed;												// Last sequence number synced, guarded by this
+		private FileChannel channel;										// The active segment, opened on the first write
+		private Segment active;
+		private long position;												// Bytes in the active segment, including the buffer
+		private boolean dirty;												// Written to in the current batch
+
+		private RoomLog(String room, Path roomDirectory, long lastSequence) {
+			this.room = room;
+			this.roomDirectory = roomDirectory;
+			this.lastAssigned = lastSequence;
+			this.lastWritten = lastSequence;
+			this.committed = lastSequence;
+		}
+
+		// Adds a record to the write buffer, moving on to a new segment if the active one is full
+		private void write(long sequence, ByteBuffer frame) throws IOException {
+			int length = RECORD_HEADER + frame.remaining();
+			if (channel == null || (position > 0 && position + length > segmentBytes)) {
+				roll(sequence, length);
+			}
+			ByteBuffer target = buffer;
+			if (length > buffer.remaining()) {
+				flushBuffer();
+				if (length > buffer.capacity()) {
+					target = ByteBuffer.allocate(length);						// Rare, a frame larger than the buffer
+				}
+			}
+			int start = target.position();
+			target.putInt(0).putLong(sequence).put(frame);
+			ByteBuffer checked = target.duplicate();
+			checked.position(start + 4).limit(target.position());
+			crc.reset();
+			crc.update(checked);
+			target.putInt(start, (int) crc.getValue());
+			if (target != buffer) {
+				target.flip();
+				writeFully(target);
+			}
+			position += length;
+			lastWritten = sequence;
+		}
+
+		// Writes the buffer, syncs the segment and lets readers see the new records
+		private void commit() throws IOException {
+			flushBuffer();
+			channel.force(false);
+			active.size = position;
+			synchronized (this) {
+				committed = lastWritten;
+				notifyAll();
+			}
+		}
+
+		// Seals the active segment and starts a new one named after the next sequence number
+		private void roll(long firstSequence, int length) throws IOException {
+			if (channel != null) {
+				flushBuffer();
+				channel.force(false);
+				active.size = position;
+				active.sealed = true;
+				channel.close();
+			} else if (!segments.isEmpty()) {
+				Segment tail = segments.get(segments.size() - 1);
+				if (!tail.sealed && tail.size + length <= segmentBytes) {			// Carry on with the last segment of an earlier run
+					channel = FileChannel.open(tail.path, StandardOpenOption.WRITE);
+					channel.position(tail.size);
+					active = tail;
+					position = tail.size;
+					return;
+				}
+				tail.sealed = true;
+			}
+			Files.createDirectories(roomDirectory);
+			Path path = roomDirectory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			active = new Segment(path, firstSequence, 0, false);
+			position = 0;
+			segments.add(active);
+			while (segments.size() > RETAINED_SEGMENTS
+					&& segments.get(1).firstSequence <= firstSequence - REPLAY_LIMIT) {	// Small segments may all still be needed for a replay
+				Segment oldest = segments.remove(0);
+				Files.deleteIfExists(oldest.path);								// A reader that has mapped it keeps its mapping
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+
+		private void writeFully(ByteBuffer source) throws IOException {
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+		}
+
+		private void closeChannel() {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// Sends the synced messages from one sequence number to another, waiting briefly for the journal to catch up
+		private void replay(long from, long upTo, Session session) throws IOException {
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + COMMIT_WAIT_MS;
+				long wait;
+				while (committed < upTo && (wait = deadline - System.currentTimeMillis()) > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+			List<Segment> snapshot = new ArrayList<>(segments);
+			int first = 0;
+			for (int i = 0; i < snapshot.size(); i++) {
+				if (snapshot.get(i).firstSequence <= from) {
+					first = i;														// Last segment that starts at or before the first message wanted
+				}
+			}
+			for (int i = first; i < snapshot.size(); i++) {
+				ByteBuffer records;
+				try {
+					records = snapshot.get(i).map();
+				} catch (NoSuchFileException e) {
+					continue;														// Deleted by the retention limit
+				}
+				while (records.remaining() >= RECORD_HEADER + 4) {
+					records.getInt();												// The crc was checked when the journal was opened
+					long sequence = records.getLong();
+					int length = records.getInt();
+					if (sequence > upTo) {
+						return;
+					}
+					if (sequence < from) {
+						records.position(records.position() + length);
+						continue;
+					}
+					byte[] content = new byte[length];
+					records.get(content);
+					session.send(Payload.of(Frame.decode(content)));
+				}
+			}
+		}
+
+	}
+
+}
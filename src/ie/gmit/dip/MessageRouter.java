@@ -0,0 +1,835 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Class holds the users currently on the server and the {@link ChatRoom}s they are in, and implements the chat
+ * room commands. It is shared by both server modes so the line protocol is the same no matter how the
+ * connection is being serviced.
+ *
+ * Every user starts in the {@link #DEFAULT_ROOM} and is in exactly one room at a time. Group messages and
+ * join/leave notices only go to the members of the sender's room. Each group message is numbered in its room
+ * and, if the server keeps a {@link MessageJournal}, written to it so a client that reconnects can resume
+ * from the last message it saw by sending {@link Opcode#JOIN_ROOM} with that sequence number. Live messages of
+ * the room are held back from it until it has been sent the ones it missed. A user who
+ * joins a room is first sent the room's {@link RecentHistory} so they can follow the conversation.
+ *
+ * Each user is given a session token when they join. If their connection drops without them asking to
+ * leave, a {@link ParkedSession} keeps their name and the messages sent to them for a grace period, and a
+ * client that reconnects with the token takes the session back under the same name. Connections that go
+ * quiet are pinged and closed by an {@link IdleReaper} if they stop answering. Before a message is handled
+ * the connection asks the router how long to wait under its own and its room's {@link TokenBucket}.
+ *
+ * If the server is a node of a cluster, users joining, moving room and leaving and their group messages are
+ * passed to the {@link ClusterNode}, which tells the other nodes. The users of other nodes are kept as
+ * {@link RemoteSession}s in the registry and their rooms, so they take up their names, show in user lists
+ * and are sent direct messages through their own node.
+ *
+ * There is six commands that the server screens for in received messages:
+ * <ol>
+ * 	<li><strong>\q:</strong><p>The user leaves the chat.</p>
+ * 	<li><strong>#userlist</strong><p>The list of other users in the room is sent back to the user.</p>
+ * 	<li><strong>#rooms</strong><p>The list of rooms and how many users are in each is sent back to the user.</p>
+ * 	<li><strong>#join *</strong><p>The user moves to the room whose name replaces the *, creating it if needed.</p>
+ * 	<li><strong>#leave</strong><p>The user leaves their room and goes back to the default room.</p>
+ * 	<li><strong>#*</strong><p>The message is only sent to the user whose name replaces the *. The command must
+ * 	start the message, after the sender's "name:" prefix.</p>
+ * <ol>
+ *
+ * Clients using the binary protocol send the same commands as {@link Frame}s, which are dispatched on their
+ * {@link Opcode} without looking at the message text.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class MessageRouter {
+
+	/** Name of the room every user is in when they first join. It is never removed. */
+	public static final String DEFAULT_ROOM = "lobby";
+
+	private static final int MAX_ROOM_NAME = 32;
+	private static final int TOKEN_BYTES = 16;
+	private static final SecureRandom TOKENS = new SecureRandom();
+	private static final Payload PONG = Payload.of(new Frame(Opcode.PONG, "", ""));
+
+	private final UserRegistry users = new UserRegistry();					// Stores the Session object for current users on the server
+	private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();	// Rooms with at least one member, by name
+	private final ServerMetrics metrics = new ServerMetrics(users);
+	private final MessageJournal journal;									// Null if messages are not kept
+	private final int historySize;											// Recent messages kept in each room
+	private final Supplier<TokenBucket> roomRateLimits;						// Creates each new room's rate limit
+	private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();	// Session token of each user, by name
+	private final ConcurrentHashMap<Session, HeldMessages> held = new ConcurrentHashMap<>();	// Live messages kept back during a replay
+	private final long resumeGraceSeconds;									// 0 if a dropped user leaves straight away
+	private final int parkedCapacity;										// Most messages kept for a dropped user
+	private final ScheduledThreadPoolExecutor reaper;						// Ends parked sessions, null if none are kept
+	private final IdleReaper idleReaper;									// Closes quiet connections, null if they are kept
+	private final int deflateAbove;											// Payload.NO_DEFLATE if frames are never deflated
+	private volatile ClusterNode cluster;									// Null unless the server is a node of a cluster
+
+	/**
+	 * Constructor for a router that does not keep a journal of messages or parked sessions, and keeps the
+	 * default number of recent messages in each room.
+	 */
+	public MessageRouter() {
+		this.journal = null;
+		this.historySize = ServerConfig.DEFAULT_HISTORY;
+		this.roomRateLimits = () -> null;
+		this.resumeGraceSeconds = 0;
+		this.parkedCapacity = 0;
+		this.reaper = null;
+		this.idleReaper = null;
+		this.deflateAbove = ServerConfig.DEFAULT_COMPRESS_THRESHOLD;
+	}
+
+	/**
+	 * Constructor for a router that keeps a journal of messages if the start up options ask for one.
+	 *
+	 * @param config The start up options of the server.
+	 * @throws IOException If the journal cannot be opened.
+	 */
+	public MessageRouter(ServerConfig config) throws IOException {
+		this.journal = config.getJournalDir() == null ? null
+				: MessageJournal.open(Paths.get(config.getJournalDir()), config.getJournalSegmentBytes(),
+						metrics.getJournalDropCounter());
+		this.historySize = config.getHistory();
+		this.roomRateLimits = config::newRoomRateLimit;
+		this.resumeGraceSeconds = config.getResumeGraceSeconds();
+		this.parkedCapacity = config.getOutboundQueueSize();
+		if (resumeGraceSeconds > 0) {
+			reaper = new ScheduledThreadPoolExecutor(1, task -> {
+				Thread thread = new Thread(task, "session-reaper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			reaper.setRemoveOnCancelPolicy(true);							// A resumed session's expiry is dropped straight away
+		} else {
+			reaper = null;
+		}
+		this.idleReaper = config.getIdleTimeoutSeconds() > 0
+				? new IdleReaper(config.getHeartbeatSeconds(), config.getIdleTimeoutSeconds(), metrics) : null;
+		this.deflateAbove = config.getCompressThreshold() > 0 ? config.getCompressThreshold() : Payload.NO_DEFLATE;
+	}
+
+	/**
+	 * Makes the server a node of a cluster. Set before any client connects.
+	 *
+	 * @param cluster The node that tells the other nodes about this server's users.
+	 */
+	public void setCluster(ClusterNode cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Starts checking that a new connection is still alive.
+	 *
+	 * @param session The session of the connection.
+	 * @return The watch to touch each time a message is read, or null if quiet connections are never closed.
+	 */
+	public IdleReaper.Watch watch(Session session) {
+		return idleReaper == null ? null : idleReaper.watch(session);
+	}
+
+	/**
+	 * Converts the first line from a client of the text protocol to a {@link Opcode#JOIN} frame. The line is
+	 * the username, or <code>#resume &lt;token&gt; &lt;username&gt;</code> to take back a session.
+	 *
+	 * @param line The first line read from the client.
+	 * @return The join request.
+	 */
+	public static Frame toJoin(String line) {
+		if (line.startsWith("#resume ")) {
+			String[] parts = line.split(" ", 3);
+			if (parts.length == 3) {
+				return new Frame(Opcode.JOIN, parts[2], parts[1]);
+			}
+		}
+		return new Frame(Opcode.JOIN, line, "");
+	}
+
+	/**
+	 * Decides from a client's join request whether long frames are deflated before they are sent to it. The
+	 * session passes the answer to {@link Payload#buffer(boolean, int)} or its equivalent for every message.
+	 *
+	 * @param join The join request sent by the client.
+	 * @return Length from which frames are sent to the client deflated, or {@link Payload#NO_DEFLATE}.
+	 */
+	public int deflateAbove(Frame join) {
+		return join.acceptsDeflate() ? deflateAbove : Payload.NO_DEFLATE;
+	}
+
+	/**
+	 * Logs in a client from its join request, the same for every transport. The user's session is taken back if
+	 * the request carries its token, otherwise the client is given a unique name and joins the default room.
+	 *
+	 * @param session The session of the new connection.
+	 * @param join The join request sent by the client.
+	 * @param named Sets the session's username, called before the session is announced to the room.
+	 * @return The username of the session.
+	 */
+	public String login(Session session, Frame join, Consumer<String> named) {
+		String name = resume(session, join);
+		if (name != null) {
+			named.accept(name);
+			return name;
+		}
+		name = uniqueName(join.getTarget(), session);							// Check/modifies a username if already in use
+		named.accept(name);
+		join(session);															// Announce the new user to the chat room
+		return name;
+	}
+
+	/**
+	 * Gives a reconnecting client back its session if the join request carries the session token of a user who
+	 * is still on the server. Messages kept while the user was away are sent to the new session, which takes the
+	 * place of the old one in the registry and the user's room without the other users being told.
+	 *
+	 * The swap holds the room's {@link ChatRoom#swapLock()}, the same as in {@link #disconnect(Session)}, so an
+	 * old connection that is still open is never parked halfway through being replaced and no message sent to
+	 * the room meanwhile misses both sessions.
+	 *
+	 * @param session The session of the new connection.
+	 * @param join The join request sent by the client.
+	 * @return The username taken back, or null if the client must join as a new user.
+	 */
+	public String resume(Session session, Frame join) {
+		String name = join.getTarget();
+		String expected = tokens.get(name);
+		if (join.getBody().isEmpty() || expected == null || !MessageDigest.isEqual(
+				expected.getBytes(StandardCharsets.US_ASCII), join.getBody().getBytes(StandardCharsets.US_ASCII))) {
+			return null;
+		}
+		while (true) {
+			Session old = users.get(name);
+			ChatRoom room = old == null ? null : old.getRoom();
+			if (room == null) {
+				return null;														// Gone, or has not joined a room yet
+			}
+			Lock lock = room.swapLock();
+			lock.lock();
+			try {
+				if (old.getRoom() != room || !users.replace(name, old, session)) {
+					continue;														// Moved, parked or gone meanwhile, look again
+				}
+				session.send(Payload.of(new Frame(Opcode.NAME_ASSIGNED, name, "")));	// No sequence number, the client keeps its room
+				session.setRoom(room);
+				if (old instanceof ParkedSession) {
+					((ParkedSession) old).resume(session);						// Messages kept for the user go first
+				}
+				swap(room, old, session);
+			} finally {
+				lock.unlock();
+			}
+			old.close();														// An old connection has not noticed it is gone yet
+			metrics.sessionResumed();
+			return name;
+		}
+	}
+
+	/**
+	 * Handles a connection that closed without the user asking to leave. If the server keeps parked sessions the
+	 * user stays in their room under the same name for the grace period, otherwise they leave straight away.
+	 *
+	 * @param session The session whose connection has closed.
+	 */
+	public void disconnect(Session session) {
+		String name = session.getUserName();
+		ChatRoom room = session.getRoom();
+		if (reaper == null || name == null || room == null) {
+			leave(session);
+			return;
+		}
+		ParkedSession parked = new ParkedSession(name, room, parkedCapacity);
+		Lock lock = room.swapLock();											// Not while resume() is replacing the session
+		lock.lock();
+		try {
+			if (users.get(name) != session) {
+				return;															// The client has already come back on a new connection
+			}
+			swap(room, session, parked);										// In the room before resume() can find it
+			users.replace(name, session, parked);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			parked.setExpiry(reaper.schedule(() -> leave(parked), resumeGraceSeconds, TimeUnit.SECONDS));
+		} catch (RejectedExecutionException e) {
+			leave(parked);														// The server is shutting down
+		}
+	}
+
+
+	/**
+	 * Puts a new user in the default room and lets the other users in it know they have joined. The session
+	 * must already hold the name reserved for it with {@link #uniqueName(String, Session)}.
+	 *
+	 * @param session The session of the new user.
+	 */
+	public void join(Session session) {
+		String name = session.getUserName();
+		ChatRoom room = enter(DEFAULT_ROOM, session);
+		groupMessage(room, Payload.of(new Frame(Opcode.JOIN, name, "")), session);		// Let other users know the name of the new user in the chat room
+		if (cluster != null) {
+			cluster.announce(name, DEFAULT_ROOM);
+		}
+		long upTo = room.getSequence();
+		directMessage(Payload.of(new Frame(Opcode.NAME_ASSIGNED, name, "").withSequence(upTo)), name); 	// Update the client with the assigned/modified username
+		String token = newToken();
+		tokens.put(name, token);
+		session.send(Payload.of(new Frame(Opcode.SESSION_TOKEN, "", token)));	// Lets the client take the session back after a reconnect
+		sendHistory(room, -1, upTo, session);
+	}
+
+	/**
+	 * Takes a message's place under the rate limits of its connection and the sender's room. The connection
+	 * waits the time returned before it handles the message and does not read any more in the meantime, so a
+	 * client that sends too fast is held back by TCP rather than buffered on the server.
+	 *
+	 * @param sender The session that read the message.
+	 * @param rateLimit The rate limit of the sender's connection, or null if it is not limited.
+	 * @return Nanoseconds to wait before handling the message, 0 to handle it straight away.
+	 */
+	public long throttle(Session sender, TokenBucket rateLimit) {
+		long now = System.nanoTime();
+		long wait = rateLimit == null ? 0 : rateLimit.reserve(now);
+		ChatRoom room = sender.getRoom();
+		if (room != null && room.getRateLimit() != null) {
+			wait += room.getRateLimit().reserve(now + wait);					// The room's token is taken for when the connection's is ready
+		}
+		if (wait > 0) {
+			metrics.messageThrottled();
+		}
+		return wait;
+	}
+
+	/**
+	 * Handles a single line received from a user and sends it on to the other users.
+	 *
+	 * @param sender The session that sent the message.
+	 * @param incomingMessage The line read from the sender's connection.
+	 * @return False if the user has asked to leave the chat room, otherwise true.
+	 */
+	public boolean handle(Session sender, String incomingMessage) {
+		long start = System.nanoTime();
+		try {
+			return dispatch(sender, incomingMessage);
+		} finally {
+			metrics.messageDispatched(System.nanoTime() - start);
+		}
+	}
+
+	// Runs the command or sends on the message in a line of the text protocol
+	private boolean dispatch(Session sender, String incomingMessage) {
+		/*
+		 * Client side console commands that are sent via input text with a
+		 * special character that the server screens for in received messages.
+		 */
+		// Heartbeats are sent without the name prefix and never reach the chat
+		if ("#ping".equals(incomingMessage)) {
+			sender.send(PONG);
+			return true;
+		} else if ("#pong".equals(incomingMessage)) {
+			return true;
+		}
+		// COMMAND: Client sends a leave chat room request
+		if ("\\q".equalsIgnoreCase(incomingMessage)) {
+			return false;
+		// COMMAND: Client requests current users online
+		} else if ("#userlist".equalsIgnoreCase(incomingMessage)) {
+			// Use directMessage to send user list back to sender
+			directMessage(Payload.of(new Frame(Opcode.USERLIST, "", getClientList(sender))), sender.getUserName());
+			return true;
+		}
+
+		String body = messageBody(sender, incomingMessage);
+		// COMMAND: Client requests the rooms on the server
+		if ("#rooms".equalsIgnoreCase(body)) {
+			sender.send(Payload.of(new Frame(Opcode.ROOMS, "", getRoomList())));
+			return true;
+		// COMMAND: Client moves to another room
+		} else if (body.regionMatches(true, 0, "#join ", 0, 6) && isRoomName(body.substring(6).trim())) {
+			changeRoom(sender, body.substring(6).trim(), -1);
+			return true;
+		// COMMAND: Client goes back to the default room
+		} else if ("#leave".equalsIgnoreCase(body)) {
+			changeRoom(sender, DEFAULT_ROOM, -1);
+			return true;
+		}
+
+		// COMMAND: Client sends a direct message to another user currently online
+		if (body.startsWith("#")) {
+			int end = body.indexOf(' ');
+			String privateUser = body.substring(1, end < 0 ? body.length() : end);	// The command is parsed once from the front of the message
+			Session recipient = users.get(privateUser);								// Constant time lookup instead of searching for every username
+			if (recipient != null) {
+				// Do not broadcast but return command to the specified user
+				String text = end < 0 ? "" : body.substring(end + 1).trim();
+				recipient.send(Payload.of(new Frame(Opcode.DM, sender.getUserName(), text)));
+				return true;
+			}
+		}
+		// Send received message back to other users, as the line the server writes rather than the line it read so
+		// a client cannot send a line that other clients would take for a server command, i.e. #token or #name
+		publish(sender, new Frame(Opcode.CHAT, sender.getUserName(), body));
+		return true;
+	}
+
+	/**
+	 * Handles a single frame received from a user of the binary protocol. The frame is dispatched on its
+	 * opcode, so the cost does not depend on the message text or the number of users online.
+	 *
+	 * @param sender The session that sent the frame.
+	 * @param frame The frame read from the sender's connection.
+	 * @return False if the user has asked to leave the chat room, otherwise true.
+	 */
+	public boolean handle(Session sender, Frame frame) {
+		long start = System.nanoTime();
+		try {
+			return dispatch(sender, frame);
+		} finally {
+			metrics.messageDispatched(System.nanoTime() - start);
+		}
+	}
+
+	// Runs the command or sends on the message in a frame of the binary protocol
+	private boolean dispatch(Session sender, Frame frame) {
+		switch (frame.getOpcode()) {
+		case QUIT:
+			return false;
+		case USERLIST:
+			directMessage(Payload.of(new Frame(Opcode.USERLIST, "", getClientList(sender))), sender.getUserName());
+			break;
+		case DM:
+			directMessage(Payload.of(new Frame(Opcode.DM, sender.getUserName(), frame.getBody())), frame.getTarget());
+			break;
+		case CHAT:
+			publish(sender, new Frame(Opcode.CHAT, sender.getUserName(), frame.getBody()));
+			break;
+		case ROOMS:
+			sender.send(Payload.of(new Frame(Opcode.ROOMS, "", getRoomList())));
+			break;
+		case JOIN_ROOM:
+			if (isRoomName(frame.getTarget())) {
+				changeRoom(sender, frame.getTarget(), frame.hasSequence() ? frame.getSequence() : -1);	// Resume after the sequence number
+			}
+			break;
+		case LEAVE_ROOM:
+			changeRoom(sender, DEFAULT_ROOM, -1);
+			break;
+		case PING:
+			sender.send(PONG);
+			break;
+		case PONG:
+			break;															// Reading it was enough to show the client is alive
+		default:
+			break;															// JOIN, NAME_ASSIGNED and SESSION_TOKEN are only valid during the handshake
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a user from the server and lets the other users in their room know they have left.
+	 *
+	 * @param session The session of the user leaving.
+	 */
+	public void leave(Session session) {
+		String token = session.getUserName() == null ? null : tokens.get(session.getUserName());
+		if (users.remove(session.getUserName(), session)) { 				// Remove the current user
+			if (token != null) {
+				tokens.remove(session.getUserName(), token);
+			}
+			ChatRoom room = session.getRoom();
+			if (room != null) {
+				exit(room, session);
+				groupMessage(room, Payload.of(new Frame(Opcode.QUIT, session.getUserName(), "")), session);	// Broadcast to others user has left chat room
+			}
+			if (cluster != null) {
+				cluster.withdraw(session.getUserName());
+			}
+		}
+	}
+
+	/**
+	 * Adds a user of another node to this server or moves them to another room, letting the members of the
+	 * rooms on this server know. A user whose name is taken on this server is given their name and node id.
+	 *
+	 * @param session The stand in for the user.
+	 * @param roomName The room the user is now in.
+	 */
+	void remoteJoin(RemoteSession session, String roomName) {
+		if (!isRoomName(roomName)) {
+			return;
+		}
+		String name = session.getUserName();
+		ChatRoom current = session.getRoom();
+		if (current == null) {
+			if (!users.claim(name, session)) {
+				name = users.reserve(name + "@" + session.getNodeId(), session);	// The name is taken on this server
+				session.setUserName(name);
+				System.out.println("User " + session.getRemoteName() + " of node " + session.getNodeId() + " is known here as " + name);
+			}
+			ChatRoom room = enter(roomName, session);
+			groupMessage(room, Payload.of(new Frame(Opcode.JOIN, name, "")), session);
+		} else if (!current.getName().equals(roomName)) {
+			move(session, current, roomName);
+		}
+	}
+
+	/**
+	 * Removes a user of another node from this server and lets the members of their room know.
+	 *
+	 * @param session The stand in for the user.
+	 */
+	void remoteLeave(RemoteSession session) {
+		users.remove(session.getUserName(), session);
+		ChatRoom room = session.getRoom();
+		if (room != null) {
+			exit(room, session);
+			groupMessage(room, Payload.of(new Frame(Opcode.QUIT, session.getUserName(), "")), session);
+		}
+	}
+
+	/**
+	 * Numbers a group message of a user of another node in its room on this server and sends it to the members
+	 * connected to this server.
+	 *
+	 * @param session The stand in for the sender.
+	 * @param body The message text.
+	 */
+	void remoteChat(RemoteSession session, String body) {
+		publish(session, new Frame(Opcode.CHAT, session.getUserName(), body));
+	}
+
+	/**
+	 * Sends a direct message from a user of another node to a user connected to this server.
+	 *
+	 * @param from The sender.
+	 * @param to The recipient.
+	 * @param body The message text.
+	 */
+	void remoteDirect(String from, String to, String body) {
+		Session recipient = users.get(to);
+		if (recipient != null && !(recipient instanceof RemoteSession)) {	// Never passed on again
+			recipient.send(Payload.of(new Frame(Opcode.DM, from, body)));
+		}
+	}
+
+	/**
+	 * @return The users currently on the server.
+	 */
+	public UserRegistry getUsers() {
+		return users;
+	}
+
+	/**
+	 * @return The counters for the server this router belongs to.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param name The name of a room.
+	 * @return The room, or null if nobody is in a room with that name.
+	 */
+	public ChatRoom getRoom(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * Writes any messages still waiting for the journal to disk and closes it.
+	 */
+	public void close() {
+		if (reaper != null) {
+			reaper.shutdownNow();
+		}
+		if (idleReaper != null) {
+			idleReaper.stop();
+		}
+		if (cluster != null) {
+			cluster.close();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	// Numbers a chat message in the sender's room, queues it for the journal and sends it to the other members.
+	// Numbering and journaling share the room's lock so the journal sees each room's messages in order
+	private void publish(Session sender, Frame frame) {
+		ChatRoom room = sender.getRoom();
+		if (room == null) {
+			return;
+		}
+		Payload payload;
+		synchronized (room) {
+			long sequence = room.nextSequence();
+			payload = Payload.of(frame.withSequence(sequence));
+			if (room.getHistory() != null) {
+				room.getHistory().append(sequence, payload);					// The lock makes this thread the ring's only writer
+			}
+			if (journal != null) {
+				journal.append(room.getName(), sequence, payload);			// Only queued, the broadcast never waits for the disk
+			}
+		}
+		groupMessage(room, payload, sender);
+		if (cluster != null && !(sender instanceof RemoteSession)) {
+			cluster.chat(sender.getUserName(), frame.getBody());			// Once for each other node
+		}
+	}
+
+	// Moves the user to another room and lets the members of both rooms know. If resumeAfter is not negative the
+	// user is also sent the messages of the room after that sequence number, otherwise a user new to the room
+	// is sent its recent history
+	private void changeRoom(Session session, String roomName, long resumeAfter) {
+		String name = session.getUserName();
+		ChatRoom current = session.getRoom();
+		boolean moved = current == null || !current.getName().equals(roomName);
+		HeldMessages hold = null;
+		if (resumeAfter >= 0 && journal != null) {
+			hold = new HeldMessages();
+			held.put(session, hold);											// Before upTo is read, so every later message waits for the replay
+		}
+		if (moved) {
+			move(session, current, roomName);
+			if (cluster != null) {
+				cluster.announce(name, roomName);
+			}
+		}
+		ChatRoom room = session.getRoom();
+		long upTo = room.getSequence();											// Anything later is sent to the user live
+		session.send(Payload.of(new Frame(Opcode.JOIN_ROOM, roomName, "").withSequence(upTo)));	// Confirm the room to the user
+		if (resumeAfter >= 0) {
+			RecentHistory history = room.getHistory();
+			if (journal != null && (history == null || !history.covers(resumeAfter))) {
+				HeldMessages replayed = hold;
+				journal.replay(roomName, resumeAfter, upTo, session, () -> release(session, replayed));	// Missed more than the ring holds
+				return;
+			}
+			sendHistory(room, resumeAfter, upTo, session);
+		} else if (moved) {
+			sendHistory(room, -1, upTo, session);
+		}
+		if (hold != null) {
+			release(session, hold);
+		}
+	}
+
+	// Sends a session the live messages kept back while it was sent the ones before them, then lets it have
+	// live messages straight away again
+	private void release(Session session, HeldMessages hold) {
+		synchronized (hold) {
+			session.sendAll(hold.messages);
+			hold.messages = null;
+		}
+		held.remove(session, hold);
+	}
+
+	// Moves the user from their room to another one and lets the members of both rooms know
+	private void move(Session session, ChatRoom current, String roomName) {
+		String name = session.getUserName();
+		ChatRoom next = enter(roomName, session);
+		if (current != null) {
+			exit(current, session);
+			groupMessage(current, Payload.of(new Frame(Opcode.QUIT, name, current.getName())), session);
+		}
+		groupMessage(next, Payload.of(new Frame(Opcode.JOIN, name, roomName)), session);
+	}
+
+	// Sends the recent messages of a room after a sequence number in a single batch, without locking the room
+	private static void sendHistory(ChatRoom room, long after, long upTo, Session session) {
+		RecentHistory history = room.getHistory();
+		if (history != null) {
+			session.sendAll(history.snapshot(after, upTo));
+		}
+	}
+
+	// Puts one session in the place of another in a room. The caller holds the room's swap lock so no broadcast
+	// misses both, and the room map is locked for the swap so the room is never seen empty and removed in between
+	private void swap(ChatRoom room, Session old, Session session) {
+		rooms.compute(room.getName(), (name, existing) -> {
+			ChatRoom r = existing != null ? existing : room;
+			r.add(session);
+			r.remove(old);
+			return r;
+		});
+	}
+
+	// A random token the client can prove it owns the session with
+	private static String newToken() {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		TOKENS.nextBytes(bytes);
+		return hex(bytes);
+	}
+
+	/**
+	 * @param bytes Random or secret bytes, i.e. a session token or a cluster challenge.
+	 * @return The bytes as lower case hex digits, which can be sent as text in either protocol.
+	 */
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	// Adds the user to a room, creating it if needed. The room map is updated atomically so a room that is
+	// being removed because its last member left can never swallow a new member
+	private ChatRoom enter(String roomName, Session session) {
+		ChatRoom room = rooms.compute(roomName, (name, existing) -> {
+			ChatRoom r = existing != null ? existing
+					: new ChatRoom(name, journal == null ? 0 : journal.lastSequence(name), historySize,	// Carry on numbering from an earlier room
+							roomRateLimits.get());
+			r.add(session);
+			return r;
+		});
+		session.setRoom(room);
+		return room;
+	}
+
+	// Removes the user from a room and removes the room once it is empty, apart from the default room
+	private void exit(ChatRoom room, Session session) {
+		room.remove(session);
+		if (!DEFAULT_ROOM.equals(room.getName())) {
+			rooms.computeIfPresent(room.getName(), (name, r) -> r.isEmpty() ? null : r);
+		}
+	}
+
+	// A room name is a single word so it can be parsed from the #join command
+	private static boolean isRoomName(String roomName) {
+		if (roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME) {
+			return false;
+		}
+		for (int i = 0; i < roomName.length(); i++) {
+			if (Character.isWhitespace(roomName.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Method broadcasts the input message to all members of the room except the sender. The payload is
+	// encoded at most once per protocol and the bytes are shared with every recipient
+	private void groupMessage(ChatRoom room, Payload payload, Session sender) {
+		if (room == null) {
+			return;
+		}
+		int recipients = 0;
+		boolean holding = !held.isEmpty();									// Almost never, so one check covers every recipient
+		Lock lock = room.broadcastLock();										// Shared with other broadcasts, so only a swap waits
+		lock.lock();
+		try {
+			for (Session session : room.members()) {
+				// Exclude the sender from the group message
+				if (session != sender) {
+					if (!holding || !hold(session, payload)) {
+						session.send(payload);
+					}
+					recipients++;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		metrics.groupMessageSent(recipients);
+	}
+
+	// Keeps a message back if the session is being sent a replay, returning false if it should be sent now
+	private boolean hold(Session session, Payload payload) {
+		HeldMessages hold = held.get(session);
+		if (hold == null) {
+			return false;
+		}
+		synchronized (hold) {
+			if (hold.messages == null) {
+				return false;													// Released, the replay has already been sent
+			}
+			hold.messages.add(payload);
+			return true;
+		}
+	}
+
+	// Sends a message to only the user in the registry with the input name parameter
+	private void directMessage(Payload payload, String inputName) {
+		Session session = users.get(inputName);
+		if (session != null) {
+			session.send(payload);
+		}
+	}
+
+	// The text client prefixes each message with "name:", which is dropped for users of the binary protocol
+	private static String messageBody(Session sender, String message) {
+		String prefix = sender.getUserName() + ":";
+		return message.startsWith(prefix) ? message.substring(prefix.length()) : message;
+	}
+
+	// Returns the list of usernames in the sender's room as a string, including users of other nodes
+	private String getClientList(Session sender) {
+		// Join each username with the specified delimiter
+		StringJoiner names = new StringJoiner(", ");
+		ChatRoom room = sender.getRoom();
+		if (room != null) {
+			for (Session session : room.members()) {
+				// Exclude the sender from the list
+				if (session != sender)
+					names.add(session.getUserName());
+			}
+			for (Session session : room.remoteMembers()) {
+				names.add(session.getUserName());
+			}
+		}
+		return names.toString();
+	}
+
+	// Returns the list of rooms and their number of users as a string
+	private String getRoomList() {
+		StringJoiner list = new StringJoiner(", ");
+		for (ChatRoom room : rooms.values()) {
+			list.add(room.getName() + " (" + room.size() + ")");
+		}
+		return list.toString();
+	}
+
+	/**
+	 * Method reserves the input username for the session, adding a numerical suffix to the username if name is not unique.
+	 * A leading <code>#</code> is dropped, as every line the server sends that starts with one is a server command.
+	 *
+	 * @param inputName The username sent by the client application.
+	 * @param session The session of the new user.
+	 * @return A username that is not in use by any other user in the chat room.
+	 */
+	public String uniqueName(String inputName, Session session) {
+		int start = 0;
+		while (start < inputName.length() && inputName.charAt(start) == '#') {
+			start++;
+		}
+		return users.reserve(inputName.substring(start), session);
+	}
+
+	/**
+	 * The live messages of a room kept back from a session while the journal replays the messages before them,
+	 * so the client never sees a message before the backlog it follows. A replay takes at most about a second.
+	 */
+	private static class HeldMessages {
+
+		private List<Payload> messages = new ArrayList<>();					// Null once released, guarded by this
+
+	}
+
+}
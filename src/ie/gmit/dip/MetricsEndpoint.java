@@ -0,0 +1,70 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server on the loopback address that returns {@link ServerMetrics#toText()} for
+ * <code>GET /metrics</code>, so the server can be scraped by a monitoring system or read with
+ * <code>curl http://localhost:9100/metrics</code>. Requests are handled one at a time on a single thread.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class MetricsEndpoint {
+
+	private final HttpServer httpServer;
+
+	/**
+	 * Constructor binds the endpoint to a local port.
+	 *
+	 * @param port The port to listen on.
+	 * @param metrics The metrics to return.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+	}
+
+	/**
+	 * Starts answering requests on a background thread.
+	 */
+	public void start() {
+		httpServer.start();
+		System.out.println("Metrics available at http://localhost:" + httpServer.getAddress().getPort() + "/metrics");
+	}
+
+	/**
+	 * Stops answering requests.
+	 */
+	public void stop() {
+		httpServer.stop(0);
+	}
+
+	// Method writes the current metrics as plain text
+	private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
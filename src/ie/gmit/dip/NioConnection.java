@@ -0,0 +1,370 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single client connection serviced by a {@link NioServer.EventLoop}. The connection has its own read
+ * buffer for collecting incoming lines and its own bounded {@link OutboundQueue} of outgoing lines. Sending
+ * only queues the line and asks the event loop for a flush, so every line queued during one pass of the loop
+ * is written together with a single gathering write. Whatever the socket will not take is written when the
+ * selector reports the channel is writable again.
+ *
+ * The first byte from the client decides whether it is using the line protocol or the binary {@link Frame}
+ * protocol, see {@link Frame#HELLO}.
+ *
+ * A client that sends faster than its rate limit is paused rather than buffered. The message over the limit
+ * is held, the channel is taken out of the selector's read set and the event loop is asked to carry on after
+ * the wait, so the other connections of the loop are never held up and the client's bytes back up in TCP.
+ *
+ * Over TLS the connection reads and writes through its {@link TlsChannel}. A socket read may bring more than
+ * one record, so the connection keeps reading until the records already received are used up rather than
+ * waiting for the selector, which only knows about the socket.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class NioConnection implements Session {
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_GATHER = 64;								// Most queued lines passed to one gathering write
+
+	private final SocketChannel channel;
+	private final TlsChannel tls;											// Null if the client connected in plain text
+	private final SelectionKey key;
+	private final NioServer.EventLoop eventLoop;							// The event loop that owns this connection
+	private final MessageRouter router;										// Chat room commands and current users
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private LineDecoder lineDecoder;										// Set once the client is known to use the line protocol
+	private FrameDecoder frameDecoder;										// Set once the client is known to use the binary protocol
+	private volatile boolean binary;
+	private volatile int deflateAbove = Payload.NO_DEFLATE;					// Length from which frames are written deflated
+	private final OutboundQueue<Payload> writeQueue;						// Encoded lines waiting to be written
+	private final FlushStats flushStats;
+	private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];			// Lines taken from the queue for the current gathering write
+	private int batchHead;													// First line in the batch that is not fully written
+	private int batchTail;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();		// Stops other threads queuing more than one flush task
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile String userName;										// Null until the client has sent its username
+	private volatile ChatRoom room;											// The room messages from this user are sent to
+	private boolean quit;													// The user asked to leave rather than the connection dropping
+	private final IdleReaper.Watch watch;									// Null if quiet connections are never closed
+	private final TokenBucket rateLimit;									// Null if the client is not limited
+	private boolean paused;													// Not reading until the held message is handled
+	private Frame heldFrame;												// The message over the rate limit, one of the two is set while paused
+	private String heldLine;
+
+	/**
+	 * Constructor for a connection that has been registered with an event loop's selector.
+	 *
+	 * @param channel The non-blocking channel of the client.
+	 * @param tls The TLS state of the channel once its handshake is done, or null for plain text.
+	 * @param key The selection key of the channel.
+	 * @param eventLoop The event loop the channel is registered with.
+	 * @param router The chat room the client is joining.
+	 * @param writeQueue An empty queue for lines waiting to be written.
+	 * @param flushStats Counters shared by every connection.
+	 * @param rateLimit The rate limit of the messages read from the client, or null for none.
+	 */
+	NioConnection(SocketChannel channel, TlsChannel tls, SelectionKey key, NioServer.EventLoop eventLoop, MessageRouter router,
+			OutboundQueue<Payload> writeQueue, FlushStats flushStats, TokenBucket rateLimit) {
+		this.channel = channel;
+		this.tls = tls;
+		this.key = key;
+		this.eventLoop = eventLoop;
+		this.router = router;
+		this.writeQueue = writeQueue;
+		this.flushStats = flushStats;
+		this.rateLimit = rateLimit;
+		this.watch = router.watch(this);
+	}
+
+	// Called by the event loop when there is data to read from the channel
+	void onReadable() {
+		try {
+			int n;
+			do {
+				n = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+				if (n < 0) {													// Client closed the connection
+					closeResources();
+					return;
+				}
+				if (watch != null) {
+					watch.touch();												// Any bytes show the client is still there
+				}
+				readBuffer.flip();
+				if (lineDecoder == null && frameDecoder == null && readBuffer.hasRemaining()) {
+					chooseProtocol(readBuffer.get(readBuffer.position()));
+				}
+				process();
+			} while (n > 0 && !paused && !closed.get() && tls != null && tls.hasBufferedInput());
+			if (tls != null && tls.hasPendingOutput() && !closed.get()) {
+				flush();														// Handshake messages the engine answered while reading
+			}
+		} catch (IOException | IllegalStateException e) {
+			closeResources();
+		}
+	}
+
+	// Hands each whole message in the read buffer to the router, stopping early if the client is over its rate
+	// limit. The buffer is only cleared for the next read once every message in it has been handled
+	private void process() throws IOException {
+		while (true) {
+			Frame frame = null;
+			String line = null;
+			if (frameDecoder != null) {
+				frame = frameDecoder.next(readBuffer);
+			} else if (lineDecoder != null) {
+				line = lineDecoder.next(readBuffer);
+			}
+			if (frame == null && line == null) {
+				break;
+			}
+			long wait = userName == null ? 0 : router.throttle(this, rateLimit);	// The username is never held back
+			if (wait > 0) {
+				pause(frame, line, wait);
+				return;
+			}
+			if (!(frame != null ? onFrame(frame) : onLine(line))) {
+				quit = true;
+				closeResources();
+				return;
+			}
+		}
+		readBuffer.clear();													// The decoder has kept any partial line or frame
+	}
+
+	// Stops reading until the message's turn comes round, leaving the rest of the read buffer for later
+	private void pause(Frame frame, String line, long waitNanos) {
+		paused = true;
+		heldFrame = frame;
+		heldLine = line;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		eventLoop.schedule(this::unpause, waitNanos);
+	}
+
+	// Handles the held message and the rest of the read buffer, then starts reading again unless paused again
+	private void unpause() {
+		if (closed.get()) {
+			return;
+		}
+		Frame frame = heldFrame;
+		String line = heldLine;
+		paused = false;
+		heldFrame = null;
+		heldLine = null;
+		try {
+			if (!(frame != null ? onFrame(frame) : onLine(line))) {
+				quit = true;
+				closeResources();
+				return;
+			}
+			process();
+			if (!paused && !closed.get()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				if (tls != null && tls.hasBufferedInput()) {
+					onReadable();												// Records that arrived before the pause
+				}
+			}
+		} catch (IOException | IllegalStateException e) {				// Including a key cancelled while paused
+			closeResources();
+		}
+	}
+
+	// Called by the event loop when the channel can take more data after a partial write
+	void onWritable() {
+		flush();
+	}
+
+	// The first byte from a client is zero if it is starting the binary protocol handshake
+	private void chooseProtocol(byte first) {
+		if (first == Frame.HELLO[0]) {
+			binary = true;
+			frameDecoder = new FrameDecoder();
+			send(Payload.raw(Frame.HELLO));									// Accept the binary protocol, the decoder checks the rest of the handshake
+		} else {
+			lineDecoder = new LineDecoder();
+		}
+	}
+
+	// The first frame from a client must be JOIN with its username, every frame after that is a chat message or command
+	private boolean onFrame(Frame frame) throws IOException {
+		if (userName == null) {
+			if (frame.getOpcode() != Opcode.JOIN) {
+				throw new IOException("Expected JOIN but received " + frame.getOpcode());
+			}
+			login(frame);
+			return true;
+		}
+		return router.handle(this, frame);
+	}
+
+	// The first line from a client is its username, every line after that is a chat message or command
+	private boolean onLine(String line) {
+		if (userName == null) {
+			login(MessageRouter.toJoin(line));
+			return true;
+		}
+		return router.handle(this, line);
+	}
+
+	// Takes back the user's session if the client sent its token, otherwise joins as a new user
+	private void login(Frame join) {
+		deflateAbove = router.deflateAbove(join);
+		router.login(this, join, name -> userName = name);
+	}
+
+	/**
+	 * @return The unique chat room username of this client.
+	 */
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return writeQueue.size();
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * Queues the input message for this client and hands a flush to the event loop if one is not already
+	 * waiting. The flush runs after the loop has finished reading, so lines sent in the same pass are coalesced.
+	 *
+	 * @param payload The encoded message to send to the client.
+	 */
+	@Override
+	public void send(Payload payload) {
+		if (!writeQueue.offer(payload)) {
+			close();														// Slow consumer
+			return;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(() -> {
+				flushScheduled.set(false);
+				flush();
+			});
+		}
+	}
+
+	/**
+	 * Queues every message before scheduling a single flush, so they are written with one gathering write.
+	 *
+	 * @param payloads The encoded messages to send.
+	 */
+	@Override
+	public void sendAll(List<Payload> payloads) {
+		for (Payload payload : payloads) {
+			if (!writeQueue.offer(payload)) {
+				close();													// Slow consumer
+				return;
+			}
+		}
+		if (!payloads.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(() -> {
+				flushScheduled.set(false);
+				flush();
+			});
+		}
+	}
+
+	/**
+	 * Closes the connection on its event loop once the current work of the loop is finished.
+	 */
+	@Override
+	public void close() {
+		eventLoop.execute(this::closeResources);
+	}
+
+	// Writes queued lines until the queue is empty or the socket buffer is full
+	private void flush() {
+		if (closed.get()) {
+			return;
+		}
+		try {
+			while (true) {
+				// Lines are moved out of the queue into the batch so the drop oldest policy cannot remove a partly written line
+				if (batchHead == batchTail) {
+					batchHead = 0;
+					batchTail = 0;
+					Payload payload;
+					while (batchTail < MAX_GATHER && (payload = writeQueue.poll()) != null) {
+						batch[batchTail++] = payload.buffer(binary, deflateAbove);		// Own position over the shared bytes
+					}
+					if (batchTail == 0) {
+						break;												// Nothing left to write
+					}
+				}
+				if (tls != null) {
+					tls.write(batch, batchHead, batchTail - batchHead);		// Encrypts the lines into as few records as it can
+				} else {
+					channel.write(batch, batchHead, batchTail - batchHead);	// Gathering write of every line in the batch
+				}
+				while (batchHead < batchTail && !batch[batchHead].hasRemaining()) {
+					batch[batchHead++] = null;
+				}
+				if (batchHead < batchTail) {
+					key.interestOps(readInterest() | SelectionKey.OP_WRITE);	// Wait until the socket can take more
+					return;
+				}
+				flushStats.record(batchTail);								// Whole batch written
+			}
+			if (tls != null && !tls.flush()) {
+				key.interestOps(readInterest() | SelectionKey.OP_WRITE);		// The last record is still waiting
+				return;
+			}
+			key.interestOps(readInterest());
+		} catch (IOException | CancelledKeyException e) {
+			close();														// Removing the user now could change the user list mid broadcast
+		}
+	}
+
+	// A paused connection stays out of the read set when a flush changes its interest
+	private int readInterest() {
+		return paused ? 0 : SelectionKey.OP_READ;
+	}
+
+	// Method closes the channel and removes the user from the chat room
+	private void closeResources() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		key.cancel();
+		if (watch != null) {
+			watch.cancel();
+		}
+		if (tls != null) {
+			tls.close();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (userName != null && quit) {
+			router.leave(this);
+		} else if (userName != null) {
+			router.disconnect(this);										// Keep the user's place for a while in case they reconnect
+		}
+		router.getMetrics().connectionClosed();
+		System.out.println("Closed resources for " + userName);
+	}
+
+}
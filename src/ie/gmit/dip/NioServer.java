@@ -0,0 +1,272 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is the selector based server for the chat application. Instead of a thread for every client, each
+ * accepted connection is handed to one of a small fixed number of event loops. Each event loop uses a
+ * {@link Selector} to read from and write to all of its connections without blocking, so the number of
+ * threads does not grow with the number of users in the chat room.
+ *
+ * The line protocol and chat room commands are the same as the thread per connection {@link Server}
+ * because both pass received lines to the same {@link MessageRouter}.
+ *
+ * Given a keystore the server only accepts TLS connections. Each accepted channel is handed to a
+ * {@link HandshakePool} while still in blocking mode and only reaches its event loop once the handshake is
+ * done, so neither the accept loop nor an event loop ever waits on a client's handshake.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class NioServer {
+
+	private ServerSocketChannel serverChannel;
+	private MessageRouter router;
+	private ServerConfig config;
+	private FlushStats flushStats;											// Shared by the connections of every event loop
+	private EventLoop[] eventLoops;
+	private int nextLoop;													// Round robin index of the event loop for the next connection
+	private HandshakePool handshakes;										// Null if clients connect in plain text
+
+	/**
+	 * Constructor to create a NioServer instance using a bound ServerSocketChannel.
+	 *
+	 * @param serverChannel A server socket channel bound to the server's port.
+	 * @param router The chat room shared by all connections.
+	 * @param config The start up options of the server, which include the number of event loop threads.
+	 */
+	public NioServer(ServerSocketChannel serverChannel, MessageRouter router, ServerConfig config) {
+		this(serverChannel, router, config, null);
+	}
+
+	/**
+	 * Constructor to create a NioServer instance that accepts TLS connections.
+	 *
+	 * @param serverChannel A server socket channel bound to the server's port.
+	 * @param router The chat room shared by all connections.
+	 * @param config The start up options of the server, which include the number of event loop threads.
+	 * @param handshakes The pool that runs the TLS handshake of each connection, or null for plain text.
+	 */
+	public NioServer(ServerSocketChannel serverChannel, MessageRouter router, ServerConfig config, HandshakePool handshakes) {
+		this.serverChannel = serverChannel;
+		this.router = router;
+		this.config = config;
+		this.flushStats = router.getMetrics().getFlushStats();
+		this.eventLoops = new EventLoop[config.getEventLoops()];
+		this.handshakes = handshakes;
+	}
+
+	/**
+	 * Starts the event loops and then accepts new connections until the server channel is closed. Each
+	 * accepted channel is switched to non-blocking mode and registered with the next event loop in turn.
+	 */
+	public void runServer() {
+		try {
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop(Selector.open(), router, config, flushStats);
+				Thread t = new Thread(eventLoops[i], "event-loop-" + i);	// Each event loop runs on its own thread
+				t.start();
+			}
+			System.out.println("NIO server started with " + eventLoops.length + " event loops. Listening on port: "
+					+ serverChannel.socket().getLocalPort());
+			if (config.getStatsIntervalSeconds() > 0) {
+				flushStats.startReporting(config.getStatsIntervalSeconds());
+			}
+
+			// while loops until the server channel is closed
+			while (serverChannel.isOpen()) {
+				SocketChannel channel = serverChannel.accept();				// Listens and accept the connection from the client. Blocking
+				router.getMetrics().connectionOpened();
+				System.out.println(
+						"A new client has connected at port " + channel.socket().getPort()); 	// Display the client's port number in the server console
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				EventLoop eventLoop = eventLoops[nextLoop];
+				nextLoop = (nextLoop + 1) % eventLoops.length;
+				if (handshakes != null) {
+					handshakes.handshake(channel, tls -> eventLoop.register(channel, tls));	// Non-blocking once the handshake is done
+				} else {
+					channel.configureBlocking(false);
+					eventLoop.register(channel, null);
+				}
+			}
+		} catch (IOException e) {
+			closeServer();															// Close the server channel if an error is thrown
+		}
+	}
+
+	// Method closes the server channel and stops the event loops
+	private void closeServer() {
+		try {
+			serverChannel.close();
+			if (handshakes != null) {
+				handshakes.shutdown();
+			}
+			for (EventLoop eventLoop : eventLoops) {
+				if (eventLoop != null) {
+					eventLoop.selector.close();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A single threaded loop that waits on a {@link Selector} for its connections to become readable or
+	 * writable. Other threads pass work to the loop as tasks so that a connection's selection key is only
+	 * ever changed by the thread that owns it. The loop also runs delayed tasks, i.e. to start reading again
+	 * from a connection that was paused by its rate limit, by waiting on the selector no longer than the
+	 * next task is due.
+	 */
+	static class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final MessageRouter router;
+		private final ServerConfig config;
+		private final FlushStats flushStats;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();	// Work handed to this loop by other threads
+		private final PriorityQueue<Timer> timers = new PriorityQueue<>();	// Delayed work, only used by this loop's thread
+		private volatile Thread thread;
+
+		EventLoop(Selector selector, MessageRouter router, ServerConfig config, FlushStats flushStats) {
+			this.selector = selector;
+			this.router = router;
+			this.config = config;
+			this.flushStats = flushStats;
+		}
+
+		/**
+		 * Runs a task on this event loop's thread, waking the selector if it is waiting.
+		 *
+		 * @param task The task to run.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (!inEventLoop()) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Runs a task on this event loop's thread once a delay has passed. Must be called on the loop's thread.
+		 *
+		 * @param task The task to run.
+		 * @param delayNanos The delay in nanoseconds.
+		 */
+		void schedule(Runnable task, long delayNanos) {
+			timers.add(new Timer(System.nanoTime() + delayNanos, task));
+		}
+
+		/**
+		 * @return True if the calling thread is this event loop's thread.
+		 */
+		boolean inEventLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		// Method registers a newly accepted channel for reading on this loop's selector
+		void register(SocketChannel channel, TlsChannel tls) {
+			execute(() -> {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					NioConnection connection = new NioConnection(channel, tls, key, this, router,
+							config.newOutboundQueue(router.getMetrics()), flushStats, config.newRateLimit());
+					key.attach(connection);
+					if (tls != null && tls.hasBufferedInput()) {
+						connection.onReadable();								// Sent with the end of the handshake, the selector will not see it
+					}
+				} catch (ClosedChannelException e) {
+					router.getMetrics().connectionClosed();					// Client left before it was registered
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			while (selector.isOpen()) {
+				try {
+					Timer next = timers.peek();
+					if (next == null) {
+						selector.select(); 									// Blocking until a channel is ready or wakeup() is called
+					} else {
+						long millis = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime() + 999_999);	// Rounded up so the timer is due
+						if (millis > 0) {
+							selector.select(millis);
+						} else {
+							selector.selectNow();
+						}
+					}
+					runTasks();
+					runTimers();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					}
+					runTasks();												// Run anything the handlers above queued, such as closing connections
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		// Method runs the tasks that were queued by other threads or by the handlers
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		// Method runs the delayed tasks that are due
+		private void runTimers() {
+			long now = System.nanoTime();
+			while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+				timers.poll().task.run();
+			}
+		}
+
+	}
+
+	/**
+	 * A task waiting on an event loop for its deadline.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+
+		private final long deadline;										// System.nanoTime() when the task is due
+		private final Runnable task;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(deadline - other.deadline, 0);				// Safe if nanoTime wraps
+		}
+
+	}
+
+}
@@ -0,0 +1,79 @@
+package ie.gmit.dip;
+
+/**
+ * The command carried by each {@link Frame} of the binary protocol. The server can dispatch a frame on its
+ * opcode alone instead of searching the message text for commands.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public enum Opcode {
+
+	/**
+	 * Client to server: join with the username in the target, and the session token in the body to take back a
+	 * session after a reconnect. Server to client: the target user has joined the chat, or the room in the body
+	 * if there is one.
+	 */
+	JOIN(1),
+	/** A group chat message. From the server the target is the sender's username. */
+	CHAT(2),
+	/** A direct message. To the server the target is the recipient, from the server it is the sender. */
+	DM(3),
+	/** Client to server: ask for the users online. Server to client: the body lists them. */
+	USERLIST(4),
+	/**
+	 * Client to server: leave the chat. Server to client: the target user has left the chat, or the room in the
+	 * body if there is one.
+	 */
+	QUIT(5),
+	/** Server to client: the target is the unique username the server assigned. */
+	NAME_ASSIGNED(6),
+	/** Client to server: move to the room named in the target. Server to client: the target is the user's room now. */
+	JOIN_ROOM(7),
+	/** Client to server: leave the current room and go back to the default room. */
+	LEAVE_ROOM(8),
+	/** Client to server: ask for the rooms on the server. Server to client: the body lists them. */
+	ROOMS(9),
+	/** Server to client: the body is the token that takes back this session if the connection drops. */
+	SESSION_TOKEN(10),
+	/** Either way: check the other side is still there. The receiver answers with {@link #PONG}. */
+	PING(11),
+	/** Either way: the answer to a {@link #PING}. */
+	PONG(12);
+
+	private static final Opcode[] BY_CODE = new Opcode[16];					// Index of each opcode by its wire code
+
+	static {
+		for (Opcode opcode : values()) {
+			BY_CODE[opcode.code] = opcode;
+		}
+	}
+
+	private final byte code;
+
+	Opcode(int code) {
+		this.code = (byte) code;
+	}
+
+	/**
+	 * @return The byte that represents this opcode on the wire.
+	 */
+	public byte getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code A byte read from the wire.
+	 * @return The opcode for the byte.
+	 * @throws IllegalArgumentException If the byte is not a known opcode.
+	 */
+	public static Opcode fromCode(byte code) {
+		Opcode opcode = (code > 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+		if (opcode == null) {
+			throw new IllegalArgumentException("Unknown opcode: " + code);
+		}
+		return opcode;
+	}
+
+}
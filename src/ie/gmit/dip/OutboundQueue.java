@@ -0,0 +1,139 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded queue of messages waiting to be written to one client. Senders only add to the queue and never
+ * write to the socket themselves, so a client that is slow to read cannot hold up a broadcast to everyone
+ * else. The queue is drained by the writer of the connection it belongs to.
+ *
+ * @param <E> The type of message in the queue.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class OutboundQueue<E> {
+
+	/**
+	 * What happens when a message is sent to a client whose queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** The oldest queued message is dropped to make room. The client stays connected. */
+		DROP_OLDEST,
+		/** The client is disconnected. */
+		DISCONNECT,
+		/** The sender waits for room up to a timeout and then disconnects the client. */
+		BLOCK
+	}
+
+	private final BlockingQueue<E> queue;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutMs;
+	private final AtomicLong dropped = new AtomicLong();					// Messages this client never received
+	private final LongAdder droppedTotal;									// Shared with the other queues of a server
+
+	/**
+	 * Constructor for an empty queue.
+	 *
+	 * @param capacity The most messages that can be waiting at once.
+	 * @param policy What to do when the queue is full.
+	 * @param blockTimeoutMs How long a sender waits for room with the {@link OverflowPolicy#BLOCK} policy.
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMs) {
+		this(capacity, policy, blockTimeoutMs, new LongAdder());
+	}
+
+	/**
+	 * Constructor for an empty queue that also counts its dropped messages in a total shared by other queues.
+	 *
+	 * @param capacity The most messages that can be waiting at once.
+	 * @param policy What to do when the queue is full.
+	 * @param blockTimeoutMs How long a sender waits for room with the {@link OverflowPolicy#BLOCK} policy.
+	 * @param droppedTotal The shared counter for dropped messages.
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMs, LongAdder droppedTotal) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.policy = policy;
+		this.blockTimeoutMs = blockTimeoutMs;
+		this.droppedTotal = droppedTotal;
+	}
+
+	/**
+	 * Adds a message to the queue, applying the overflow policy if it is full.
+	 *
+	 * @param message The message to queue.
+	 * @return False if the client should be disconnected because the message could not be queued.
+	 */
+	public boolean offer(E message) {
+		switch (policy) {
+		case DROP_OLDEST:
+			while (!queue.offer(message)) {
+				if (queue.poll() != null) {									// Make room and try again
+					dropped.incrementAndGet();
+					droppedTotal.increment();
+				}
+			}
+			return true;
+		case BLOCK:
+			try {
+				if (queue.offer(message, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			break;
+		default:
+			if (queue.offer(message)) {
+				return true;
+			}
+		}
+		dropped.incrementAndGet();
+		droppedTotal.increment();
+		return false;
+	}
+
+	/**
+	 * @return The next message, or null if the queue is empty.
+	 */
+	public E poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * Waits for the next message.
+	 *
+	 * @return The next message.
+	 * @throws InterruptedException If the writer is interrupted while waiting, i.e. the client is closing.
+	 */
+	public E take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/**
+	 * @return True if there are no messages waiting.
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return The number of messages waiting.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The number of messages dropped or refused because the queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
@@ -0,0 +1,114 @@
+package ie.gmit.dip;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Stands in for a user whose connection dropped without the user asking to leave. The {@link MessageRouter}
+ * puts it in the user's place in the registry and their room, so the name stays reserved and the messages
+ * sent to the user are kept, until the client comes back with its session token or the grace period ends.
+ *
+ * Messages are kept in a bounded buffer. Once it is full the oldest message is dropped to make room, the same
+ * as the drop oldest overflow policy of a connected client. When the user comes back the buffer is handed to
+ * their new session, and a message that still reaches this session while it is being swapped out of the room
+ * is passed on rather than lost.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ParkedSession implements Session {
+
+	private final String userName;
+	private final int capacity;
+	private final ArrayDeque<Payload> buffer = new ArrayDeque<>();			// Guarded by this
+	private volatile ChatRoom room;
+	private volatile ScheduledFuture<?> expiry;								// Ends the session when the grace period is over
+	private Session next;													// The session that took over, guarded by this
+
+	/**
+	 * Constructor for the stand in of a user who has just lost their connection.
+	 *
+	 * @param userName The username the session keeps reserved.
+	 * @param room The room the user was in.
+	 * @param capacity The most messages kept for the user.
+	 */
+	public ParkedSession(String userName, ChatRoom room, int capacity) {
+		this.userName = userName;
+		this.room = room;
+		this.capacity = capacity;
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Keeps the message until the user comes back, dropping the oldest message if the buffer is full. Once the
+	 * user is back the message is passed on to their new session.
+	 *
+	 * @param payload The encoded message sent to the user.
+	 */
+	@Override
+	public synchronized void send(Payload payload) {
+		if (next != null) {
+			next.send(payload);
+			return;
+		}
+		if (buffer.size() == capacity) {
+			buffer.poll();
+		}
+		buffer.add(payload);
+	}
+
+	@Override
+	public synchronized int getQueueDepth() {
+		return buffer.size();
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * Nothing to close, the session ends when its grace period is over or the user comes back.
+	 */
+	@Override
+	public void close() {
+		// No connection
+	}
+
+	/**
+	 * @param expiry The task that ends the session when the grace period is over.
+	 */
+	void setExpiry(ScheduledFuture<?> expiry) {
+		this.expiry = expiry;
+	}
+
+	/**
+	 * Stops the session from expiring and sends the messages kept for the user to their new session in one
+	 * batch. Anything sent to this session afterwards goes straight to the new one.
+	 *
+	 * @param session The new session of the user.
+	 */
+	synchronized void resume(Session session) {
+		ScheduledFuture<?> task = expiry;
+		if (task != null) {
+			task.cancel(false);
+		}
+		List<Payload> missed = new ArrayList<>(buffer);
+		buffer.clear();
+		next = session;
+		session.sendAll(missed);
+	}
+
+}
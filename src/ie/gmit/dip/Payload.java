@@ -0,0 +1,192 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable message ready to be written to clients. A payload can be written as a line of the text
+ * protocol or as a {@link Frame} of the binary protocol. Each form is encoded at most once, the first time a
+ * client of that protocol needs it, and the same bytes are shared by every client it is sent to. A broadcast to
+ * N users therefore costs at most two encodes instead of N.
+ *
+ * A long frame is also deflated once for every client that reads deflated frames, see
+ * {@link Frame#FLAG_DEFLATE}, so a compressed broadcast costs one deflate rather than one per client.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public final class Payload {
+
+	/** Threshold of a session that is never sent deflated frames. */
+	public static final int NO_DEFLATE = Integer.MAX_VALUE;
+
+	private final Frame frame;												// Null for raw bytes and lines with no binary form
+	private final String text;
+	private volatile byte[] lineBytes;										// UTF-8 text followed by a line feed. Never modified
+	private volatile byte[] frameBytes;										// Encoded frame with its length prefix. Never modified
+	private volatile byte[] deflatedBytes;									// Frame with its target and body deflated. Never modified
+
+	private Payload(Frame frame, String text, byte[] lineBytes, byte[] frameBytes) {
+		this.frame = frame;
+		this.text = text;
+		this.lineBytes = lineBytes;
+		this.frameBytes = frameBytes;
+	}
+
+	/**
+	 * Creates a payload for a line of the text protocol that has no binary form, i.e. a line sent by the text client.
+	 *
+	 * @param text The message without a line terminator.
+	 * @return A new payload.
+	 */
+	public static Payload of(String text) {
+		return new Payload(null, text, null, null);
+	}
+
+	/**
+	 * Creates a payload whose text form is {@link Frame#toText()}.
+	 *
+	 * @param frame The binary form of the message.
+	 * @return A new payload.
+	 */
+	public static Payload of(Frame frame) {
+		return new Payload(frame, frame.toText(), null, null);
+	}
+
+	/**
+	 * Creates a payload with its own text form, used where a line of the text protocol is not the frame's
+	 * {@link Frame#toText()}, i.e. a client's own message with its name prefix.
+	 *
+	 * @param frame The binary form of the message.
+	 * @param text The text form of the message without a line terminator.
+	 * @return A new payload.
+	 */
+	public static Payload of(Frame frame, String text) {
+		return new Payload(frame, text, null, null);
+	}
+
+	/**
+	 * Creates a payload that is written as the same bytes in both protocols, i.e. the protocol handshake.
+	 *
+	 * @param bytes The bytes to write. They must not be modified afterwards.
+	 * @return A new payload.
+	 */
+	static Payload raw(byte[] bytes) {
+		return new Payload(null, null, bytes, bytes);
+	}
+
+	/**
+	 * @return The message text without its line terminator.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return The binary form of the message, or null if it only has a text form.
+	 */
+	public Frame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @return A read only buffer over the shared encoded bytes with its own position, for writing to a channel.
+	 */
+	public ByteBuffer buffer(boolean binary) {
+		return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @param deflateAbove Length from which a frame is sent deflated, or {@link #NO_DEFLATE}.
+	 * @return A read only buffer over the shared encoded bytes with its own position, for writing to a channel.
+	 */
+	public ByteBuffer buffer(boolean binary, int deflateAbove) {
+		return ByteBuffer.wrap(bytes(binary, deflateAbove)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the encoded message to a stream without copying or encoding it again.
+	 *
+	 * @param out The stream to write to.
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @throws IOException If the stream cannot be written to.
+	 */
+	public void writeTo(OutputStream out, boolean binary) throws IOException {
+		out.write(bytes(binary));
+	}
+
+	/**
+	 * Writes the encoded message to a stream, deflated if it is a long enough frame.
+	 *
+	 * @param out The stream to write to.
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @param deflateAbove Length from which a frame is sent deflated, or {@link #NO_DEFLATE}.
+	 * @throws IOException If the stream cannot be written to.
+	 */
+	public void writeTo(OutputStream out, boolean binary, int deflateAbove) throws IOException {
+		out.write(bytes(binary, deflateAbove));
+	}
+
+	/**
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @return The number of bytes in the encoded message.
+	 */
+	public int length(boolean binary) {
+		return bytes(binary).length;
+	}
+
+	/**
+	 * @param binary True for the binary protocol, false for the text protocol.
+	 * @param deflateAbove Length from which a frame is sent deflated, or {@link #NO_DEFLATE}.
+	 * @return The number of bytes written for the message.
+	 */
+	public int length(boolean binary, int deflateAbove) {
+		return bytes(binary, deflateAbove).length;
+	}
+
+	// Returns the deflated frame if the plain one is long enough, deflating it the first time it is needed. Every
+	// client that reads deflated frames has the server's threshold, so the answer is the same for all of them
+	private byte[] bytes(boolean binary, int deflateAbove) {
+		if (!binary || frame == null || deflateAbove == NO_DEFLATE) {
+			return bytes(binary);
+		}
+		byte[] bytes = deflatedBytes;
+		if (bytes == null) {
+			bytes = bytes(true);
+			if (bytes.length < deflateAbove) {
+				return bytes;
+			}
+			bytes = frame.encodeDeflated();									// The plain bytes again if deflating does not help
+			deflatedBytes = bytes;
+		}
+		return bytes;
+	}
+
+	// Returns the encoded form for the protocol, encoding it the first time it is needed. Two threads may both
+	// encode the first time but they produce the same bytes, so no lock is needed
+	private byte[] bytes(boolean binary) {
+		if (binary) {
+			byte[] bytes = frameBytes;
+			if (bytes == null) {
+				if (frame == null) {
+					throw new IllegalStateException("Payload has no binary form: " + text);
+				}
+				bytes = frame.encode();
+				frameBytes = bytes;
+			}
+			return bytes;
+		}
+		byte[] bytes = lineBytes;
+		if (bytes == null) {
+			bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+			lineBytes = bytes;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,110 @@
+package ie.gmit.dip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of the most recent group messages of a {@link ChatRoom}, so a user who joins the room can
+ * be sent the conversation so far. The slots are allocated once when the room is created and each message is
+ * stored in the slot picked by its sequence number, overwriting the message a full ring earlier.
+ *
+ * The ring has a single writer, the thread that numbered the message while holding the room's lock, so an
+ * append is two ordered stores and a cursor update with no lock or compare and swap. Readers take no lock
+ * either. Each slot is stamped with the sequence number of the message in it, and a reader only keeps a
+ * message if the stamp is the same before and after it reads the slot, so a slot that is overwritten while it
+ * is being read is skipped rather than returned with the wrong message.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class RecentHistory {
+
+	private static final long WRITING = -1;								// Stamp of a slot that is being overwritten
+
+	private final int size;
+	private final int mask;
+	private final AtomicReferenceArray<Payload> slots;
+	private final AtomicLongArray stamps;								// Sequence number of the message in each slot
+	private final long start;											// Sequence number before the first message of the ring
+	private final AtomicLong cursor;									// Sequence number of the last message appended
+
+	/**
+	 * Constructor for an empty ring.
+	 *
+	 * @param size The number of messages kept, greater than 0.
+	 * @param sequence The sequence number of the last message before the ring was created.
+	 */
+	public RecentHistory(int size, long sequence) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;	// Power of two so a slot is a mask away
+		this.size = size;
+		this.mask = capacity - 1;
+		this.start = sequence;
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.stamps = new AtomicLongArray(capacity);
+		this.cursor = new AtomicLong(sequence);
+	}
+
+	/**
+	 * Stores a message in the ring. Only one thread may append at a time, i.e. while holding the room's lock,
+	 * and sequence numbers must be appended in order.
+	 *
+	 * @param sequence The sequence number of the message in its room.
+	 * @param payload The message, shared with the broadcast.
+	 */
+	void append(long sequence, Payload payload) {
+		int slot = (int) sequence & mask;
+		stamps.set(slot, WRITING);											// Readers of the old message see it has gone
+		slots.lazySet(slot, payload);
+		stamps.lazySet(slot, sequence);
+		cursor.lazySet(sequence);
+	}
+
+	/**
+	 * @return The sequence number of the last message appended.
+	 */
+	public long getSequence() {
+		return cursor.get();
+	}
+
+	/**
+	 * @param after The sequence number of the last message a reader already has.
+	 * @return True if the ring still holds every message after it.
+	 */
+	public boolean covers(long after) {
+		return after >= Math.max(start, cursor.get() - size);
+	}
+
+	/**
+	 * Reads the messages after a sequence number. Only the slots in the range are read and the payloads are
+	 * shared, not copied. Messages overwritten by newer ones while they are being read are left out.
+	 *
+	 * @param after The sequence number of the last message the reader already has, or -1 for all of them.
+	 * @param upTo The sequence number of the last message wanted.
+	 * @return The messages in order, at most the size of the ring.
+	 */
+	public List<Payload> snapshot(long after, long upTo) {
+		long last = Math.min(upTo, cursor.get());
+		long first = Math.max(Math.max(after + 1, last - size + 1), 1);	// Sequence numbers start at 1
+		if (first > last) {
+			return Collections.emptyList();
+		}
+		List<Payload> messages = new ArrayList<>((int) (last - first + 1));
+		for (long sequence = first; sequence <= last; sequence++) {
+			int slot = (int) sequence & mask;
+			if (stamps.get(slot) != sequence) {
+				continue;														// Not written yet or already overwritten
+			}
+			Payload payload = slots.get(slot);
+			if (stamps.get(slot) == sequence) {
+				messages.add(payload);
+			}
+		}
+		return messages;
+	}
+
+}
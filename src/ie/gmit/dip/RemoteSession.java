@@ -0,0 +1,106 @@
+package ie.gmit.dip;
+
+/**
+ * Stands in for a user connected to another node of the cluster. The {@link ClusterNode} creates one for each
+ * user a node tells it about, and the {@link MessageRouter} keeps it in the registry and the user's room so
+ * the name is taken, shows up in user lists and can be sent direct messages.
+ *
+ * Group messages are never sent to a remote session, as they are relayed to the user's node once for all of
+ * its users. A direct message sent to it is passed on to the user's node, anything else is dropped.
+ *
+ * If a user of this server already has the name, the remote user is known here by their name and their
+ * node's id, i.e. <code>ann@node2</code>, so every name on this server stays unique. The user's own node
+ * still knows them by their own name.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class RemoteSession implements Session {
+
+	private final String remoteName;										// The name given to the user by their node
+	private volatile String userName;										// The name the user is known by on this server
+	private final String nodeId;											// The node the user is connected to
+	private final ClusterNode cluster;
+	private volatile ChatRoom room;
+
+	/**
+	 * Constructor for a user of another node who has not been put in a room yet.
+	 *
+	 * @param userName The username given to the user by their node.
+	 * @param nodeId The id of the node the user is connected to.
+	 * @param cluster The cluster node that direct messages are passed on through.
+	 */
+	public RemoteSession(String userName, String nodeId, ClusterNode cluster) {
+		this.remoteName = userName;
+		this.userName = userName;
+		this.nodeId = nodeId;
+		this.cluster = cluster;
+	}
+
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gives the user another name on this server because their own is taken by a user of this server. Only
+	 * called before the user is put in a room.
+	 *
+	 * @param userName The name the user is known by on this server.
+	 */
+	void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	/**
+	 * @return The name given to the user by their own node.
+	 */
+	public String getRemoteName() {
+		return remoteName;
+	}
+
+	/**
+	 * @return The id of the node the user is connected to.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Passes a direct message on to the user's node. Other messages are meant for this server's users only.
+	 *
+	 * @param payload The encoded message sent to the user.
+	 */
+	@Override
+	public void send(Payload payload) {
+		Frame frame = payload.getFrame();
+		if (frame != null && frame.getOpcode() == Opcode.DM) {
+			cluster.forward(nodeId, frame.getTarget(), remoteName, frame.getBody());
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return 0;
+	}
+
+	@Override
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	@Override
+	public void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * Nothing to close, the user's own node owns the connection.
+	 */
+	@Override
+	public void close() {
+		// No connection on this node
+	}
+
+}
@@ -1,22 +1,39 @@
 package ie.gmit.dip;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+
+import javax.management.JMException;
 
 /**
  * This is the the Server class for the chat application. It creates a server socket and is capable of 
  * communication with multiple clients simultaneously. The server has a number of commands that clients
  * can accessed through the use of the prefix #.
  * 
+ * The server runs a thread per connection by default. Start it with <code>--mode=nio</code> to use the
+ * selector based {@link NioServer} instead, see {@link ServerConfig} for all the start up options.
+ * 
+ * Given a keystore the server only accepts TLS connections. The handshake of each connection is run by a
+ * {@link HandshakePool} before the client's thread is started, so the accept loop never waits on a client.
+ * 
  * @author PJ
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public class Server {
 
 	private ServerSocket serverSocket;
+	private MessageRouter router;
+	private ServerConfig config;
+	private ExecutorService executor;											// Runs each ClientThread on its own thread
+	private FlushStats flushStats;												// Shared by the writers of every client
+	private HandshakePool handshakes;											// Null if clients connect in plain text
 	private static int SERVERPORT;
 
 	/**
@@ -25,51 +42,128 @@ public class Server {
 	 * @param serverSocket A new instance of a ServerSocketImpl class.
 	 */
 	public Server(ServerSocket serverSocket) {
+		this(serverSocket, new MessageRouter(), new ServerConfig());
+	}
+
+	/**
+	 * Constructor to create Server instance using ServerSocket object, an existing chat room and the start up
+	 * options, which include the executor each client is run on.
+	 * 
+	 * @param serverSocket A new instance of a ServerSocketImpl class.
+	 * @param router The chat room shared by all connections.
+	 * @param config The start up options of the server.
+	 */
+	public Server(ServerSocket serverSocket, MessageRouter router, ServerConfig config) {
+		this(serverSocket, router, config, null);
+	}
+
+	/**
+	 * Constructor to create Server instance that accepts TLS connections.
+	 * 
+	 * @param serverSocket A new instance of a ServerSocketImpl class.
+	 * @param router The chat room shared by all connections.
+	 * @param config The start up options of the server.
+	 * @param handshakes The pool that runs the TLS handshake of each connection, or null for plain text.
+	 */
+	public Server(ServerSocket serverSocket, MessageRouter router, ServerConfig config, HandshakePool handshakes) {
 		this.serverSocket = serverSocket;
+		this.router = router;
+		this.config = config;
+		this.flushStats = router.getMetrics().getFlushStats();
+		this.executor = ClientExecutors.create(config.getExecutor());
+		this.handshakes = handshakes;
 	}
 
-	// Method creates a server socket and then creates a new thread for the ClientThread for each new socket that its accepts.
-	private void runServer() {
+	/**
+	 * Accepts new connections until the server socket is closed, starting a ClientThread for each socket it
+	 * accepts.
+	 */
+	public void runServer() {
 		System.out.println("Server started. Listening on port: " + serverSocket.getLocalPort());
+		if (config.getStatsIntervalSeconds() > 0) {
+			flushStats.startReporting(config.getStatsIntervalSeconds());
+		}
 		try {
 			// while loops until the serverSocket is closed
 			while (!serverSocket.isClosed()) {
 				
 				/*
-				 * A block of code creates to new thread for each accepted socket using the ClientThread class 
+				 * A block of code creates to new thread for each accepted socket using the ClientThread class.
+				 * The username is read on the new thread so a slow client cannot hold up the accept loop.
 				 */
 				Socket socket = serverSocket.accept(); 								// Listens and accept the connection from the client. Blocking
+				router.getMetrics().connectionOpened();
+				socket.setTcpNoDelay(true);											// The writer batches messages itself, as does a TLS handshake flight
 				System.out.println(
 						"A new client has connected at port " + socket.getPort()); 	// Display the client's port number in the server console
-				ClientThread clientThread = new ClientThread(socket); 				// Pass the socket to a Runnable class
-				Thread t = new Thread(clientThread); 								// Run the clientThread connection on its own thread
-				t.start();															// Start thread				
+				if (handshakes != null) {
+					handshakes.handshake(socket, this::startClient);				// The client's thread starts once the handshake is done
+				} else {
+					startClient(socket);
+				}
 			}
 		} catch (IOException e) {
 			closeServerSocket();													// Close the server socket if an error is thrown
 		}
 	}
 
-	// Method closes the instance of the server socket
-	private void closeServerSocket() {
+	// Method starts the ClientThread of a connected socket and the writer of its outbound queue
+	private void startClient(Socket socket) {
+		ClientThread clientThread = new ClientThread(socket, router, config, flushStats); 	// Pass the socket to a Runnable class
+		executor.execute(clientThread); 										// Run the clientThread connection on its own thread
+		executor.execute(clientThread.writer());								// Drain the client's outbound queue on a thread of its own
+	}
+
+	/**
+	 * Closes the server socket and stops accepting work on the executor.
+	 */
+	public void closeServerSocket() {
 		try {
 			if (serverSocket != null) {
 				serverSocket.close();
 			}
+			executor.shutdown();
+			if (handshakes != null) {
+				handshakes.shutdown();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public static void main(String[] args) throws IOException {
-		Scanner scanner = new Scanner(System.in);
-		Addressing ad = new Addressing();											// Create class for port number method 
-		SERVERPORT = ad.getPortNumber(scanner);										// Validates and assigns the port number
+	public static void main(String[] args) throws IOException, JMException, GeneralSecurityException {
+		ServerConfig config = ServerConfig.fromArgs(args);							// Read any start up options
+		if (config.getPort() == 0) {
+			Scanner scanner = new Scanner(System.in);
+			Addressing ad = new Addressing();										// Create class for port number method 
+			config.setPort(ad.getPortNumber(scanner));								// Validates and assigns the port number
+		}
+		SERVERPORT = config.getPort();
+		MessageRouter router = new MessageRouter(config);							// The chat room shared by all clients
+		Runtime.getRuntime().addShutdownHook(new Thread(router::close));			// Sync the journal on Ctrl+C
+		router.getMetrics().registerMBean();										// Readable over JMX, i.e. with JConsole
+		if (config.getMetricsPort() > 0) {
+			new MetricsEndpoint(config.getMetricsPort(), router.getMetrics()).start();	// Plain text scrape endpoint
+		}
+		if (config.getClusterPort() > 0) {
+			ClusterNode cluster = new ClusterNode(config, router);					// Shares users and messages with the other nodes
+			router.setCluster(cluster);
+			cluster.start();
+		}
+		HandshakePool handshakes = null;
+		if (config.isTls()) {
+			handshakes = new HandshakePool(config.newSslContext(), config.getHandshakeThreads(), router.getMetrics());
+		}
 
-		ServerSocket sc = new ServerSocket(SERVERPORT);								// Create a new ServerSocket
-		Server server = new Server(sc);												// Create the server class with the new ServerSocket
-		server.runServer();															// Run the main Server method
-		
+		if (config.getMode() == ServerConfig.Mode.NIO) {
+			ServerSocketChannel channel = ServerSocketChannel.open();				// Create a new ServerSocketChannel
+			channel.bind(new InetSocketAddress(SERVERPORT));
+			new NioServer(channel, router, config, handshakes).runServer();				// Run the event loop server
+		} else {
+			ServerSocket sc = new ServerSocket(SERVERPORT);							// Create a new ServerSocket
+			Server server = new Server(sc, router, config, handshakes);				// Create the server class with the new ServerSocket
+			server.runServer();														// Run the main Server method
+		}
 	}
 
 }
@@ -0,0 +1,494 @@
+package ie.gmit.dip;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Class holds the start up options for the server application. Options are passed on the command line in the
+ * form <code>--name=value</code>, any option that is left out keeps its default value.
+ * <ol>
+ * 	<li><strong>--port:</strong><p>Port number to listen on. The user is prompted if it is not given.</p>
+ * 	<li><strong>--mode:</strong><p><code>thread</code> for a thread per connection or <code>nio</code> for selector event loops.</p>
+ * 	<li><strong>--event-loops:</strong><p>Number of event loop threads used in <code>nio</code> mode.</p>
+ * 	<li><strong>--executor:</strong><p><code>platform</code> or <code>virtual</code> threads for each client in <code>thread</code> mode.</p>
+ * 	<li><strong>--outbound-queue:</strong><p>Most messages waiting to be written to one client.</p>
+ * 	<li><strong>--overflow:</strong><p><code>drop-oldest</code>, <code>disconnect</code> or <code>block</code> when a client's queue is full, <code>block</code> in <code>thread</code> mode only.</p>
+ * 	<li><strong>--block-timeout-ms:</strong><p>How long a sender waits for room with the <code>block</code> policy.</p>
+ * 	<li><strong>--flush-latency-us:</strong><p>Longest a written message waits for more to join its batch before a flush.</p>
+ * 	<li><strong>--stats-interval-s:</strong><p>Seconds between flush statistics in the server console, 0 for none.</p>
+ * 	<li><strong>--metrics-port:</strong><p>Local port of the plain text {@link MetricsEndpoint}, 0 for none.</p>
+ * 	<li><strong>--journal-dir:</strong><p>Directory of the {@link MessageJournal}, no journal is kept if it is not given.</p>
+ * 	<li><strong>--journal-segment-kb:</strong><p>Size at which a room's journal moves on to a new segment file.</p>
+ * 	<li><strong>--history:</strong><p>Recent messages of a room sent to a user who joins it, 0 for none.</p>
+ * 	<li><strong>--heartbeat-s:</strong><p>Seconds a connection may be quiet before the server pings it, if there is an idle timeout.</p>
+ * 	<li><strong>--idle-timeout-s:</strong><p>Seconds a connection may be quiet before the server closes it, 0 (the default) for never.</p>
+ * 	<li><strong>--resume-grace-s:</strong><p>Seconds a dropped user's name and messages are kept for them to reconnect, 0 (the default) for none.</p>
+ * 	<li><strong>--rate-limit:</strong><p>Messages a second read from one connection, 0 (the default) for no limit.</p>
+ * 	<li><strong>--rate-burst:</strong><p>Messages a connection may send at once after a quiet spell.</p>
+ * 	<li><strong>--room-rate-limit:</strong><p>Messages a second read from the members of one room together, 0 for no limit.</p>
+ * 	<li><strong>--room-rate-burst:</strong><p>Messages the members of a room may send at once after a quiet spell.</p>
+ * 	<li><strong>--cluster-port:</strong><p>Port the {@link ClusterNode} listens on for other nodes, 0 to run on its own.</p>
+ * 	<li><strong>--cluster-bind:</strong><p>Address the cluster port is bound to, every interface if it is not given.</p>
+ * 	<li><strong>--cluster-secret:</strong><p>Secret shared by the nodes of a cluster, which must be given with the cluster port.</p>
+ * 	<li><strong>--peers:</strong><p>Comma separated <code>host:port</code> cluster ports of the other nodes.</p>
+ * 	<li><strong>--node-id:</strong><p>Name of this node in the cluster, the host name and cluster port if it is not given.</p>
+ * 	<li><strong>--tls-keystore:</strong><p>PKCS12 keystore with the server's key and certificate, clients connect in plain text if it is not given.</p>
+ * 	<li><strong>--tls-password:</strong><p>Password of the keystore and the key in it.</p>
+ * 	<li><strong>--tls-session-cache:</strong><p>Most TLS sessions the server keeps for clients to resume.</p>
+ * 	<li><strong>--tls-session-timeout-s:</strong><p>Seconds a client may resume a TLS session for.</p>
+ * 	<li><strong>--handshake-threads:</strong><p>Threads of the {@link HandshakePool} that runs the TLS handshakes.</p>
+ * 	<li><strong>--compress-threshold:</strong><p>Bytes from which a frame is sent deflated to a binary client that accepts it, 0 for never.</p>
+ * <ol>
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ServerConfig {
+
+	/** Number of recent messages kept in each room if the option is not given. */
+	public static final int DEFAULT_HISTORY = 64;
+
+	/** Length in bytes from which frames are deflated if the option is not given. */
+	public static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+
+	/**
+	 * The ways the server can service its client connections.
+	 */
+	public enum Mode {
+		/** A blocking {@link ClientThread} for each connected client. */
+		THREAD,
+		/** A small fixed pool of non-blocking {@link NioServer} event loops shared by all clients. */
+		NIO
+	}
+
+	/**
+	 * The type of thread each {@link ClientThread} runs on in {@link Mode#THREAD} mode.
+	 */
+	public enum Executor {
+		/** An operating system thread for each client. */
+		PLATFORM,
+		/** A virtual thread for each client, available from Java 21. */
+		VIRTUAL
+	}
+
+	private int port;														// 0 when the port has not been set
+	private Mode mode = Mode.THREAD;
+	private int eventLoops = Runtime.getRuntime().availableProcessors();
+	private Executor executor = Executor.PLATFORM;
+	private int outboundQueue = 1024;
+	private OutboundQueue.OverflowPolicy overflow = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+	private long blockTimeoutMs = 100;
+	private long flushLatencyMicros = 1000;
+	private long statsIntervalSeconds;
+	private int metricsPort;
+	private String journalDir;												// Null when no journal is kept
+	private int journalSegmentKb = 16 * 1024;
+	private int history = DEFAULT_HISTORY;
+	private long resumeGraceSeconds;										// 0 when a dropped user leaves straight away
+	private long heartbeatSeconds = 30;
+	private long idleTimeoutSeconds;										// 0 when quiet connections are kept
+	private int rateLimit;													// 0 when connections are not limited
+	private int rateBurst = 100;
+	private int roomRateLimit;												// 0 when rooms are not limited
+	private int roomRateBurst = 200;
+	private int clusterPort;												// 0 when the server is not part of a cluster
+	private String clusterBind;												// Null to listen on every interface
+	private String clusterSecret;											// Null until it is given, required for a cluster
+	private List<InetSocketAddress> peers = Collections.emptyList();
+	private String nodeId;													// Null until it is defaulted from the cluster port
+	private String tlsKeystore;												// Null when clients connect in plain text
+	private String tlsPassword = "changeit";
+	private int tlsSessionCache = 20_000;
+	private int tlsSessionTimeoutSeconds = 24 * 60 * 60;
+	private int handshakeThreads = Runtime.getRuntime().availableProcessors();
+	private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;				// 0 when frames are never deflated
+
+	/**
+	 * Creates a configuration from the command line arguments of the server application.
+	 *
+	 * @param args Arguments in the form <code>--name=value</code>.
+	 * @return The configuration with defaults for any option not given.
+	 * @throws IllegalArgumentException If an argument is not recognised or has an invalid value.
+	 */
+	public static ServerConfig fromArgs(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0) {
+				throw new IllegalArgumentException("Expected --name=value but found: " + arg);
+			}
+			String name = arg.substring(2, split);
+			String value = arg.substring(split + 1);
+
+			switch (name) {
+			case "port":
+				config.setPort(Integer.parseInt(value));
+				break;
+			case "mode":
+				config.mode = Mode.valueOf(value.toUpperCase());
+				break;
+			case "event-loops":
+				config.eventLoops = positive(name, Integer.parseInt(value));
+				break;
+			case "executor":
+				config.executor = Executor.valueOf(value.toUpperCase());
+				break;
+			case "outbound-queue":
+				config.outboundQueue = positive(name, Integer.parseInt(value));
+				break;
+			case "overflow":
+				config.overflow = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+				break;
+			case "block-timeout-ms":
+				config.blockTimeoutMs = positive(name, Integer.parseInt(value));
+				break;
+			case "flush-latency-us":
+				config.flushLatencyMicros = nonNegative(name, Long.parseLong(value));
+				break;
+			case "stats-interval-s":
+				config.statsIntervalSeconds = nonNegative(name, Long.parseLong(value));
+				break;
+			case "metrics-port":
+				config.metricsPort = Integer.parseInt(value);
+				break;
+			case "journal-dir":
+				config.journalDir = value;
+				break;
+			case "journal-segment-kb":
+				config.journalSegmentKb = positive(name, Integer.parseInt(value));
+				break;
+			case "history":
+				config.history = Integer.parseInt(value);
+				if (config.history < 0) {
+					throw new IllegalArgumentException("--history must not be negative");
+				}
+				break;
+			case "heartbeat-s":
+				config.heartbeatSeconds = positive(name, Integer.parseInt(value));
+				break;
+			case "idle-timeout-s":
+				config.idleTimeoutSeconds = Long.parseLong(value);
+				break;
+			case "resume-grace-s":
+				config.resumeGraceSeconds = Long.parseLong(value);
+				break;
+			case "rate-limit":
+				config.rateLimit = Integer.parseInt(value);
+				break;
+			case "rate-burst":
+				config.rateBurst = positive(name, Integer.parseInt(value));
+				break;
+			case "room-rate-limit":
+				config.roomRateLimit = Integer.parseInt(value);
+				break;
+			case "room-rate-burst":
+				config.roomRateBurst = positive(name, Integer.parseInt(value));
+				break;
+			case "cluster-port":
+				config.clusterPort = Integer.parseInt(value);
+				break;
+			case "cluster-bind":
+				config.clusterBind = value;
+				break;
+			case "cluster-secret":
+				if (value.isEmpty()) {
+					throw new IllegalArgumentException("--cluster-secret must not be empty");
+				}
+				config.clusterSecret = value;
+				break;
+			case "peers":
+				config.peers = parsePeers(value);
+				break;
+			case "node-id":
+				config.nodeId = value;
+				break;
+			case "tls-keystore":
+				config.tlsKeystore = value;
+				break;
+			case "tls-password":
+				config.tlsPassword = value;
+				break;
+			case "tls-session-cache":
+				config.tlsSessionCache = positive(name, Integer.parseInt(value));
+				break;
+			case "tls-session-timeout-s":
+				config.tlsSessionTimeoutSeconds = positive(name, Integer.parseInt(value));
+				break;
+			case "handshake-threads":
+				config.handshakeThreads = positive(name, Integer.parseInt(value));
+				break;
+			case "compress-threshold":
+				config.compressThreshold = Integer.parseInt(value);
+				if (config.compressThreshold < 0) {
+					throw new IllegalArgumentException("--compress-threshold must not be negative");
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: --" + name);
+			}
+		}
+		if (config.mode == Mode.NIO && config.overflow == OutboundQueue.OverflowPolicy.BLOCK) {
+			// The sender would wait on the event loop that may be the one to drain the full queue
+			throw new IllegalArgumentException("--overflow=block cannot be used with --mode=nio");
+		}
+		if (config.clusterPort > 0 && config.clusterSecret == null) {
+			// Without it anyone who can reach the cluster port could speak for any user
+			throw new IllegalArgumentException("--cluster-secret must be given with --cluster-port");
+		}
+		return config;
+	}
+
+	// Method reads a comma separated list of host:port addresses. They are resolved when the node connects
+	private static List<InetSocketAddress> parsePeers(String value) {
+		List<InetSocketAddress> peers = new ArrayList<>();
+		for (String peer : value.split(",")) {
+			int split = peer.lastIndexOf(':');
+			if (split < 1) {
+				throw new IllegalArgumentException("Expected host:port in --peers but found: " + peer);
+			}
+			peers.add(InetSocketAddress.createUnresolved(peer.substring(0, split).trim(),
+					Integer.parseInt(peer.substring(split + 1).trim())));
+		}
+		return peers;
+	}
+
+	// Method checks an option is greater than zero
+	private static int positive(String name, int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("--" + name + " must be greater than zero");
+		}
+		return value;
+	}
+
+	// Method checks an option is zero or more
+	private static long nonNegative(String name, long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("--" + name + " must not be negative");
+		}
+		return value;
+	}
+
+	/**
+	 * @return The port number to listen on, or 0 if it has not been set.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param port The port number to listen on in the range 1-65535.
+	 */
+	public void setPort(int port) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("Port number out of range: " + port);
+		}
+		this.port = port;
+	}
+
+	/**
+	 * @return How the server services its client connections.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The number of event loop threads used in NIO mode.
+	 */
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	/**
+	 * @return The type of thread each client runs on in thread mode.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return Longest a written message waits for more to join its batch before a flush, in microseconds.
+	 */
+	public long getFlushLatencyMicros() {
+		return flushLatencyMicros;
+	}
+
+	/**
+	 * @return Seconds between flush statistics in the server console, 0 if they are not printed.
+	 */
+	public long getStatsIntervalSeconds() {
+		return statsIntervalSeconds;
+	}
+
+	/**
+	 * @return Local port of the metrics endpoint, 0 if it is not started.
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	/**
+	 * @return Directory of the message journal, or null if no journal is kept.
+	 */
+	public String getJournalDir() {
+		return journalDir;
+	}
+
+	/**
+	 * @return Size in bytes at which a room's journal moves on to a new segment file.
+	 */
+	public int getJournalSegmentBytes() {
+		return journalSegmentKb * 1024;
+	}
+
+	/**
+	 * @return Number of recent messages of a room sent to a user who joins it, 0 if none are kept.
+	 */
+	public int getHistory() {
+		return history;
+	}
+
+	/**
+	 * @return Seconds a dropped user's name and messages are kept for them to reconnect, 0 if they are not kept.
+	 */
+	public long getResumeGraceSeconds() {
+		return resumeGraceSeconds;
+	}
+
+	/**
+	 * @return Seconds a connection may be quiet before the server pings it.
+	 */
+	public long getHeartbeatSeconds() {
+		return heartbeatSeconds;
+	}
+
+	/**
+	 * @return Seconds a connection may be quiet before the server closes it, 0 if quiet connections are kept.
+	 */
+	public long getIdleTimeoutSeconds() {
+		return idleTimeoutSeconds;
+	}
+
+	/**
+	 * Creates the rate limit for the messages read from a new connection.
+	 *
+	 * @return A full bucket, or null if connections are not limited.
+	 */
+	public TokenBucket newRateLimit() {
+		return rateLimit > 0 ? new TokenBucket(rateLimit, rateBurst) : null;
+	}
+
+	/**
+	 * Creates the rate limit shared by the members of a new room.
+	 *
+	 * @return A full bucket, or null if rooms are not limited.
+	 */
+	public TokenBucket newRoomRateLimit() {
+		return roomRateLimit > 0 ? new TokenBucket(roomRateLimit, roomRateBurst) : null;
+	}
+
+	/**
+	 * @return Port the cluster node listens on for other nodes, 0 if the server is not part of a cluster.
+	 */
+	public int getClusterPort() {
+		return clusterPort;
+	}
+
+	/**
+	 * @return Host name or address the cluster port is bound to, or null for every interface.
+	 */
+	public String getClusterBind() {
+		return clusterBind;
+	}
+
+	/**
+	 * @return Secret the nodes of the cluster prove they know to each other, or null if none was given.
+	 */
+	public String getClusterSecret() {
+		return clusterSecret;
+	}
+
+	/**
+	 * @return Cluster ports of the other nodes, which may not be resolved yet.
+	 */
+	public List<InetSocketAddress> getPeers() {
+		return peers;
+	}
+
+	/**
+	 * @return Name of this node in the cluster, by default the host name and cluster port.
+	 */
+	public String getNodeId() {
+		if (nodeId == null) {
+			String host;
+			try {
+				host = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				host = "localhost";
+			}
+			nodeId = host + ":" + clusterPort;
+		}
+		return nodeId;
+	}
+
+	/**
+	 * @return True if clients connect over TLS.
+	 */
+	public boolean isTls() {
+		return tlsKeystore != null;
+	}
+
+	/**
+	 * Loads the server's key and certificate and sets up the cache of sessions clients may resume.
+	 *
+	 * @return The TLS context of the server.
+	 * @throws IOException If the keystore cannot be read or its password is wrong.
+	 * @throws GeneralSecurityException If the keystore does not hold a usable key.
+	 */
+	public SSLContext newSslContext() throws IOException, GeneralSecurityException {
+		return TlsContexts.forServer(tlsKeystore, tlsPassword.toCharArray(), tlsSessionCache, tlsSessionTimeoutSeconds);
+	}
+
+	/**
+	 * @return Number of threads that run TLS handshakes.
+	 */
+	public int getHandshakeThreads() {
+		return handshakeThreads;
+	}
+
+	/**
+	 * @return Length in bytes from which a frame is sent deflated to a client that accepts it, 0 if frames are
+	 *         never deflated.
+	 */
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	/**
+	 * @return Most messages waiting to be written to one client, also the most kept for a dropped user.
+	 */
+	public int getOutboundQueueSize() {
+		return outboundQueue;
+	}
+
+	/**
+	 * Creates an empty outbound queue for a new client using the queue options.
+	 *
+	 * @param <E> The type of message in the queue.
+	 * @param metrics The metrics of the server, which count the messages the queue drops.
+	 * @return A new bounded queue.
+	 */
+	public <E> OutboundQueue<E> newOutboundQueue(ServerMetrics metrics) {
+		return new OutboundQueue<>(outboundQueue, overflow, blockTimeoutMs, metrics.getDropCounter());
+	}
+
+}
@@ -0,0 +1,364 @@
+package ie.gmit.dip;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms that describe the load on a server. One instance is owned by the
+ * {@link MessageRouter} and shared by every connection in both server modes.
+ *
+ * Every update on the message path is an increment of a striped {@link LongAdder} or a {@link LatencyHistogram}
+ * bucket, so recording never allocates or contends between threads. Rates and queue depths are only worked out
+ * when the metrics are read, over JMX as a {@link ServerMetricsMBean} or from the {@link MetricsEndpoint}.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	private static final long SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);	// Shortest window rates are averaged over
+
+	private final UserRegistry users;										// Read for the outbound queue depths
+	private final FlushStats flushStats = new FlushStats();
+	private final LongAdder accepts = new LongAdder();
+	private final LongAdder closes = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder journalDropped = new LongAdder();
+	private final LongAdder resumed = new LongAdder();
+	private final LongAdder reaped = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder handshakeFailures = new LongAdder();
+	private final LongAdder relayed = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LatencyHistogram fanOut = new LatencyHistogram();
+	private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+	// Totals at the previous sample, guarded by this
+	private long sampledAt = System.nanoTime();
+	private long sampledAccepts;
+	private long sampledIn;
+	private long sampledOut;
+	private double acceptRate;
+	private double inRate;
+	private double outRate;
+
+	/**
+	 * Constructor for metrics over the users of a router.
+	 *
+	 * @param users The users whose outbound queues are measured.
+	 */
+	public ServerMetrics(UserRegistry users) {
+		this.users = users;
+	}
+
+	/**
+	 * Records a newly accepted connection.
+	 */
+	public void connectionOpened() {
+		accepts.increment();
+	}
+
+	/**
+	 * Records a connection that has been closed.
+	 */
+	public void connectionClosed() {
+		closes.increment();
+	}
+
+	/**
+	 * Records a message or command received from a client and the time taken to dispatch it.
+	 *
+	 * @param nanos The time taken by the router, in nanoseconds.
+	 */
+	public void messageDispatched(long nanos) {
+		messagesIn.increment();
+		dispatchLatency.record(nanos);
+	}
+
+	/**
+	 * Records a client that came back within the grace period and took over its parked session.
+	 */
+	public void sessionResumed() {
+		resumed.increment();
+	}
+
+	/**
+	 * Records a connection closed because it stopped answering heartbeats.
+	 */
+	public void sessionReaped() {
+		reaped.increment();
+	}
+
+	/**
+	 * Records a message that had to wait because its connection or room was over its rate limit.
+	 */
+	public void messageThrottled() {
+		throttled.increment();
+	}
+
+	/**
+	 * Records a TLS handshake that failed, timed out or was turned away because too many were waiting.
+	 */
+	public void tlsHandshakeFailed() {
+		handshakeFailures.increment();
+	}
+
+	/**
+	 * Records a message sent to another node of the cluster.
+	 */
+	public void clusterMessageRelayed() {
+		relayed.increment();
+	}
+
+	/**
+	 * Records a message received from another node of the cluster.
+	 */
+	public void clusterMessageReceived() {
+		received.increment();
+	}
+
+	/**
+	 * Records the number of users a group message was sent to.
+	 *
+	 * @param recipients The number of recipients.
+	 */
+	public void groupMessageSent(int recipients) {
+		fanOut.record(recipients);
+	}
+
+	/**
+	 * @return The flush counters shared by every writer of the server.
+	 */
+	public FlushStats getFlushStats() {
+		return flushStats;
+	}
+
+	/**
+	 * @return The counter every outbound queue of the server adds its dropped messages to.
+	 */
+	LongAdder getDropCounter() {
+		return dropped;
+	}
+
+	/**
+	 * @return The counter the message journal adds the messages it could not keep up with to.
+	 */
+	LongAdder getJournalDropCounter() {
+		return journalDropped;
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return accepts.sum() - closes.sum();
+	}
+
+	@Override
+	public long getAccepts() {
+		return accepts.sum();
+	}
+
+	@Override
+	public synchronized double getAcceptsPerSecond() {
+		sample();
+		return acceptRate;
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public synchronized double getMessagesInPerSecond() {
+		sample();
+		return inRate;
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return flushStats.getMessages();
+	}
+
+	@Override
+	public synchronized double getMessagesOutPerSecond() {
+		sample();
+		return outRate;
+	}
+
+	@Override
+	public double getFanOutMean() {
+		return fanOut.getMean();
+	}
+
+	@Override
+	public long getFanOutP99() {
+		return fanOut.getPercentile(99);
+	}
+
+	@Override
+	public long getFanOutMax() {
+		return fanOut.getMax();
+	}
+
+	@Override
+	public double getDispatchLatencyP50Micros() {
+		return dispatchLatency.getPercentile(50) / 1e3;
+	}
+
+	@Override
+	public double getDispatchLatencyP99Micros() {
+		return dispatchLatency.getPercentile(99) / 1e3;
+	}
+
+	@Override
+	public double getDispatchLatencyP999Micros() {
+		return dispatchLatency.getPercentile(99.9) / 1e3;
+	}
+
+	@Override
+	public long getOutboundQueueDepth() {
+		long depth = 0;
+		for (Session session : users.sessions()) {
+			depth += session.getQueueDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	public long getMaxOutboundQueueDepth() {
+		long max = 0;
+		for (Session session : users.sessions()) {
+			max = Math.max(max, session.getQueueDepth());
+		}
+		return max;
+	}
+
+	@Override
+	public long getSlowConsumerDrops() {
+		return dropped.sum();
+	}
+
+	@Override
+	public long getJournalDrops() {
+		return journalDropped.sum();
+	}
+
+	@Override
+	public long getSessionsResumed() {
+		return resumed.sum();
+	}
+
+	@Override
+	public long getSessionsReaped() {
+		return reaped.sum();
+	}
+
+	@Override
+	public long getMessagesThrottled() {
+		return throttled.sum();
+	}
+
+	@Override
+	public long getTlsHandshakeFailures() {
+		return handshakeFailures.sum();
+	}
+
+	@Override
+	public long getClusterRelayed() {
+		return relayed.sum();
+	}
+
+	@Override
+	public long getClusterReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public long getFlushes() {
+		return flushStats.getFlushes();
+	}
+
+	@Override
+	public double getMessagesPerFlush() {
+		return flushStats.getMessagesPerFlush();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server so they can be read over JMX.
+	 *
+	 * @throws JMException If the metrics could not be registered, i.e. another server in the same process already has.
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ie.gmit.dip:type=ServerMetrics"));
+	}
+
+	/**
+	 * Describes every metric in the plain text exposition format read by Prometheus and similar scrapers, one
+	 * <code>name value</code> pair per line.
+	 *
+	 * @return The current value of every metric.
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder(1024);
+		line(text, "chat_connections_active", getActiveConnections());
+		line(text, "chat_accepts_total", getAccepts());
+		line(text, "chat_accepts_per_second", getAcceptsPerSecond());
+		line(text, "chat_messages_in_total", getMessagesIn());
+		line(text, "chat_messages_in_per_second", getMessagesInPerSecond());
+		line(text, "chat_messages_out_total", getMessagesOut());
+		line(text, "chat_messages_out_per_second", getMessagesOutPerSecond());
+		line(text, "chat_flushes_total", getFlushes());
+		line(text, "chat_broadcast_fan_out_mean", getFanOutMean());
+		line(text, "chat_broadcast_fan_out{quantile=\"0.99\"}", getFanOutP99());
+		line(text, "chat_broadcast_fan_out_max", getFanOutMax());
+		line(text, "chat_dispatch_latency_seconds{quantile=\"0.5\"}", getDispatchLatencyP50Micros() / 1e6);
+		line(text, "chat_dispatch_latency_seconds{quantile=\"0.99\"}", getDispatchLatencyP99Micros() / 1e6);
+		line(text, "chat_dispatch_latency_seconds{quantile=\"0.999\"}", getDispatchLatencyP999Micros() / 1e6);
+		line(text, "chat_outbound_queue_depth", getOutboundQueueDepth());
+		line(text, "chat_outbound_queue_depth_max", getMaxOutboundQueueDepth());
+		line(text, "chat_slow_consumer_drops_total", getSlowConsumerDrops());
+		line(text, "chat_journal_drops_total", getJournalDrops());
+		line(text, "chat_sessions_resumed_total", getSessionsResumed());
+		line(text, "chat_sessions_reaped_total", getSessionsReaped());
+		line(text, "chat_messages_throttled_total", getMessagesThrottled());
+		line(text, "chat_tls_handshake_failures_total", getTlsHandshakeFailures());
+		line(text, "chat_cluster_relayed_total", getClusterRelayed());
+		line(text, "chat_cluster_received_total", getClusterReceived());
+		return text.toString();
+	}
+
+	private static void line(StringBuilder text, String name, long value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void line(StringBuilder text, String name, double value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	// Works out the rates since the previous sample once at least a second has passed. Must hold the lock
+	private void sample() {
+		long now = System.nanoTime();
+		long elapsed = now - sampledAt;
+		if (elapsed < SAMPLE_NANOS) {
+			return;
+		}
+		double seconds = elapsed / 1e9;
+		long totalAccepts = accepts.sum();
+		long totalIn = messagesIn.sum();
+		long totalOut = flushStats.getMessages();
+		acceptRate = (totalAccepts - sampledAccepts) / seconds;
+		inRate = (totalIn - sampledIn) / seconds;
+		outRate = (totalOut - sampledOut) / seconds;
+		sampledAccepts = totalAccepts;
+		sampledIn = totalIn;
+		sampledOut = totalOut;
+		sampledAt = now;
+	}
+
+}
@@ -0,0 +1,88 @@
+package ie.gmit.dip;
+
+/**
+ * Management interface of {@link ServerMetrics}, so the counters can be read over JMX, i.e. with JConsole or
+ * VisualVM, under the name <code>ie.gmit.dip:type=ServerMetrics</code>.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public interface ServerMetricsMBean {
+
+	/** @return The number of client connections currently open. */
+	long getActiveConnections();
+
+	/** @return The total number of connections accepted. */
+	long getAccepts();
+
+	/** @return Connections accepted per second since the previous sample. */
+	double getAcceptsPerSecond();
+
+	/** @return The total number of messages and commands received from clients. */
+	long getMessagesIn();
+
+	/** @return Messages received per second since the previous sample. */
+	double getMessagesInPerSecond();
+
+	/** @return The total number of messages written to clients. */
+	long getMessagesOut();
+
+	/** @return Messages written per second since the previous sample. */
+	double getMessagesOutPerSecond();
+
+	/** @return The mean number of recipients of a group message. */
+	double getFanOutMean();
+
+	/** @return The 99th percentile of the number of recipients of a group message. */
+	long getFanOutP99();
+
+	/** @return The largest number of recipients of a group message. */
+	long getFanOutMax();
+
+	/** @return The median time taken to dispatch a received message, in microseconds. */
+	double getDispatchLatencyP50Micros();
+
+	/** @return The 99th percentile of the time taken to dispatch a received message, in microseconds. */
+	double getDispatchLatencyP99Micros();
+
+	/** @return The 99.9th percentile of the time taken to dispatch a received message, in microseconds. */
+	double getDispatchLatencyP999Micros();
+
+	/** @return The number of messages waiting in every client's outbound queue together. */
+	long getOutboundQueueDepth();
+
+	/** @return The number of messages waiting in the fullest outbound queue. */
+	long getMaxOutboundQueueDepth();
+
+	/** @return The total number of messages dropped or refused because a client's queue was full. */
+	long getSlowConsumerDrops();
+
+	/** @return The total number of messages left out of the journal because it had fallen too far behind. */
+	long getJournalDrops();
+
+	/** @return The total number of clients that reconnected and took over their parked session. */
+	long getSessionsResumed();
+
+	/** @return The total number of connections closed because they stopped answering heartbeats. */
+	long getSessionsReaped();
+
+	/** @return The total number of messages held back because their connection or room was over its rate limit. */
+	long getMessagesThrottled();
+
+	/** @return The total number of TLS handshakes that failed, timed out or were turned away. */
+	long getTlsHandshakeFailures();
+
+	/** @return The total number of messages sent to other nodes of the cluster, once per node rather than per user. */
+	long getClusterRelayed();
+
+	/** @return The total number of messages received from other nodes of the cluster. */
+	long getClusterReceived();
+
+	/** @return The total number of socket flushes. */
+	long getFlushes();
+
+	/** @return The average number of messages written per flush. */
+	double getMessagesPerFlush();
+
+}
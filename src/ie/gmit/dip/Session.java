@@ -0,0 +1,64 @@
+package ie.gmit.dip;
+
+import java.util.List;
+
+/**
+ * A connected chat user as seen by the {@link MessageRouter}. Each server mode provides its own
+ * implementation, i.e. {@link ClientThread} for the thread per connection server and
+ * {@link NioConnection} for the selector based server.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public interface Session {
+
+	/**
+	 * @return The unique chat room username assigned to this session, or null before the user has joined.
+	 */
+	String getUserName();
+
+	/**
+	 * Sends a single line of text to the user. Implementations must be safe to call from any thread and must
+	 * not modify the payload, which is shared with every other recipient of the same message.
+	 *
+	 * @param payload The encoded message to send.
+	 */
+	void send(Payload payload);
+
+	/**
+	 * Sends several messages to the user in order, i.e. the recent history of a room. Implementations that
+	 * can should queue them all before waking the writer so they go out in one write.
+	 *
+	 * @param payloads The encoded messages to send.
+	 */
+	default void sendAll(List<Payload> payloads) {
+		for (Payload payload : payloads) {
+			send(payload);
+		}
+	}
+
+	/**
+	 * @return The number of messages waiting to be written to the user.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return The room the user is currently in, or null before the user has joined.
+	 */
+	ChatRoom getRoom();
+
+	/**
+	 * Records the room the user is in. Only called by the {@link MessageRouter}.
+	 *
+	 * @param room The room the user has moved to.
+	 */
+	void setRoom(ChatRoom room);
+
+	/**
+	 * Closes the underlying connection. The thread that owns the connection is responsible for removing the
+	 * user from the chat room once the close is observed.
+	 */
+	void close();
+
+}
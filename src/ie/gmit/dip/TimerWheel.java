@@ -0,0 +1,200 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for very many timeouts that are usually pushed back before they are due, i.e. one idle
+ * timeout for each connection. The wheel is a ring of {@value #SLOTS} slots, each holding the timeouts whose
+ * deadline falls on that slot's tick in any turn of the wheel. A single thread advances one slot per tick and
+ * only looks at the timeouts in that slot, so the cost of a tick depends on how many timeouts are close to
+ * due rather than on how many exist.
+ *
+ * Each slot is an intrusive linked list of the timeouts themselves, so moving a timeout to a later slot never
+ * allocates. Only the wheel thread touches the slots. Other threads add and cancel timeouts through concurrent
+ * queues that the wheel drains at the start of each tick, so a cancelled timeout and whatever it refers to are
+ * let go of straight away rather than when its deadline comes round.
+ *
+ * The wheel also keeps a coarse clock in milliseconds, updated once per tick, which is cheap enough to read
+ * on every message.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class TimerWheel implements Runnable {
+
+	private static final int SLOTS = 512;									// Power of two so a slot is a mask away
+	private static final int MASK = SLOTS - 1;
+
+	/**
+	 * A task run by the wheel once its deadline has passed. The same object can be put back on the wheel any
+	 * number of times by returning its next deadline.
+	 */
+	public abstract static class Timeout {
+
+		private long deadline;												// Milliseconds on the wheel's clock
+		private Timeout previous;											// Neighbours in the slot, only used by the wheel thread
+		private Timeout next;
+		private int slot = -1;												// Slot the timeout is in, -1 when it is not on the wheel
+
+		/**
+		 * Runs on the wheel thread once the deadline has passed. It must be quick as it holds up every other
+		 * timeout of the wheel.
+		 *
+		 * @param now The wheel's clock in milliseconds.
+		 * @return The next deadline on the wheel's clock, or a negative number to take the timeout off the wheel.
+		 */
+		protected abstract long expire(long now);
+
+	}
+
+	private final long tickMillis;
+	private final long startNanos = System.nanoTime();
+	private final Timeout[] slots = new Timeout[SLOTS];						// Head of each slot's list
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private volatile long now;												// Milliseconds since the wheel was created, updated each tick
+	private volatile boolean running = true;
+	private long tick;														// Next tick to process, only used by the wheel thread
+	private Thread thread;
+
+	/**
+	 * Constructor for a wheel that has not been started.
+	 *
+	 * @param tickMillis Milliseconds between ticks, which is also how late a timeout may run.
+	 */
+	public TimerWheel(long tickMillis) {
+		this.tickMillis = tickMillis;
+	}
+
+	/**
+	 * Starts the wheel on its own daemon thread.
+	 *
+	 * @param name The name of the thread.
+	 */
+	public void start(String name) {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel. Timeouts still on it never run.
+	 */
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * @return The wheel's clock in milliseconds. It moves on once per tick.
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * Puts a timeout on the wheel. Safe to call from any thread, but a timeout must only be on the wheel once.
+	 *
+	 * @param timeout The timeout to run.
+	 * @param deadline When to run it on the wheel's clock in milliseconds.
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		timeout.deadline = deadline;
+		added.add(timeout);
+	}
+
+	/**
+	 * Takes a timeout off the wheel at the next tick, so it never runs. Safe to call from any thread, and for a
+	 * timeout that has already run.
+	 *
+	 * @param timeout The timeout to take off the wheel.
+	 */
+	public void cancel(Timeout timeout) {
+		cancelled.add(timeout);
+	}
+
+	/**
+	 * Advances the wheel one slot per tick until it is stopped.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(tickMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			now = elapsed;
+			Timeout timeout;
+			while ((timeout = added.poll()) != null) {
+				insert(timeout);
+			}
+			while ((timeout = cancelled.poll()) != null) {					// After the added queue, which may hold the same timeout
+				if (timeout.slot >= 0) {
+					remove(timeout.slot, timeout);
+				}
+			}
+			long due = elapsed / tickMillis;
+			while (tick <= due) {											// Catch up if a tick was missed
+				expireSlot((int) (tick & MASK), elapsed);
+				tick++;
+			}
+		}
+	}
+
+	// Runs the timeouts of the slot that are due, leaving those for a later turn of the wheel in place
+	private void expireSlot(int slot, long elapsed) {
+		Timeout timeout = slots[slot];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= elapsed) {
+				remove(slot, timeout);
+				long deadline;
+				try {
+					deadline = timeout.expire(elapsed);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					deadline = -1;
+				}
+				if (deadline >= 0) {
+					timeout.deadline = deadline;
+					insert(timeout);
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	// Adds the timeout to the slot of its deadline, or the next slot to be processed if it is already due
+	private void insert(Timeout timeout) {
+		long target = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, tick + 1);	// First tick at or after the deadline
+		int slot = (int) (target & MASK);
+		timeout.slot = slot;
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].previous = timeout;
+		}
+		slots[slot] = timeout;
+	}
+
+	private void remove(int slot, Timeout timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.slot = -1;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+
+}
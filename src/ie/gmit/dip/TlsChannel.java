@@ -0,0 +1,294 @@
+package ie.gmit.dip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a client's socket channel for the {@link NioServer}, using an {@link SSLEngine} as there is no
+ * non-blocking SSL socket. The handshake is run first with the channel still in blocking mode, on a thread of
+ * the {@link HandshakePool} so the key exchange never holds up an event loop. The channel is then switched to
+ * non-blocking mode and its {@link NioConnection} reads and writes through this class on the event loop.
+ *
+ * Three buffers sit between the engine and the socket: bytes read from the socket but not yet decrypted, bytes
+ * decrypted but not yet read by the connection, and bytes encrypted but not yet written. Writing encrypts
+ * straight from the connection's batch of queued messages, so a batch of small messages becomes as few
+ * records as possible rather than a record each.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class TlsChannel {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private ByteBuffer netIn;												// Read from the socket, kept ready to fill
+	private ByteBuffer appIn;												// Decrypted, kept ready to drain
+	private ByteBuffer netOut;												// Encrypted, kept ready to drain
+	private boolean inboundDone;											// The client sent close_notify
+
+	/**
+	 * Constructor for TLS over a newly accepted channel.
+	 *
+	 * @param channel The channel of the client, still in blocking mode.
+	 * @param engine An engine in server mode that has not started its handshake.
+	 */
+	public TlsChannel(SocketChannel channel, SSLEngine engine) {
+		this.channel = channel;
+		this.engine = engine;
+		this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		appIn.flip();
+		netOut.flip();
+	}
+
+	/**
+	 * Runs the whole handshake with blocking reads and writes, then switches the channel to non-blocking mode.
+	 * Anything the client sent straight after the handshake is kept for the first {@link #read(ByteBuffer)}.
+	 *
+	 * @param timeoutMillis Longest wait for the client's next handshake message.
+	 * @throws IOException If the handshake fails, the client leaves or it is too slow.
+	 */
+	public void handshake(int timeoutMillis) throws IOException {
+		Socket socket = channel.socket();
+		socket.setSoTimeout(timeoutMillis);									// Only the socket's streams honour the timeout
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		engine.beginHandshake();
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				wrap(EMPTY);
+				out.write(netOut.array(), netOut.position(), netOut.remaining());
+				netOut.position(netOut.limit());
+				break;
+			case NEED_UNWRAP:
+				if (unwrap().getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					int n = in.read(netIn.array(), netIn.position(), netIn.remaining());
+					if (n < 0) {
+						throw new EOFException("Client left during the TLS handshake");
+					}
+					netIn.position(netIn.position() + n);
+				}
+				break;
+			case NEED_TASK:
+				runTasks();
+				break;
+			case NOT_HANDSHAKING:
+				socket.setSoTimeout(0);
+				channel.configureBlocking(false);
+				return;
+			default:
+				throw new SSLException("Unexpected handshake status " + engine.getHandshakeStatus());
+			}
+		}
+	}
+
+	/**
+	 * Reads decrypted bytes into the buffer without blocking.
+	 *
+	 * @param dst The buffer to fill.
+	 * @return The number of bytes read, 0 if a whole record has not arrived yet or -1 at the end of the stream.
+	 * @throws IOException If the channel fails or the client sends something that is not valid TLS.
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		while (true) {
+			if (appIn.hasRemaining()) {
+				int n = Math.min(appIn.remaining(), dst.remaining());
+				ByteBuffer slice = appIn.duplicate();
+				slice.limit(slice.position() + n);
+				dst.put(slice);
+				appIn.position(appIn.position() + n);
+				return n;
+			}
+			if (inboundDone) {
+				return -1;
+			}
+			SSLEngineResult result = unwrap();
+			switch (result.getStatus()) {
+			case CLOSED:
+				inboundDone = true;
+				break;
+			case BUFFER_UNDERFLOW:
+				int n = channel.read(netIn);
+				if (n <= 0) {
+					return n;													// Nothing more yet, or the client dropped without close_notify
+				}
+				break;
+			default:
+				continuePostHandshake(result);
+			}
+		}
+	}
+
+	/**
+	 * @return True if bytes have arrived that have not been handed to {@link #read(ByteBuffer)} yet, which the
+	 * selector will not report as the socket has already been read.
+	 */
+	public boolean hasBufferedInput() {
+		return appIn.hasRemaining() || netIn.position() > 0;
+	}
+
+	/**
+	 * Encrypts and writes as much of the buffers as the socket will take without blocking, leaving the
+	 * position of each buffer after the bytes that were encrypted.
+	 *
+	 * @param srcs The buffers to write.
+	 * @param offset The first buffer to write.
+	 * @param length The number of buffers to write.
+	 * @throws IOException If the channel fails or the engine has been closed.
+	 */
+	public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		while (flush() && hasRemaining(srcs, offset, length)) {
+			SSLEngineResult result = wrap(srcs, offset, length);
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Writes bytes that were encrypted but did not fit in the socket's buffer.
+	 *
+	 * @return True if there is nothing left to write.
+	 * @throws IOException If the channel fails.
+	 */
+	public boolean flush() throws IOException {
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if encrypted bytes are waiting for the socket to take them.
+	 */
+	public boolean hasPendingOutput() {
+		return netOut.hasRemaining();
+	}
+
+	/**
+	 * Sends close_notify to the client if the socket will take it without blocking. The channel itself is
+	 * closed by the caller.
+	 */
+	public void close() {
+		engine.closeOutbound();
+		try {
+			while (!engine.isOutboundDone() && wrap(EMPTY).bytesProduced() > 0) {
+				// Collect the close_notify record
+			}
+			flush();
+		} catch (IOException e) {
+			// Best effort, the client may already be gone
+		}
+	}
+
+	// Handles the handshake messages of TLS 1.3 that may come after the handshake, i.e. a key update
+	private void continuePostHandshake(SSLEngineResult result) throws IOException {
+		switch (result.getHandshakeStatus()) {
+		case NEED_TASK:
+			runTasks();
+			break;
+		case NEED_WRAP:
+			wrap(EMPTY);
+			flush();															// The connection writes the rest once the socket can take it
+			break;
+		default:
+			break;
+		}
+	}
+
+	// Decrypts what it can from the bytes read into the buffer for the connection, growing the buffers if needed
+	private SSLEngineResult unwrap() throws SSLException {
+		netIn.flip();
+		appIn.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			appIn.flip();
+			netIn.compact();
+		}
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+		} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netIn.hasRemaining()) {
+			netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);	// A record larger than the buffer
+		}
+		return result;
+	}
+
+	private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+		return wrap(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	// Encrypts one record from the buffers onto the end of the bytes waiting to be written
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+		netOut.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.wrap(srcs, offset, length, netOut);
+		} finally {
+			netOut.flip();
+		}
+		switch (result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+			break;
+		case CLOSED:
+			if (!engine.isOutboundDone() || result.bytesProduced() == 0) {
+				throw new SSLException("TLS connection is closed");
+			}
+			break;
+		default:
+			if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+		}
+		return result;
+	}
+
+	// Runs the slow parts of the handshake, i.e. checking a certificate, on the calling thread
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	// Method copies a buffer into a larger one, keeping whether it was ready to drain or to fill
+	private static ByteBuffer grow(ByteBuffer buffer, int minimum, boolean draining) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity()) + buffer.capacity());
+		if (draining) {
+			larger.put(buffer);
+			larger.flip();
+		} else {
+			buffer.flip();
+			larger.put(buffer);
+		}
+		return larger;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (buffers[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
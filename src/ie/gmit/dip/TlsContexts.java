@@ -0,0 +1,110 @@
+package ie.gmit.dip;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Class creates the TLS contexts of the server and client applications from PKCS12 key stores, see
+ * <code>scripts/gen-test-certs.sh</code> for a self-signed pair to test with.
+ *
+ * A context keeps the sessions it has negotiated, so the same context must be used for every connection for
+ * a reconnecting client to resume its session. Resuming skips the certificate and the signature of a full
+ * handshake, which is most of its cost, so a storm of clients reconnecting after a restart of the network
+ * costs the server far less than the same number of new clients.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class TlsContexts {
+
+	private static final String PROTOCOL = "TLS";
+
+	private TlsContexts() {
+	}
+
+	/**
+	 * Creates the context of a server.
+	 *
+	 * @param keystore Path of the PKCS12 keystore with the server's key and certificate chain.
+	 * @param password Password of the keystore and the key in it.
+	 * @param sessionCacheSize Most sessions kept for clients to resume.
+	 * @param sessionTimeoutSeconds How long a client may resume a session for.
+	 * @return The context, which hands out the server's certificate.
+	 * @throws IOException If the keystore cannot be read or its password is wrong.
+	 * @throws GeneralSecurityException If the keystore does not hold a usable key.
+	 */
+	public static SSLContext forServer(String keystore, char[] password, int sessionCacheSize, int sessionTimeoutSeconds)
+			throws IOException, GeneralSecurityException {
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(load(keystore, password), password);
+		SSLContext context = SSLContext.getInstance(PROTOCOL);
+		context.init(keys.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeoutSeconds);
+		return context;
+	}
+
+	/**
+	 * Creates the context of a client.
+	 *
+	 * @param truststore Path of a PKCS12 truststore with the certificates to trust, or null for the certificate
+	 * authorities trusted by the Java runtime.
+	 * @param password Password of the truststore, or null if it has none.
+	 * @return The context, which keeps the sessions of the servers it connects to.
+	 * @throws IOException If the truststore cannot be read.
+	 * @throws GeneralSecurityException If the truststore holds no usable certificates.
+	 */
+	public static SSLContext forClient(String truststore, char[] password) throws IOException, GeneralSecurityException {
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(truststore == null ? null : load(truststore, password));
+		SSLContext context = SSLContext.getInstance(PROTOCOL);
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
+	}
+
+	/**
+	 * Connects to a server and completes the handshake, checking the server's certificate is for the host name.
+	 *
+	 * @param context The context of the client, which resumes a session with the server if it has one.
+	 * @param host The host name or address of the server.
+	 * @param port The port of the server.
+	 * @return The connected socket.
+	 * @throws IOException If the server cannot be reached or the handshake fails.
+	 */
+	public static SSLSocket connect(SSLContext context, String host, int port) throws IOException {
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+		try {
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");			// Check the name as a browser would
+			socket.setSSLParameters(parameters);
+			socket.setTcpNoDelay(true);
+			socket.startHandshake();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	// Method reads a PKCS12 key store from a file
+	private static KeyStore load(String path, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(path)) {
+			store.load(in, password);
+		}
+		return store;
+	}
+
+}
@@ -0,0 +1,54 @@
+package ie.gmit.dip;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limit for the messages read from a connection or sent to a room. The bucket holds up to
+ * a burst of tokens and refills at a steady rate, and each message takes one token.
+ *
+ * The bucket is kept as the single time at which it will be full again, i.e. the generic cell rate algorithm,
+ * so taking a token is one compare and swap with no lock or refill thread, and a room's bucket can be shared
+ * by every member's thread. A message that finds the bucket empty still takes the next token to come and is
+ * told how long to wait for it. The caller stops reading its connection for that time, which leaves the
+ * client's bytes in the TCP buffers until the window closes and the client's own writes block.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class TokenBucket {
+
+	private final long interval;											// Nanoseconds to refill one token
+	private final long tolerance;											// How far ahead of the steady rate a burst may run
+	private final AtomicLong fullAt;										// Time the bucket is full again if no more tokens are taken
+
+	/**
+	 * Constructor for a full bucket.
+	 *
+	 * @param perSecond The steady number of messages a second, greater than 0.
+	 * @param burst The most messages that can be sent at once after a quiet spell, at least 1.
+	 */
+	public TokenBucket(int perSecond, int burst) {
+		this.interval = TimeUnit.SECONDS.toNanos(1) / perSecond;
+		this.tolerance = interval * (Math.max(1, burst) - 1);
+		this.fullAt = new AtomicLong(System.nanoTime() - interval);
+	}
+
+	/**
+	 * Takes a token for a message, waiting for the next one if the bucket is empty.
+	 *
+	 * @param now The current {@link System#nanoTime()}.
+	 * @return The nanoseconds to wait before the message may be handled, 0 if a token was free.
+	 */
+	public long reserve(long now) {
+		while (true) {
+			long full = fullAt.get();
+			long start = full - now > 0 ? full : now;						// A bucket that filled up while quiet starts from now
+			if (fullAt.compareAndSet(full, start + interval)) {
+				return Math.max(0, start - now - tolerance);
+			}
+		}
+	}
+
+}
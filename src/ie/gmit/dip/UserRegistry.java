@@ -0,0 +1,115 @@
+package ie.gmit.dip;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe registry of the users currently in the chat room, keyed by username. Every client thread or
+ * event loop can join, leave and look up users at the same time without locking.
+ *
+ * Usernames are reserved with {@link ConcurrentHashMap#putIfAbsent(Object, Object)} so two clients asking
+ * for the same name at the same time can never both get it. Iterating {@link #sessions()} never throws a
+ * {@link java.util.ConcurrentModificationException} and does not block users joining or leaving while a
+ * broadcast is in progress.
+ *
+ * @author PJ
+ * @version 1.1
+ * @since 1.1
+ */
+public class UserRegistry {
+
+	private final ConcurrentHashMap<String, Session> users = new ConcurrentHashMap<>();
+
+	/**
+	 * Reserves a unique username for the session. A numerical suffix is added to the input name if it is
+	 * already in use, i.e. ann, ann1, ann2 and so on.
+	 *
+	 * @param inputName The username asked for by the client.
+	 * @param session The session that the name is reserved for.
+	 * @return The name that was reserved.
+	 */
+	public String reserve(String inputName, Session session) {
+		int counter = 1;
+		String newName = inputName;
+		while (users.putIfAbsent(newName, session) != null) {
+			newName = inputName + counter;
+			counter++;
+		}
+		return newName;
+	}
+
+	/**
+	 * Takes the exact username for the session if it is free, i.e. for a user who joined on another node of
+	 * the cluster and already has a name.
+	 *
+	 * @param name The username.
+	 * @param session The session that the name is taken for.
+	 * @return True if the name was free and is now held by the session.
+	 */
+	public boolean claim(String name, Session session) {
+		return users.putIfAbsent(name, session) == null;
+	}
+
+	/**
+	 * Removes the user only if the name is still held by the input session.
+	 *
+	 * @param name The username to remove.
+	 * @param session The session that holds the name.
+	 * @return True if the user was removed.
+	 */
+	public boolean remove(String name, Session session) {
+		return name != null && users.remove(name, session);
+	}
+
+	/**
+	 * Gives the name to another session only if it is still held by the old one, i.e. when a user's dropped
+	 * connection is parked or a reconnecting client takes its session back.
+	 *
+	 * @param name The username.
+	 * @param old The session that holds the name.
+	 * @param session The session to give the name to.
+	 * @return True if the name was given to the new session.
+	 */
+	public boolean replace(String name, Session old, Session session) {
+		return users.replace(name, old, session);
+	}
+
+	/**
+	 * @param name A username.
+	 * @return The session of the user or null if nobody has that name.
+	 */
+	public Session get(String name) {
+		return users.get(name);
+	}
+
+	/**
+	 * @param name A username.
+	 * @return True if the name is in use.
+	 */
+	public boolean contains(String name) {
+		return users.containsKey(name);
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the current sessions that is safe to iterate while users join and leave.
+	 */
+	public Collection<Session> sessions() {
+		return users.values();
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the usernames in use.
+	 */
+	public Set<String> names() {
+		return users.keySet();
+	}
+
+	/**
+	 * @return The number of users in the chat room.
+	 */
+	public int size() {
+		return users.size();
+	}
+
+}